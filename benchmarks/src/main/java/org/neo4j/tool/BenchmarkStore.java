@@ -0,0 +1,65 @@
+package org.neo4j.tool;
+
+import org.neo4j.io.fs.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A generated store shared by all benchmarks of a trial. Stores are generated by the {@link GraphGenerator} with a
+ * fixed seed, so the same parameters always give the same store, and kept in {@code target/benchmark-stores}
+ * (or {@code -Dbenchmark.stores=}) to be reused by later runs.
+ * <p>
+ * Every node has one of four labels and up to {@code properties} properties of mixed types, strings and arrays,
+ * out-degrees follow a power law with {@code degree} relationships per node on average, of the four {@link Rels},
+ * without parallel relationships between the same nodes.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkStore {
+    static final String[] LABELS = {"Person", "Movie", "Company", "Tag"};
+    private static final long SEED = 42;
+
+    @Param("100000")
+    public int nodes;
+
+    @Param("4")
+    public int degree;
+
+    @Param("4")
+    public int properties;
+
+    File directory;
+    StoreMetadata metadata;
+
+    @Setup(Level.Trial)
+    public void generate() throws Exception {
+        directory = new File(System.getProperty("benchmark.stores", "target/benchmark-stores"), String.format("generated-n%d-d%d-p%d", nodes, degree, properties));
+        File complete = new File(directory, "generated");
+        if (!complete.exists()) {
+            FileUtils.deleteRecursively(directory);
+            GraphGenerator.generate(directory, options(nodes, degree, properties));
+            complete.createNewFile();
+        }
+        metadata = StoreMetadata.probe(directory);
+    }
+
+    /**
+     * @return the options of the store, the i-th property cycles through the types, empty strings and arrays included
+     */
+    private static GraphGenerator.Options options(int nodes, int degree, int properties) {
+        String[] types = {"string:12", "int", "double", "string:60:0.9", "long[]:10", "boolean"};
+        List<String> specs = new ArrayList<>();
+        for (int i = 0; i < properties; i++) specs.add("p" + i + ":" + types[i % types.length]);
+        GraphGenerator.Options options = new GraphGenerator.Options();
+        options.nodes = nodes;
+        options.degree = degree;
+        options.labels = GraphGenerator.Options.weights(String.join(",", LABELS));
+        options.nodeProperties = GraphGenerator.PropertySpec.parse(String.join(",", specs));
+        options.relationshipProperties = GraphGenerator.PropertySpec.parse("weight:double::0.5");
+        options.parallelRelationships = false;
+        options.seed = SEED;
+        return options;
+    }
+}
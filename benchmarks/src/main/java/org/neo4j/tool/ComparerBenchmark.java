@@ -0,0 +1,35 @@
+package org.neo4j.tool;
+
+import org.openjdk.jmh.annotations.*;
+
+import static java.util.Collections.emptySet;
+
+/**
+ * Runs the counting and the node and relationship comparison of {@link StoreComparer} of the benchmark store
+ * against itself, with one thread per core.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G", "-XX:+UseG1GC"})
+public class ComparerBenchmark {
+    private static final int THREADS = Runtime.getRuntime().availableProcessors();
+
+    @Benchmark
+    public Object count(EmbeddedStore store, RecordCounter counter) {
+        counter.records += store.nodes + store.relationships;
+        return StoreComparer.count(store.db, emptySet(), emptySet(), THREADS);
+    }
+
+    @Benchmark
+    public void compareNodes(EmbeddedStore store, RecordCounter counter) {
+        StoreComparer.compareNodes(store.db, store.db, emptySet(), THREADS);
+        counter.records += store.nodes;
+    }
+
+    @Benchmark
+    public void compareRelationships(EmbeddedStore store, RecordCounter counter) {
+        StoreComparer.compareRelationships(store.db, store.db, emptySet(), emptySet(), THREADS);
+        counter.records += store.nodes + store.relationships;
+    }
+}
@@ -0,0 +1,142 @@
+package org.neo4j.tool;
+
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.io.fs.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.*;
+
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
+
+/**
+ * Copies the nodes and the relationships of the {@link BenchmarkStore} into a new target per invocation, keeping
+ * or compacting node ids, without or with filters that delete nodes, ignore a relationship type and properties
+ * and rename a label.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G", "-XX:+UseG1GC"})
+public class CopyBenchmark {
+
+    /**
+     * The source opened once per trial.
+     */
+    @State(Scope.Benchmark)
+    public static class Source {
+        @Param({"false", "true"})
+        public boolean filtered;
+
+        StoreReader reader;
+        CopyFilter filter;
+        long highestNodeId;
+        long highestRelId;
+
+        @Setup(Level.Trial)
+        public void open(BenchmarkStore store) {
+            reader = StoreReader.open(store.directory, "512M");
+            filter = (filtered ? filterRules() : noRules()).compile(reader);
+            highestNodeId = store.metadata.highestNodeId();
+            highestRelId = store.metadata.highestRelationshipId();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            reader.close();
+        }
+    }
+
+    /**
+     * A new empty target per invocation.
+     */
+    @State(Scope.Thread)
+    public static class Target {
+        @Param({"true", "false"})
+        public boolean keepNodeIds;
+
+        File directory;
+        CopyCheckpoint checkpoint;
+        BadEntryLog badEntries;
+        CopyMetrics metrics;
+        NodeIdMap copiedNodeIds;
+
+        @Setup(Level.Invocation)
+        public void setup(Source source) throws IOException {
+            start(source);
+        }
+
+        void start(Source source) throws IOException {
+            directory = Files.createTempDirectory("copy-benchmark").toFile();
+            AdaptiveFlusher flusher = new AdaptiveFlusher(10_000, 500_000, 0.7);
+            checkpoint = CopyCheckpoint.start(new File(directory, "graph.db"), flusher.configure(MapUtil.stringMap("dbms.pagecache.memory", "512M")), 0, 0, keepNodeIds);
+            badEntries = new BadEntryLog(directory, directory, false);
+            metrics = new CopyMetrics(source.reader, badEntries, directory, 0);
+            StoreCopy.useLogs(badEntries, metrics, flusher);
+        }
+
+        @TearDown(Level.Invocation)
+        public void teardown() throws Exception {
+            stop();
+        }
+
+        void stop() throws Exception {
+            if (copiedNodeIds != null) copiedNodeIds.close();
+            copiedNodeIds = null;
+            metrics.close();
+            badEntries.close();
+            checkpoint.target().shutdown();
+            FileUtils.deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * A new target per invocation that already has the nodes, for the relationship copy.
+     */
+    @State(Scope.Thread)
+    public static class TargetWithNodes {
+        @Param({"true", "false"})
+        public boolean keepNodeIds;
+
+        final Target target = new Target();
+
+        @Setup(Level.Invocation)
+        public void setup(Source source) throws IOException {
+            target.keepNodeIds = keepNodeIds;
+            target.start(source);
+            target.copiedNodeIds = StoreCopy.copyNodes(source.reader, target.checkpoint, source.filter, source.highestNodeId, keepNodeIds);
+        }
+
+        @TearDown(Level.Invocation)
+        public void teardown() throws Exception {
+            target.stop();
+        }
+    }
+
+    static CopyFilter.Rules noRules() {
+        return new CopyFilter.Rules(emptySet(), emptySet(), emptySet(), emptySet(), emptyMap(), emptyMap(), emptyMap(), emptyMap());
+    }
+
+    static CopyFilter.Rules filterRules() {
+        return new CopyFilter.Rules(singleton("USED"), new HashSet<>(Arrays.asList("p2", "Movie.p0")), emptySet(), singleton("Tag"),
+                Collections.singletonMap("Person", "User"), emptyMap(), emptyMap(), Collections.singletonMap("p1", "0"));
+    }
+
+    @Benchmark
+    public long copyNodes(Source source, Target target, RecordCounter counter) throws IOException {
+        target.copiedNodeIds = StoreCopy.copyNodes(source.reader, target.checkpoint, source.filter, source.highestNodeId, target.keepNodeIds);
+        counter.records += source.highestNodeId + 1;
+        return target.copiedNodeIds.size();
+    }
+
+    @Benchmark
+    public void copyRelationships(Source source, TargetWithNodes withNodes, RecordCounter counter) throws IOException {
+        Target target = withNodes.target;
+        StoreCopy.copyRelationships(source.reader, target.checkpoint, source.filter, target.copiedNodeIds, source.highestRelId);
+        counter.records += source.highestRelId + 1;
+    }
+}
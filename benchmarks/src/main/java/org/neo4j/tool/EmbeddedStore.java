@@ -0,0 +1,27 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The {@link BenchmarkStore} started as an embedded database, for the tools that read through the core API.
+ */
+@State(Scope.Benchmark)
+public class EmbeddedStore {
+    GraphDatabaseService db;
+    long nodes;
+    long relationships;
+
+    @Setup(Level.Trial)
+    public void start(BenchmarkStore store) {
+        db = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(store.directory).setConfig(StoreComparer.config()).newGraphDatabase();
+        nodes = store.metadata.highestNodeId() + 1;
+        relationships = store.metadata.highestRelationshipId() + 1;
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        db.shutdown();
+    }
+}
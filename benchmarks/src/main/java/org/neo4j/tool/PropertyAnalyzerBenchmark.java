@@ -0,0 +1,35 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Transaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Runs the property scan of {@link PropertyAnalyzer} over all nodes and relationships of the benchmark store.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4G", "-XX:+UseG1GC"})
+public class PropertyAnalyzerBenchmark {
+
+    @Benchmark
+    public Map<String, PropertyAnalyzer.PropertyInfo> analyze(EmbeddedStore store, RecordCounter counter) {
+        Map<String, PropertyAnalyzer.PropertyInfo> props = new HashMap<>();
+        try (Transaction tx = store.db.beginTx()) {
+            for (Node node : store.db.getAllNodes()) {
+                PropertyAnalyzer.analyzeProperties(props, node);
+                for (Relationship relationship : node.getRelationships(Direction.OUTGOING)) {
+                    PropertyAnalyzer.analyzeProperties(props, relationship);
+                }
+            }
+        }
+        counter.records += store.nodes + store.relationships;
+        return props;
+    }
+}
@@ -0,0 +1,88 @@
+package org.neo4j.tool;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Scans the node and relationship records of the {@link BenchmarkStore} with their labels and properties through a
+ * {@link StoreReader.RecordCursor}, the reading side of every copy, with and without applying the copy filters.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2G", "-XX:+UseG1GC"})
+public class ReadBenchmark {
+
+    @State(Scope.Thread)
+    public static class Reader {
+        StoreReader source;
+        StoreReader.RecordCursor cursor;
+        CopyFilter filter;
+        long highestNodeId;
+        long highestRelId;
+
+        @Setup(Level.Trial)
+        public void open(BenchmarkStore store) {
+            source = StoreReader.open(store.directory, "512M");
+            cursor = source.newCursor();
+            filter = CopyBenchmark.filterRules().compile(source);
+            highestNodeId = store.metadata.highestNodeId();
+            highestRelId = store.metadata.highestRelationshipId();
+        }
+
+        @TearDown(Level.Trial)
+        public void close() throws Exception {
+            cursor.close();
+            source.close();
+        }
+    }
+
+    @Benchmark
+    public void readNodes(Reader reader, RecordCounter counter, Blackhole blackhole) {
+        StoreReader.RecordCursor cursor = reader.cursor;
+        for (long node = 0; node <= reader.highestNodeId; node++) {
+            if (!cursor.node(node)) continue;
+            blackhole.consume(cursor.labelIds());
+            for (int i = 0, count = cursor.nodeProperties(); i < count; i++) {
+                blackhole.consume(cursor.propertyKeyId(i));
+                blackhole.consume(cursor.propertyValue(i).asObject());
+            }
+        }
+        counter.records += reader.highestNodeId + 1;
+    }
+
+    @Benchmark
+    public void readNodesFiltered(Reader reader, RecordCounter counter, Blackhole blackhole) {
+        StoreReader.RecordCursor cursor = reader.cursor;
+        CopyFilter filter = reader.filter;
+        for (long node = 0; node <= reader.highestNodeId; node++) {
+            if (!cursor.node(node)) continue;
+            long[] labelIds = cursor.labelIds();
+            if (filter.deletesNode(labelIds)) continue;
+            blackhole.consume(filter.labels(labelIds));
+            for (int i = 0, count = cursor.nodeProperties(); i < count; i++) {
+                int keyId = cursor.propertyKeyId(i);
+                if (filter.keepsNodeProperty(keyId, labelIds, cursor.propertyValue(i))) {
+                    blackhole.consume(filter.propertyKey(keyId));
+                    blackhole.consume(cursor.propertyValue(i).asObject());
+                }
+            }
+        }
+        counter.records += reader.highestNodeId + 1;
+    }
+
+    @Benchmark
+    public void readRelationships(Reader reader, RecordCounter counter, Blackhole blackhole) {
+        StoreReader.RecordCursor cursor = reader.cursor;
+        for (long rel = 0; rel <= reader.highestRelId; rel++) {
+            if (!cursor.relationship(rel)) continue;
+            blackhole.consume(cursor.startNode());
+            blackhole.consume(cursor.endNode());
+            blackhole.consume(cursor.typeId());
+            for (int i = 0, count = cursor.relationshipProperties(); i < count; i++) {
+                blackhole.consume(cursor.propertyValue(i).asObject());
+            }
+        }
+        counter.records += reader.highestRelId + 1;
+    }
+}
@@ -0,0 +1,21 @@
+package org.neo4j.tool;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the records a benchmark processed, reported by JMH as records per second next to the score.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.OPERATIONS)
+public class RecordCounter {
+    public long records;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        records = 0;
+    }
+}
@@ -0,0 +1,136 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.factory.GraphDatabaseSettings;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides when the BatchInserter of the target writes its pending record changes, which it keeps on heap until then.
+ * <p>
+ * The BatchInserter flushes on its own after {@link GraphDatabaseSettings#batch_inserter_batch_size} created nodes and
+ * relationships, which is set to the upper limit {@code maxPending}. Every created entity is counted, and the changes
+ * are flushed earlier when the limit is reached or when the old generation is fuller than {@code heapThreshold} after
+ * its last collection. A flush for heap halves the limit, down to {@code minPending}, a flush by count while the heap
+ * is less than half as full doubles it again, so small records are flushed rarely and large ones before they fill the heap.
+ * <p>
+ * Only public API is used: a flush is forced with {@link BatchInserter#nodeExists(long)}, which writes all pending
+ * changes first. Without a memory pool that reports its usage after collections, the count limit alone is used.
+ */
+class AdaptiveFlusher {
+    private static final int CHECK_INTERVAL = 1024;
+
+    private final long minPending;
+    private final long maxPending;
+    private final double heapThreshold;
+    private final MemoryPoolMXBean oldGeneration = oldGeneration();
+    private final List<GarbageCollectorMXBean> oldCollectors = new ArrayList<>();
+
+    private BatchInserter targetDb;
+    private long limit;
+    private long pending;
+    private long collectionsAtFlush = -1;
+    private long flushes;
+    private long heapFlushes;
+
+    AdaptiveFlusher(long minPending, long maxPending, double heapThreshold) {
+        this.minPending = Math.max(1, Math.min(minPending, maxPending));
+        this.maxPending = Math.max(1, maxPending);
+        this.heapThreshold = heapThreshold;
+        this.limit = this.maxPending;
+        if (oldGeneration != null) {
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                if (Arrays.asList(gc.getMemoryPoolNames()).contains(oldGeneration.getName())) oldCollectors.add(gc);
+            }
+        }
+    }
+
+    /**
+     * @return a flusher with the same limits for another target, each target needs its own
+     */
+    AdaptiveFlusher copy() {
+        return new AdaptiveFlusher(minPending, maxPending, heapThreshold);
+    }
+
+    /**
+     * @return the config of the target BatchInserter with its own flush interval set to the upper limit
+     */
+    Map<String, String> configure(Map<String, String> targetConfig) {
+        targetConfig.put(GraphDatabaseSettings.batch_inserter_batch_size.name(), String.valueOf(maxPending));
+        return targetConfig;
+    }
+
+    /**
+     * Counts a created node or relationship and flushes the target if needed.
+     */
+    void written(BatchInserter targetDb) {
+        if (targetDb != this.targetDb) {
+            // reopened after a checkpoint, which flushed everything
+            this.targetDb = targetDb;
+            pending = 0;
+        }
+        pending++;
+        if (pending >= limit) {
+            if (limit < maxPending && occupancy() < heapThreshold / 2) limit = Math.min(maxPending, limit * 2);
+            flush();
+        } else if (pending % CHECK_INTERVAL == 0 && pending >= minPending && heapIsFull()) {
+            limit = Math.max(minPending, pending / 2);
+            heapFlushes++;
+            flush();
+        }
+    }
+
+    private void flush() {
+        targetDb.nodeExists(0);
+        pending = 0;
+        flushes++;
+        if (oldGeneration != null) collectionsAtFlush = collections();
+    }
+
+    /**
+     * @return true if the old generation was fuller than the threshold after a collection since the last flush
+     */
+    private boolean heapIsFull() {
+        return oldGeneration != null && collections() != collectionsAtFlush && occupancy() >= heapThreshold;
+    }
+
+    private long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : oldCollectors) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    private double occupancy() {
+        if (oldGeneration == null) return 0;
+        MemoryUsage usage = oldGeneration.getCollectionUsage();
+        if (usage == null) return 0;
+        long max = usage.getMax() > 0 ? usage.getMax() : oldGeneration.getUsage().getMax();
+        return max <= 0 ? 0 : (double) usage.getUsed() / max;
+    }
+
+    /**
+     * @return the heap pool that reports usage after collections and has the largest maximum, the old generation
+     */
+    private static MemoryPoolMXBean oldGeneration() {
+        MemoryPoolMXBean result = null;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP || !pool.isCollectionUsageThresholdSupported() || pool.getCollectionUsage() == null) continue;
+            if (result == null || pool.getUsage().getMax() > result.getUsage().getMax()) result = pool;
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d flushes of the target, %d for heap%s, last limit %d pending records",
+                flushes, heapFlushes, oldGeneration == null ? " (no heap pool to watch)" : "", limit);
+    }
+}
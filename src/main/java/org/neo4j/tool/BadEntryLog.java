@@ -0,0 +1,141 @@
+package org.neo4j.tool;
+
+import java.io.*;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records the nodes and relationships a copy could not read or write without slowing the copy down.
+ * The copying threads only count the entry by record type and error class and offer it to a bounded queue,
+ * a background thread formats and writes the queued entries as tab separated lines
+ * (record type, id, error class, message) to {@link #BAD_ENTRIES_FILE}. If the queue is full the entry is
+ * only counted. On close a summary of the counts per error class is written to {@link #LOG_FILE} and printed.
+ */
+class BadEntryLog implements AutoCloseable {
+    static final String LOG_FILE = "store-copy.log";
+    static final String BAD_ENTRIES_FILE = "store-copy-bad-entries.tsv";
+    private static final int QUEUE_SIZE = 10_000;
+
+    enum RecordType { NODE, RELATIONSHIP }
+
+    private static final Entry END = new Entry(null, -1, null);
+
+    private final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final Map<String, LongAdder> counts = new ConcurrentHashMap<>();
+    private final LongAdder dropped = new LongAdder();
+    private final PrintWriter log;
+    private final PrintWriter badEntries;
+    private final Thread writer;
+
+    /**
+     * @param append continue existing files, e.g. when a copy is resumed
+     */
+    BadEntryLog(File logDir, File badEntriesDir, boolean append) throws IOException {
+        logDir.mkdirs();
+        badEntriesDir.mkdirs();
+        File badEntriesFile = new File(badEntriesDir, BAD_ENTRIES_FILE);
+        boolean header = !append || !badEntriesFile.exists() || badEntriesFile.length() == 0;
+        this.log = new PrintWriter(new FileWriter(new File(logDir, LOG_FILE), append));
+        this.badEntries = new PrintWriter(new BufferedWriter(new FileWriter(badEntriesFile, append), 1 << 16));
+        if (header) badEntries.println("record\tid\terror\tmessage");
+        this.writer = new Thread(this::write, "store-copy-bad-entries");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Records a node or relationship that could not be copied, never blocks.
+     */
+    void add(RecordType type, long id, Throwable error) {
+        counts.computeIfAbsent(type + "\t" + error.getClass().getSimpleName(), key -> new LongAdder()).increment();
+        if (!queue.offer(new Entry(type, id, error))) dropped.increment();
+    }
+
+    /**
+     * @return the number of bad entries so far
+     */
+    long count() {
+        long count = 0;
+        for (LongAdder adder : counts.values()) count += adder.sum();
+        return count;
+    }
+
+    /**
+     * Writes a message directly to the log file, for rare events outside of the copy loops.
+     */
+    synchronized void message(String message) {
+        log.println(message);
+        log.flush();
+    }
+
+    private void write() {
+        try {
+            while (true) {
+                Entry entry = queue.take();
+                if (entry == END) break;
+                badEntries.print(entry.type);
+                badEntries.print('\t');
+                badEntries.print(entry.id);
+                badEntries.print('\t');
+                badEntries.print(entry.error.getClass().getSimpleName());
+                badEntries.print('\t');
+                badEntries.println(escape(entry.error.getMessage()));
+                if (queue.isEmpty()) badEntries.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        badEntries.flush();
+    }
+
+    private static String escape(String message) {
+        if (message == null) return "";
+        return message.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    @Override
+    public void close() {
+        try {
+            queue.put(END);
+            writer.join();
+        } catch (InterruptedException e) {
+            // the entries still queued are counted but not written
+            writer.interrupt();
+            Thread.currentThread().interrupt();
+        }
+        badEntries.close();
+        Map<String, Long> summary = new TreeMap<>();
+        counts.forEach((key, count) -> summary.put(key, count.sum()));
+        synchronized (this) {
+            if (!summary.isEmpty()) {
+                log.println("Bad entries by record type and error class:");
+                System.out.println("Bad entries by record type and error class:");
+            }
+            summary.forEach((key, count) -> {
+                log.printf("%s\t%d%n", key, count);
+                System.out.printf(" %s %d%n", key.replace('\t', ' '), count);
+            });
+            if (dropped.sum() > 0) {
+                log.printf("%d bad entries were counted but not written, the queue was full%n", dropped.sum());
+                System.out.printf(" %d bad entries were counted but not written, the queue was full%n", dropped.sum());
+            }
+            log.close();
+        }
+    }
+
+    private static class Entry {
+        final RecordType type;
+        final long id;
+        final Throwable error;
+
+        Entry(RecordType type, long id, Throwable error) {
+            this.type = type;
+            this.id = id;
+            this.error = error;
+        }
+    }
+}
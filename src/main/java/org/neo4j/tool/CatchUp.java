@@ -0,0 +1,440 @@
+package org.neo4j.tool;
+
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.eclipse.collections.api.list.primitive.MutableLongList;
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.neo4j.graphdb.*;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.kernel.impl.transaction.log.NoSuchTransactionException;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Incremental catch-up of a {@link StoreCopy} target with the transactions the source committed after the copy.
+ * <p>
+ * A copy with {@code catch_up=true} records in {@link #DIRECTORY} inside the target the id of the last transaction of
+ * the source, the node id mapping, the target id of every copied relationship in a {@link RelationshipIdFile} and
+ * the {@link PropertySlimming} decisions.
+ * A later run with {@code --catch-up} reads the transaction logs of the source from that transaction on, collects the
+ * ids of the nodes and relationships that were changed and copies their current state from the source store with
+ * the same filters: deleted ones are deleted in the target, changed ones get their labels and properties replaced,
+ * new ones are created, relationships whose nodes or type changed are deleted and created again.
+ * <p>
+ * New nodes that keep their source id are created by a short BatchInserter run, everything else is applied
+ * through an embedded database in transactions of {@link #TRANSACTION_SIZE} changes, which keeps the schema indexes
+ * of the target up to date. Id mappings are only updated for committed transactions, so a failed catch-up can simply
+ * be run again.
+ */
+class CatchUp implements AutoCloseable {
+    static final String DIRECTORY = "store-copy-catch-up";
+    private static final String STATE_FILE = "catch-up.properties";
+    private static final String NODE_ID_MAP_FILE = "node-id-map";
+    private static final String NODE_ID_CHANGES_FILE = "node-id-changes";
+    private static final String RELATIONSHIP_IDS_FILE = "relationship-ids";
+    private static final String SLIMMING_FILE = "slimming.properties";
+    private static final int TRANSACTION_SIZE = 10_000;
+
+    private final File directory;
+    private final Properties state;
+    private final RelationshipIdFile relationshipIds;
+
+    private CatchUp(File directory, Properties state) throws IOException {
+        this.directory = directory;
+        this.state = state;
+        this.relationshipIds = new RelationshipIdFile(new File(directory, RELATIONSHIP_IDS_FILE));
+    }
+
+    /**
+     * Starts recording a copy of the source at the given transaction.
+     */
+    static CatchUp start(File target, boolean stableNodeIds, long lastTransactionId) throws IOException {
+        File directory = new File(target, DIRECTORY);
+        directory.mkdirs();
+        Properties state = new Properties();
+        state.setProperty("keep_node_ids", String.valueOf(stableNodeIds));
+        state.setProperty("last_transaction_id", String.valueOf(lastTransactionId));
+        state.setProperty("completed", "false");
+        writeState(directory, state);
+        new File(directory, SLIMMING_FILE).delete();
+        return new CatchUp(directory, state);
+    }
+
+    /**
+     * Continues recording a copy that is resumed from a checkpoint.
+     */
+    static CatchUp resume(File target) throws IOException {
+        File directory = new File(target, DIRECTORY);
+        return new CatchUp(directory, readState(directory));
+    }
+
+    RelationshipIdFile relationshipIds() {
+        return relationshipIds;
+    }
+
+    /**
+     * Compiles the rules of the copy and records the slimming decisions, or takes them from the start of a resumed copy.
+     */
+    CopyFilter compile(CopyFilter.Rules rules, StoreReader reader) throws IOException {
+        return rules.compile(reader, new File(directory, SLIMMING_FILE));
+    }
+
+    /**
+     * Records the node id mapping at the end of the copy, the target can be caught up from now on.
+     */
+    void completed(NodeIdMap nodeIds) throws IOException {
+        relationshipIds.close();
+        nodeIds.writeTo(new File(directory, NODE_ID_MAP_FILE));
+        state.setProperty("node_id_map", NodeIdMap.typeOf(nodeIds));
+        state.setProperty("completed", "true");
+        writeState(directory, state);
+    }
+
+    @Override
+    public void close() throws IOException {
+        relationshipIds.close();
+    }
+
+    private static Properties readState(File directory) throws IOException {
+        File file = new File(directory, STATE_FILE);
+        if (!file.exists()) throw new IllegalArgumentException("No catch-up state in " + directory + ", the copy has to be made with catch_up=true");
+        Properties state = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            state.load(reader);
+        }
+        return state;
+    }
+
+    private static void writeState(File directory, Properties state) throws IOException {
+        File temp = new File(directory, STATE_FILE + ".tmp");
+        try (Writer writer = new FileWriter(temp)) {
+            state.store(writer, "StoreCopy catch-up");
+        }
+        if (!temp.renameTo(new File(directory, STATE_FILE))) {
+            throw new IOException("Could not write " + new File(directory, STATE_FILE));
+        }
+    }
+
+    /**
+     * Applies the transactions of the source after the last copy or catch-up to the target.
+     */
+    static void run(File source, File target, CopyFilter.Rules rules, String pageCacheSize, String sourcePageCacheSize, BadEntryLog log) throws Exception {
+        File directory = new File(target, DIRECTORY);
+        Properties state = readState(directory);
+        if (!Boolean.parseBoolean(state.getProperty("completed"))) throw new IllegalArgumentException("The copy to " + target + " did not complete");
+        boolean stableNodeIds = Boolean.parseBoolean(state.getProperty("keep_node_ids"));
+        long lastTxId = Long.parseLong(state.getProperty("last_transaction_id"));
+        StoreMetadata metadata = StoreMetadata.probeRecovered(source);
+        if (metadata.lastTransactionId() <= lastTxId) {
+            System.out.printf("Target %s is up to date with transaction %d of the source%n", target, lastTxId);
+            return;
+        }
+        File manifest = CopyDigest.manifest(target);
+        if (manifest.exists() && manifest.delete()) log.message("Deleted the digest manifest " + manifest + " of the copy, the catch-up changes the target");
+        long time = System.currentTimeMillis();
+        NodeIds nodeIds = new NodeIds(NodeIdMap.readFrom(state.getProperty("node_id_map"), new File(directory, NODE_ID_MAP_FILE)),
+                new File(directory, NODE_ID_CHANGES_FILE));
+        try (StoreReader reader = StoreReader.open(source, sourcePageCacheSize);
+             RelationshipIdFile relationshipIds = new RelationshipIdFile(new File(directory, RELATIONSHIP_IDS_FILE))) {
+            LongHashSet nodes = new LongHashSet(), relationships = new LongHashSet();
+            long txId;
+            try {
+                txId = reader.changedSince(lastTxId, nodes::add, relationships::add);
+            } catch (NoSuchTransactionException e) {
+                throw new IllegalStateException("The transaction logs of the source no longer contain transaction " + (lastTxId + 1) +
+                        ", keep them longer with dbms.tx_log.rotation.retention_policy or copy the store again", e);
+            }
+            System.out.printf("Catching up from transaction %d to %d of the source, %d changed nodes and %d changed relationships%n",
+                    lastTxId, txId, nodes.size(), relationships.size());
+            // slims as the copy did, the source may no longer fit its analysis
+            Replay replay = new Replay(reader, rules.compile(reader, new File(directory, SLIMMING_FILE)), nodeIds, relationshipIds, log);
+            if (stableNodeIds) replay.createKeptNodes(target, nodes.toSortedArray(), pageCacheSize);
+            GraphDatabaseService db = StoreMetadata.factory().newEmbeddedDatabaseBuilder(target)
+                    .setConfig(MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize)).newGraphDatabase();
+            try {
+                replay.apply(db, nodes.toSortedArray(), relationships.toSortedArray());
+            } finally {
+                db.shutdown();
+                nodeIds.save();
+            }
+            state.setProperty("last_transaction_id", String.valueOf(txId));
+            writeState(directory, state);
+            System.out.printf(" catch-up took %d seconds: %s%n", (System.currentTimeMillis() - time) / 1000, replay);
+            replay.filter.reportSlimming();
+        } finally {
+            nodeIds.close();
+        }
+    }
+
+    /**
+     * The node id mapping of the copy with the changes of the catch-ups on top.
+     */
+    private static class NodeIds implements AutoCloseable {
+        private final NodeIdMap copied;
+        private final File changesFile;
+        private final LongLongHashMap changes = new LongLongHashMap();
+
+        NodeIds(NodeIdMap copied, File changesFile) throws IOException {
+            this.copied = copied;
+            this.changesFile = changesFile;
+            if (!changesFile.exists()) return;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(changesFile)))) {
+                for (long i = in.readLong(); i > 0; i--) changes.put(in.readLong(), in.readLong());
+            }
+        }
+
+        long get(long sourceId) {
+            return changes.containsKey(sourceId) ? changes.get(sourceId) : copied.get(sourceId);
+        }
+
+        void set(long sourceId, long targetId) {
+            changes.put(sourceId, targetId);
+        }
+
+        void save() throws IOException {
+            File temp = new File(changesFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeLong(changes.size());
+                for (long sourceId : changes.keySet().toSortedArray()) {
+                    out.writeLong(sourceId);
+                    out.writeLong(changes.get(sourceId));
+                }
+            }
+            if (changesFile.exists() && !changesFile.delete() || !temp.renameTo(changesFile)) {
+                throw new IOException("Could not write " + changesFile);
+            }
+        }
+
+        @Override
+        public void close() {
+            copied.close();
+        }
+    }
+
+    /**
+     * Copies the current state of the changed nodes and relationships from the source to the target.
+     */
+    private static class Replay {
+        private final StoreReader.RecordCursor cursor;
+        private final CopyFilter filter;
+        private final NodeIds nodeIds;
+        private final RelationshipIdFile relationshipIds;
+        private final BadEntryLog log;
+        private final Map<String, Object> properties = new HashMap<>();
+        private final MutableLongList recreated = new LongArrayList();
+
+        // id mapping changes of the open transaction, applied when it committed
+        private final LongLongHashMap pendingNodeIds = new LongLongHashMap();
+        private final LongLongHashMap pendingRelationshipIds = new LongLongHashMap();
+        private GraphDatabaseService db;
+        private Transaction tx;
+        private int operations;
+
+        private long created, updated, deleted, failed;
+
+        Replay(StoreReader reader, CopyFilter filter, NodeIds nodeIds, RelationshipIdFile relationshipIds, BadEntryLog log) {
+            this.cursor = reader.newCursor();
+            this.filter = filter;
+            this.nodeIds = nodeIds;
+            this.relationshipIds = relationshipIds;
+            this.log = log;
+        }
+
+        /**
+         * Creates the new nodes of a copy that keeps node ids with their source ids, without labels or properties,
+         * which are set in the embedded run, so that the BatchInserter does not rebuild the indexes.
+         */
+        void createKeptNodes(File target, long[] nodes, String pageCacheSize) throws IOException {
+            BatchInserter targetDb = null;
+            try {
+                for (long node : nodes) {
+                    if (!isCopied(node) || nodeIds.get(node) != -1L) continue;
+                    if (targetDb == null) targetDb = BatchInserters.inserter(target, MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize));
+                    targetDb.createNode(node, Collections.emptyMap());
+                    nodeIds.set(node, node);
+                }
+            } finally {
+                if (targetDb != null) targetDb.shutdown();
+            }
+        }
+
+        /**
+         * Deletes and updates the relationships, then the nodes, then creates the new relationships, so that
+         * nodes are only deleted without relationships and relationships only created between existing nodes.
+         */
+        void apply(GraphDatabaseService db, long[] nodes, long[] relationships) throws IOException {
+            this.db = db;
+            this.tx = db.beginTx();
+            try {
+                for (long relId : relationships) {
+                    try {
+                        relationship(relId);
+                    } catch (Exception e) {
+                        log.add(BadEntryLog.RecordType.RELATIONSHIP, relId, e);
+                        failed++;
+                    }
+                    operation();
+                }
+                for (long node : nodes) {
+                    try {
+                        node(node);
+                    } catch (Exception e) {
+                        log.add(BadEntryLog.RecordType.NODE, node, e);
+                        failed++;
+                    }
+                    operation();
+                }
+                for (int i = 0; i < recreated.size(); i++) {
+                    long relId = recreated.get(i);
+                    try {
+                        createRelationship(relId);
+                    } catch (Exception e) {
+                        log.add(BadEntryLog.RecordType.RELATIONSHIP, relId, e);
+                        failed++;
+                    }
+                    operation();
+                }
+                commit();
+            } finally {
+                cursor.close();
+                tx.close();
+            }
+        }
+
+        private void operation() throws IOException {
+            if (++operations % TRANSACTION_SIZE == 0) {
+                commit();
+                tx = db.beginTx();
+            }
+        }
+
+        private void commit() throws IOException {
+            tx.success();
+            tx.close();
+            pendingNodeIds.forEachKeyValue(nodeIds::set);
+            for (long relId : pendingRelationshipIds.keySet().toSortedArray()) relationshipIds.update(relId, pendingRelationshipIds.get(relId));
+            pendingNodeIds.clear();
+            pendingRelationshipIds.clear();
+        }
+
+        private long targetNodeId(long sourceId) {
+            return pendingNodeIds.containsKey(sourceId) ? pendingNodeIds.get(sourceId) : nodeIds.get(sourceId);
+        }
+
+        private long targetRelationshipId(long sourceId) throws IOException {
+            return pendingRelationshipIds.containsKey(sourceId) ? pendingRelationshipIds.get(sourceId) : relationshipIds.get(sourceId);
+        }
+
+        private boolean isCopied(long node) {
+            return cursor.node(node) && !filter.deletesNode(cursor.labelIds());
+        }
+
+        /**
+         * Updates the properties of a relationship whose nodes and type are unchanged, deletes it otherwise and
+         * remembers it to be created again after the nodes.
+         */
+        private void relationship(long relId) throws IOException {
+            boolean copied = cursor.relationship(relId) && !filter.ignoresType(cursor.typeId());
+            long targetId = targetRelationshipId(relId);
+            Relationship existing = null;
+            if (targetId != -1L) {
+                try {
+                    existing = db.getRelationshipById(targetId);
+                } catch (NotFoundException e) {
+                    // deleted with its node
+                }
+            }
+            if (copied && existing != null && existing.getStartNodeId() == targetNodeId(cursor.startNode())
+                    && existing.getEndNodeId() == targetNodeId(cursor.endNode()) && existing.isType(filter.type(cursor.typeId()))) {
+                replaceProperties(existing, StoreCopy.relationshipProperties(filter, cursor, properties));
+                updated++;
+                return;
+            }
+            if (existing != null) {
+                existing.delete();
+                deleted++;
+            }
+            if (targetId != -1L) pendingRelationshipIds.put(relId, -1L);
+            if (copied) recreated.add(relId);
+        }
+
+        private void createRelationship(long relId) {
+            cursor.relationship(relId);
+            long startNode = targetNodeId(cursor.startNode()), endNode = targetNodeId(cursor.endNode());
+            if (startNode == -1L || endNode == -1L) return;
+            Relationship relationship = db.getNodeById(startNode).createRelationshipTo(db.getNodeById(endNode), filter.type(cursor.typeId()));
+            replaceProperties(relationship, StoreCopy.relationshipProperties(filter, cursor, properties));
+            pendingRelationshipIds.put(relId, relationship.getId());
+            created++;
+        }
+
+        private void node(long sourceId) throws IOException {
+            long targetId = targetNodeId(sourceId);
+            if (!isCopied(sourceId)) {
+                if (targetId == -1L) return;
+                // a deleted node lost its relationships in the source as well, they were deleted before the nodes
+                if (cursor.node(sourceId)) deleteRelationshipsOfNode();
+                Node node = db.getNodeById(targetId);
+                for (Relationship relationship : node.getRelationships()) relationship.delete();
+                node.delete();
+                pendingNodeIds.put(sourceId, -1L);
+                deleted++;
+                return;
+            }
+            long[] labelIds = cursor.labelIds();
+            Node node;
+            if (targetId == -1L) {
+                node = db.createNode();
+                pendingNodeIds.put(sourceId, node.getId());
+                created++;
+            } else {
+                node = db.getNodeById(targetId);
+                updated++;
+            }
+            Label[] labels = filter.labels(labelIds);
+            Set<String> names = new HashSet<>();
+            for (Label label : labels) names.add(label.name());
+            for (Label label : node.getLabels()) {
+                if (!names.contains(label.name())) node.removeLabel(label);
+            }
+            for (Label label : labels) node.addLabel(label);
+            replaceProperties(node, StoreCopy.nodeProperties(filter, cursor, labelIds, properties));
+        }
+
+        /**
+         * Deletes the copies of the relationships of the node the cursor is on, which the filter removes now while its
+         * relationships are unchanged in the source, and maps them as no longer copied, so that a later catch-up of
+         * one of them does not change the relationship that reuses the target id.
+         */
+        private void deleteRelationshipsOfNode() throws IOException {
+            LongHashSet relIds = new LongHashSet();
+            cursor.relationshipsOfNode((relId, other) -> relIds.add(relId) || true);
+            for (long relId : relIds.toSortedArray()) {
+                long targetId = targetRelationshipId(relId);
+                if (targetId == -1L) continue;
+                try {
+                    db.getRelationshipById(targetId).delete();
+                    deleted++;
+                } catch (NotFoundException e) {
+                    // missing in the target
+                }
+                pendingRelationshipIds.put(relId, -1L);
+            }
+        }
+
+        private static void replaceProperties(PropertyContainer entity, Map<String, Object> properties) {
+            for (String key : entity.getPropertyKeys()) {
+                if (!properties.containsKey(key)) entity.removeProperty(key);
+            }
+            properties.forEach(entity::setProperty);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d created, %d updated, %d deleted, %d failed", created, updated, deleted, failed);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.neo4j.tool;
+
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Periodic checkpoints of a {@link StoreCopy} run, so that a copy that died can be resumed from the last checkpoint.
+ * <p>
+ * A checkpoint shuts the target BatchInserter down cleanly and records the phase, the next source id to copy,
+ * the counters and the compacting node id mapping in {@link #DIRECTORY} inside the target. Store files that a copy
+ * only ever appends to are recorded by their size and their last pages. The node, relationship and relationship group
+ * stores, whose records are updated in place when relationships are linked, are checkpointed incrementally: a mirror
+ * of them is kept in {@link #MIRROR}, each checkpoint reads them once and journals only the {@link #CHUNK_SIZE} chunks
+ * whose hashes changed since the last checkpoint, then applies the journal to the mirror. All other, small files of the
+ * target are copied into the checkpoint.
+ * <p>
+ * Checkpoints are at least the interval and at least {@code checkpoint_growth} times the records of the phase copied so
+ * far apart, so that their number grows logarithmically with the size of the store and the reading and writing of all
+ * checkpoints stays within a constant multiple of the size of the target, about 1 + 1 / growth times, instead of
+ * growing quadratically.
+ * <p>
+ * The checkpoint is written to a new directory that is swapped in, a resume after a crash during the swap completes it.
+ * Resuming applies the journal of the checkpoint to the mirror again, truncates the appended files back to their
+ * recorded size, restores their last pages and copies the mirrored and the other files back, which returns the target
+ * to the state of the checkpoint, whatever the page cache flushed after it.
+ */
+class CopyCheckpoint {
+    static final String DIRECTORY = "store-copy-checkpoint";
+    private static final String STATE_FILE = "checkpoint.properties";
+    private static final String NODE_ID_MAP_FILE = "node-id-map";
+    private static final String NODE_STORE = "neostore.nodestore.db";
+    static final String MIRROR = DIRECTORY + ".mirror";
+    private static final String JOURNAL_SUFFIX = ".chunks";
+    static final int CHUNK_SIZE = 1 << 16;
+    private static final Set<String> IN_PLACE = new HashSet<>(asList(NODE_STORE, "neostore.relationshipstore.db", "neostore.relationshipgroupstore.db"));
+    private static final String TAIL_SUFFIX = ".tail";
+    // the page cache writes whole pages, so records in the last page of an appended file are written again after a checkpoint
+    private static final int TAIL_SIZE = 1 << 16;
+    private static final Set<String> APPEND_ONLY = new HashSet<>(asList(
+            "neostore.propertystore.db", "neostore.propertystore.db.strings", "neostore.propertystore.db.arrays", "neostore.nodestore.db.labels"));
+    private static final Set<String> NOT_IN_CHECKPOINT = new HashSet<>(asList(BadEntryLog.LOG_FILE, BadEntryLog.BAD_ENTRIES_FILE, "bad.log", "debug.log", CopyMetrics.PROGRESS_FILE, CopyMetrics.PROGRESS_FILE + ".tmp"));
+
+    enum Phase { NODES, RELATIONSHIPS }
+
+    private final File target;
+    private final Map<String, String> targetConfig;
+    private final long interval;
+    private final double growth;
+    private final boolean stableNodeIds;
+    private BatchInserter targetDb;
+    // chunk hashes of the mirrored files as of the last checkpoint
+    private final Map<String, long[]> chunkHashes = new HashMap<>();
+    private long nextDue;
+
+    private Phase phase = Phase.NODES;
+    private long nextId;
+    private long notFound;
+    private long removed;
+    private NodeIdMap nodeIdMap;
+
+    private CopyCheckpoint(File target, Map<String, String> targetConfig, long interval, double growth, boolean stableNodeIds) {
+        this.target = target;
+        this.targetConfig = targetConfig;
+        this.interval = interval;
+        this.growth = growth;
+        this.stableNodeIds = stableNodeIds;
+        this.nextDue = interval;
+    }
+
+    /**
+     * @param interval minimal number of source records between checkpoints, 0 disables checkpoints
+     * @param growth minimal distance of the next checkpoint as a fraction of the records of the phase copied so far
+     */
+    static CopyCheckpoint start(File target, Map<String, String> targetConfig, long interval, double growth, boolean stableNodeIds) throws IOException {
+        CopyCheckpoint checkpoint = new CopyCheckpoint(target, targetConfig, interval, growth, stableNodeIds);
+        FileUtils.deleteRecursively(new File(target, MIRROR));
+        checkpoint.targetDb = BatchInserters.inserter(target, targetConfig);
+        return checkpoint;
+    }
+
+    /**
+     * Restores the target to the last checkpoint and opens it for the copy to continue.
+     */
+    static CopyCheckpoint resume(File target, Map<String, String> targetConfig, long interval, double growth, boolean stableNodeIds) throws IOException {
+        File directory = new File(target, DIRECTORY);
+        if (!new File(directory, STATE_FILE).exists()) completeSwap(target, directory);
+        if (!new File(directory, STATE_FILE).exists()) {
+            throw new IllegalArgumentException("No checkpoint to resume from in " + directory);
+        }
+        Properties state = new Properties();
+        try (Reader reader = new FileReader(new File(directory, STATE_FILE))) {
+            state.load(reader);
+        }
+        if (stableNodeIds != Boolean.parseBoolean(state.getProperty("keep_node_ids"))) {
+            throw new IllegalArgumentException("Checkpoint was written with keep_node_ids=" + state.getProperty("keep_node_ids"));
+        }
+        CopyCheckpoint checkpoint = new CopyCheckpoint(target, targetConfig, interval, growth, stableNodeIds);
+        checkpoint.phase = Phase.valueOf(state.getProperty("phase"));
+        checkpoint.nextId = Long.parseLong(state.getProperty("next_id"));
+        checkpoint.notFound = Long.parseLong(state.getProperty("not_found"));
+        checkpoint.removed = Long.parseLong(state.getProperty("removed"));
+        checkpoint.scheduleNext(checkpoint.nextId);
+        // the checkpoint may have been written without its journal being applied to the mirror
+        File mirror = new File(target, MIRROR);
+        for (String fileName : applyJournals(directory, mirror)) {
+            File mirrored = new File(mirror, fileName);
+            FileUtils.copyFile(mirrored, new File(target, fileName));
+            checkpoint.chunkHashes.put(fileName, chunkHashes(mirrored, null, null));
+        }
+        for (String name : state.stringPropertyNames()) {
+            if (!name.startsWith("size.")) continue;
+            String fileName = name.substring("size.".length());
+            long size = Long.parseLong(state.getProperty(name));
+            byte[] tail = Files.readAllBytes(new File(directory, fileName + TAIL_SUFFIX).toPath());
+            try (RandomAccessFile file = new RandomAccessFile(new File(target, fileName), "rw")) {
+                file.setLength(size);
+                file.seek(size - tail.length);
+                file.write(tail);
+            }
+        }
+        for (File file : directory.listFiles()) {
+            if (file.getName().equals(STATE_FILE) || file.getName().equals(NODE_ID_MAP_FILE) || file.getName().endsWith(TAIL_SUFFIX) || file.getName().endsWith(JOURNAL_SUFFIX)) continue;
+            FileUtils.copyFile(file, new File(target, file.getName()));
+        }
+        File nodeIdMapFile = new File(directory, NODE_ID_MAP_FILE);
+        checkpoint.nodeIdMap = NodeIdMap.readFrom(state.getProperty("node_id_map", ""), nodeIdMapFile);
+        System.out.printf("Resuming %s from checkpoint at %s id %d%n", target, checkpoint.phase, checkpoint.nextId);
+        checkpoint.targetDb = BatchInserters.inserter(target, targetConfig);
+        return checkpoint;
+    }
+
+    /**
+     * Completes the swap of the checkpoint directories that a crash interrupted, with the new checkpoint if its state
+     * was written, which happens last, otherwise with the previous one. The journal of either was not applied yet.
+     */
+    private static void completeSwap(File target, File directory) throws IOException {
+        File next = new File(target, DIRECTORY + ".tmp");
+        File previous = new File(target, DIRECTORY + ".old");
+        File checkpoint = new File(next, STATE_FILE).exists() ? next : new File(previous, STATE_FILE).exists() ? previous : null;
+        if (checkpoint == null) return;
+        FileUtils.deleteRecursively(directory);
+        FileUtils.moveFile(checkpoint, directory);
+        System.out.printf("Completed the interrupted checkpoint with %s%n", checkpoint);
+    }
+
+    BatchInserter target() {
+        return targetDb;
+    }
+
+    boolean isEnabled() {
+        return interval > 0;
+    }
+
+    boolean isDue(long processed) {
+        return interval > 0 && processed >= nextDue;
+    }
+
+    private void scheduleNext(long processed) {
+        nextDue = processed + Math.max(interval, (long) (processed * growth));
+    }
+
+    /**
+     * @return true if the phase was already completed when the copy was resumed
+     */
+    boolean isCompleted(Phase phase) {
+        return phase.ordinal() < this.phase.ordinal();
+    }
+
+    /**
+     * @return the source id to continue the phase with, 0 if it was not started before
+     */
+    long nextId(Phase phase) {
+        return phase == this.phase ? nextId : 0;
+    }
+
+    long notFound(Phase phase) {
+        return phase == this.phase ? notFound : 0;
+    }
+
+    long removed(Phase phase) {
+        return phase == this.phase ? removed : 0;
+    }
+
+    NodeIdMap nodeIdMap() {
+        return nodeIdMap;
+    }
+
+    /**
+     * Flushes the target by shutting it down, records the checkpoint and reopens the target.
+     *
+     * @return the reopened target
+     */
+    BatchInserter checkpoint(Phase phase, long nextId, long notFound, long removed, NodeIdMap nodeIdMap) throws IOException {
+        long time = System.currentTimeMillis();
+        targetDb.shutdown();
+        File directory = new File(target, DIRECTORY);
+        File next = new File(target, DIRECTORY + ".tmp");
+        File previous = new File(target, DIRECTORY + ".old");
+        FileUtils.deleteRecursively(next);
+        next.mkdirs();
+
+        Properties state = new Properties();
+        state.setProperty("phase", phase.name());
+        state.setProperty("next_id", String.valueOf(nextId));
+        state.setProperty("not_found", String.valueOf(notFound));
+        state.setProperty("removed", String.valueOf(removed));
+        state.setProperty("keep_node_ids", String.valueOf(stableNodeIds));
+        Map<String, long[]> changedHashes = new HashMap<>();
+        long inPlaceBytes = 0, journalBytes = 0;
+        for (File file : target.listFiles()) {
+            if (!file.isFile() || NOT_IN_CHECKPOINT.contains(file.getName())) continue;
+            if (APPEND_ONLY.contains(file.getName()) || (phase == Phase.NODES && file.getName().equals(NODE_STORE))) {
+                state.setProperty("size." + file.getName(), String.valueOf(file.length()));
+                writeTail(file, new File(next, file.getName() + TAIL_SUFFIX));
+            } else if (IN_PLACE.contains(file.getName())) {
+                File journal = new File(next, file.getName() + JOURNAL_SUFFIX);
+                changedHashes.put(file.getName(), chunkHashes(file, chunkHashes.get(file.getName()), journal));
+                inPlaceBytes += file.length();
+                journalBytes += journal.length();
+            } else {
+                FileUtils.copyFile(file, new File(next, file.getName()));
+            }
+        }
+        if (nodeIdMap != null) {
+            state.setProperty("node_id_map", NodeIdMap.typeOf(nodeIdMap));
+            nodeIdMap.writeTo(new File(next, NODE_ID_MAP_FILE));
+        }
+        // the state is renamed into place, a checkpoint with a state file is complete
+        File stateFile = new File(next, STATE_FILE + ".tmp");
+        try (Writer writer = new FileWriter(stateFile)) {
+            state.store(writer, "StoreCopy checkpoint");
+        }
+        FileUtils.moveFile(stateFile, new File(next, STATE_FILE));
+        FileUtils.deleteRecursively(previous);
+        if (directory.exists()) FileUtils.moveFile(directory, previous);
+        FileUtils.moveFile(next, directory);
+        FileUtils.deleteRecursively(previous);
+        applyJournals(directory, new File(target, MIRROR));
+        chunkHashes.putAll(changedHashes);
+
+        targetDb = BatchInserters.inserter(target, targetConfig);
+        scheduleNext(nextId);
+        System.out.printf(" checkpoint at %s id %d took %d ms, journaled %d of %d MB of the in-place stores, next checkpoint at id %d%n",
+                phase, nextId, System.currentTimeMillis() - time, journalBytes >> 20, inPlaceBytes >> 20, nextDue);
+        return targetDb;
+    }
+
+    /**
+     * Hashes the chunks of the file and journals the ones whose hashes differ from the previous ones, the journal
+     * starts with the length of the file, followed by the index, length and bytes of each changed chunk.
+     * @param previous the hashes of the last checkpoint, null if the file was not mirrored yet
+     * @param journal the file to journal the changed chunks to, null to only hash the file
+     * @return the hashes of the chunks of the file
+     */
+    private static long[] chunkHashes(File file, long[] previous, File journal) throws IOException {
+        long[] hashes = new long[(int) ((file.length() + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE));
+             DataOutputStream out = journal == null ? null : new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal), CHUNK_SIZE))) {
+            if (out != null) out.writeLong(file.length());
+            for (int index = 0; index < hashes.length; index++) {
+                int length = (int) Math.min(CHUNK_SIZE, file.length() - (long) index * CHUNK_SIZE);
+                in.readFully(chunk, 0, length);
+                hashes[index] = hash(chunk, length);
+                if (out == null || previous != null && index < previous.length && previous[index] == hashes[index]) continue;
+                out.writeLong(index);
+                out.writeInt(length);
+                out.write(chunk, 0, length);
+            }
+        }
+        return hashes;
+    }
+
+    private static long hash(byte[] bytes, int length) {
+        long hash = length;
+        for (int i = 0; i < length; i++) hash = hash * 0x100000001b3L + bytes[i];
+        return CopyDigest.mix(hash);
+    }
+
+    /**
+     * Writes the changed chunks of the journals of the checkpoint into the mirrored files, which is idempotent.
+     * @return the names of the mirrored files
+     */
+    private static List<String> applyJournals(File directory, File mirror) throws IOException {
+        List<String> fileNames = new ArrayList<>();
+        File[] journals = directory.listFiles((dir, name) -> name.endsWith(JOURNAL_SUFFIX));
+        if (journals == null) return fileNames;
+        mirror.mkdirs();
+        byte[] chunk = new byte[CHUNK_SIZE];
+        for (File journal : journals) {
+            String fileName = journal.getName().substring(0, journal.getName().length() - JOURNAL_SUFFIX.length());
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(journal), CHUNK_SIZE));
+                 RandomAccessFile out = new RandomAccessFile(new File(mirror, fileName), "rw")) {
+                out.setLength(in.readLong());
+                while (true) {
+                    long index;
+                    try {
+                        index = in.readLong();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    int length = in.readInt();
+                    in.readFully(chunk, 0, length);
+                    out.seek(index * CHUNK_SIZE);
+                    out.write(chunk, 0, length);
+                }
+            }
+            fileNames.add(fileName);
+        }
+        return fileNames;
+    }
+
+    private static void writeTail(File file, File tailFile) throws IOException {
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            byte[] tail = new byte[(int) Math.min(TAIL_SIZE, in.length())];
+            in.seek(in.length() - tail.length);
+            in.readFully(tail);
+            Files.write(tailFile.toPath(), tail);
+        }
+    }
+
+    /**
+     * Removes the checkpoint after the target was shut down at the end of a successful copy.
+     */
+    void completed() throws IOException {
+        FileUtils.deleteRecursively(new File(target, DIRECTORY));
+        FileUtils.deleteRecursively(new File(target, DIRECTORY + ".tmp"));
+        FileUtils.deleteRecursively(new File(target, DIRECTORY + ".old"));
+        FileUtils.deleteRecursively(new File(target, MIRROR));
+    }
+}
@@ -0,0 +1,250 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.Values;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Content digests of the records written by a copy, so that the target can be verified against the manifest written
+ * next to it, in one sequential scan of the target without the source.
+ * <p>
+ * The nodes are digested in blocks of {@link #BLOCK_SIZE} target node ids, with their id, labels and properties,
+ * the relationships in the blocks of their target start node, with their start and end node, type and properties,
+ * so that the digests do not depend on the relationship ids or the order the records are written in. A block digest
+ * is the count and the sum of the hashes of its records, one changed, missing or additional record changes it.
+ * Labels, types and keys are digested by name, values by their content, the target is compared as written by the copy,
+ * after all filters, renames and slimming.
+ * <p>
+ * Usage: {@code CopyDigest target [manifest]}, the manifest defaults to {@value #MANIFEST_FILE} in the target.
+ */
+class CopyDigest {
+    static final String MANIFEST_FILE = "store-copy-digest.tsv";
+    static final int BLOCK_SIZE = 1 << 16;
+    private static final int SHIFT = 16;
+    private static final String HEADER = "block\tnodes\tnode_digest\trelationships\trelationship_digest";
+
+    private final AtomicLongArray nodeCounts;
+    private final AtomicLongArray nodeSums;
+    private final AtomicLongArray relationshipCounts;
+    private final AtomicLongArray relationshipSums;
+
+    /**
+     * @param highestNodeId highest node id of the target
+     */
+    CopyDigest(long highestNodeId) {
+        int blocks = (int) (highestNodeId >>> SHIFT) + 1;
+        nodeCounts = new AtomicLongArray(blocks);
+        nodeSums = new AtomicLongArray(blocks);
+        relationshipCounts = new AtomicLongArray(blocks);
+        relationshipSums = new AtomicLongArray(blocks);
+    }
+
+    static File manifest(File target) {
+        return new File(target, MANIFEST_FILE);
+    }
+
+    /**
+     * Adds a node written with the labels and properties, thread safe.
+     */
+    void node(long id, Label[] labels, Map<String, Object> properties) {
+        long labelsHash = 0;
+        for (Label label : labels) labelsHash += name(label.name());
+        node(id, labelsHash, properties(properties));
+    }
+
+    void node(long id, long labelsHash, long propertiesHash) {
+        int block = (int) (id >>> SHIFT);
+        nodeCounts.incrementAndGet(block);
+        nodeSums.addAndGet(block, mix(mix(id * 0x9E3779B97F4A7C15L + labelsHash) + propertiesHash));
+    }
+
+    /**
+     * Adds a relationship written with the properties, thread safe.
+     */
+    void relationship(long startNode, long endNode, String type, Map<String, Object> properties) {
+        relationship(startNode, endNode, name(type), properties(properties));
+    }
+
+    void relationship(long startNode, long endNode, long typeHash, long propertiesHash) {
+        int block = (int) (startNode >>> SHIFT);
+        relationshipCounts.incrementAndGet(block);
+        relationshipSums.addAndGet(block, mix(mix(mix(startNode * 0x9E3779B97F4A7C15L + endNode) + typeHash) + propertiesHash));
+    }
+
+    static long properties(Map<String, Object> properties) {
+        long hash = 0;
+        for (Map.Entry<String, Object> property : properties.entrySet()) hash += property(property.getKey(), Values.of(property.getValue()));
+        return hash;
+    }
+
+    static long property(String key, Value value) {
+        return mix(name(key) * 31 + value.hashCode64());
+    }
+
+    static long name(String name) {
+        return mix(name.hashCode() + ((long) name.length() << 32));
+    }
+
+    // the finalizer of murmur3
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Writes the digests of the blocks with records.
+     */
+    void write(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println(HEADER);
+            for (int block = 0; block < nodeCounts.length(); block++) {
+                if (nodeCounts.get(block) == 0 && relationshipCounts.get(block) == 0) continue;
+                out.printf("%d\t%d\t%016x\t%d\t%016x%n", block, nodeCounts.get(block), nodeSums.get(block), relationshipCounts.get(block), relationshipSums.get(block));
+            }
+        }
+    }
+
+    /**
+     * Reads the target with its own page cache and digests all of its records.
+     */
+    static CopyDigest ofStore(File target, String pageCacheSize) throws Exception {
+        return ofStore(target, pageCacheSize, Collections.emptySet(), Collections.emptySet());
+    }
+
+    /**
+     * Reads the store with its own page cache and digests its records, leaving out the relationships of the ignored
+     * types and the ignored properties, both given in lower case.
+     */
+    static CopyDigest ofStore(File target, String pageCacheSize, Set<String> ignoreRelTypes, Set<String> ignoreProperties) throws Exception {
+        StoreMetadata metadata = StoreMetadata.probe(target);
+        CopyDigest digest = new CopyDigest(metadata.highestNodeId());
+        long time = System.currentTimeMillis();
+        try (StoreReader reader = StoreReader.open(target, pageCacheSize);
+             StoreReader.RecordCursor cursor = reader.newCursor()) {
+            long[] labelHashes = hashes(reader.labels()), typeHashes = hashes(reader.relTypes()), keyHashes = hashes(reader.propertyKeys());
+            boolean[] ignoredTypes = ignored(reader.relTypes(), ignoreRelTypes), ignoredKeys = ignored(reader.propertyKeys(), ignoreProperties);
+            for (long node = 0; node <= metadata.highestNodeId(); node++) {
+                try {
+                    if (!cursor.node(node)) continue;
+                    long labelsHash = 0;
+                    for (long labelId : cursor.labelIds()) labelsHash += labelHashes[(int) labelId];
+                    digest.node(node, labelsHash, properties(cursor, cursor.nodeProperties(), keyHashes, ignoredKeys));
+                } catch (Exception e) {
+                    // left out, so that its block differs
+                    System.out.printf(" node %d can not be read: %s%n", node, e.getMessage());
+                }
+            }
+            for (long rel = 0; rel <= metadata.highestRelationshipId(); rel++) {
+                try {
+                    if (!cursor.relationship(rel) || ignoredTypes[cursor.typeId()]) continue;
+                    long startNode = cursor.startNode(), endNode = cursor.endNode(), typeHash = typeHashes[cursor.typeId()];
+                    digest.relationship(startNode, endNode, typeHash, properties(cursor, cursor.relationshipProperties(), keyHashes, ignoredKeys));
+                } catch (Exception e) {
+                    System.out.printf(" relationship %d can not be read: %s%n", rel, e.getMessage());
+                }
+            }
+        }
+        System.out.printf("Digesting %d node and %d relationship records of %s took %d seconds%n", metadata.highestNodeId() + 1, metadata.highestRelationshipId() + 1,
+                target, (System.currentTimeMillis() - time) / 1000);
+        return digest;
+    }
+
+    private static long[] hashes(String[] names) {
+        long[] hashes = new long[names.length];
+        for (int id = 0; id < names.length; id++) {
+            if (names[id] != null) hashes[id] = name(names[id]);
+        }
+        return hashes;
+    }
+
+    private static boolean[] ignored(String[] names, Set<String> ignore) {
+        boolean[] ignored = new boolean[names.length];
+        for (int id = 0; id < names.length; id++) ignored[id] = names[id] != null && ignore.contains(names[id].toLowerCase());
+        return ignored;
+    }
+
+    private static long properties(StoreReader.RecordCursor cursor, int count, long[] keyHashes, boolean[] ignoredKeys) {
+        long hash = 0;
+        for (int i = 0; i < count; i++) {
+            int keyId = cursor.propertyKeyId(i);
+            if (!ignoredKeys[keyId]) hash += mix(keyHashes[keyId] * 31 + cursor.propertyValue(i).hashCode64());
+        }
+        return hash;
+    }
+
+    /**
+     * Compares the digests of the target with the manifest and prints the blocks that differ.
+     * @return the number of blocks that differ
+     */
+    static long verify(File target, File manifest, String pageCacheSize) throws Exception {
+        if (!manifest.exists()) throw new IllegalArgumentException("Digest manifest does not exist " + manifest);
+        CopyDigest digest = ofStore(target, pageCacheSize);
+        long differences = 0, blocks = 0;
+        Set<Integer> listed = new HashSet<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(manifest))) {
+            String line = in.readLine();
+            if (!HEADER.equals(line)) throw new IllegalArgumentException("Not a digest manifest " + manifest);
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                int block = Integer.parseInt(fields[0]);
+                listed.add(block);
+                blocks++;
+                String actual = block < digest.nodeCounts.length() ? digest.line(block) : block + "\t0\t0000000000000000\t0\t0000000000000000";
+                if (!actual.equals(line)) {
+                    differences++;
+                    System.out.printf(" block %d of node ids %d to %d differs, expected %s found %s%n", block, (long) block << SHIFT, ((long) (block + 1) << SHIFT) - 1, line, actual);
+                }
+            }
+        }
+        for (int block = 0; block < digest.nodeCounts.length(); block++) {
+            if (listed.contains(block) || digest.nodeCounts.get(block) == 0 && digest.relationshipCounts.get(block) == 0) continue;
+            differences++;
+            System.out.printf(" block %d of node ids %d to %d is not in the manifest, found %s%n", block, (long) block << SHIFT, ((long) (block + 1) << SHIFT) - 1, digest.line(block));
+        }
+        System.out.printf("%s: %d of %d blocks differ from %s%n", differences == 0 ? "VERIFIED" : "FAILED", differences, blocks, manifest);
+        return differences;
+    }
+
+    int blocks() {
+        return nodeCounts.length();
+    }
+
+    long nodes(int block) {
+        return nodeCounts.get(block);
+    }
+
+    long relationships(int block) {
+        return relationshipCounts.get(block);
+    }
+
+    /**
+     * @return the hash of the counts and digests of the block, 0 for a block without records
+     */
+    long blockHash(int block) {
+        return mix(mix(mix(mix(nodeCounts.get(block)) + nodeSums.get(block)) + relationshipCounts.get(block)) + relationshipSums.get(block));
+    }
+
+    private String line(int block) {
+        return String.format("%d\t%d\t%016x\t%d\t%016x", block, nodeCounts.get(block), nodeSums.get(block), relationshipCounts.get(block), relationshipSums.get(block));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: CopyDigest target [manifest]");
+            return;
+        }
+        File target = new File(args[0]);
+        if (!target.exists()) throw new IllegalArgumentException("Target Directory does not exist " + target);
+        long differences = verify(target, args.length > 1 ? new File(args[1]) : manifest(target), System.getProperty("dbms.pagecache.memory", "2G"));
+        // scripts check the exit code
+        System.exit(differences == 0 ? 0 : 1);
+    }
+}
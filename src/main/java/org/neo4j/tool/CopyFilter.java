@@ -0,0 +1,240 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.values.storable.BooleanValue;
+import org.neo4j.values.storable.NumberValue;
+import org.neo4j.values.storable.TextValue;
+import org.neo4j.values.storable.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The filter and transformation rules of a copy, compiled once against the token stores of the source, so that
+ * records are filtered by token id without looking at names.
+ * <p>
+ * Properties to ignore can be scoped to a label or relationship type as {@code Label.key} or {@code TYPE.key},
+ * an entry is scoped if the part before the first dot is a label or relationship type of the source, otherwise
+ * it is the name of a property key. Labels, relationship types and property keys can be renamed, and properties
+ * whose value equals a given default can be dropped, numbers are compared numerically, other values by text.
+ * Values can be slimmed by the {@link PropertySlimming} rules. All rules refer to the names in the source.
+ */
+class CopyFilter {
+
+    /**
+     * The uncompiled rules as configured.
+     */
+    static class Rules {
+        final Set<String> ignoreRelTypes;
+        final Set<String> ignoreProperties;
+        final Set<String> ignoreLabels;
+        final Set<String> deleteNodesWithLabels;
+        final Map<String, String> renameLabels;
+        final Map<String, String> renameRelTypes;
+        final Map<String, String> renameProperties;
+        final Map<String, String> propertyDefaults;
+        final PropertySlimming.Rules slimming;
+
+        Rules(Set<String> ignoreRelTypes, Set<String> ignoreProperties, Set<String> ignoreLabels, Set<String> deleteNodesWithLabels,
+              Map<String, String> renameLabels, Map<String, String> renameRelTypes, Map<String, String> renameProperties, Map<String, String> propertyDefaults) {
+            this(ignoreRelTypes, ignoreProperties, ignoreLabels, deleteNodesWithLabels, renameLabels, renameRelTypes, renameProperties, propertyDefaults, PropertySlimming.Rules.NONE);
+        }
+
+        Rules(Set<String> ignoreRelTypes, Set<String> ignoreProperties, Set<String> ignoreLabels, Set<String> deleteNodesWithLabels,
+              Map<String, String> renameLabels, Map<String, String> renameRelTypes, Map<String, String> renameProperties, Map<String, String> propertyDefaults,
+              PropertySlimming.Rules slimming) {
+            this.ignoreRelTypes = ignoreRelTypes;
+            this.ignoreProperties = ignoreProperties;
+            this.ignoreLabels = ignoreLabels;
+            this.deleteNodesWithLabels = deleteNodesWithLabels;
+            this.renameLabels = renameLabels;
+            this.renameRelTypes = renameRelTypes;
+            this.renameProperties = renameProperties;
+            this.propertyDefaults = propertyDefaults;
+            this.slimming = slimming;
+        }
+
+        CopyFilter compile(StoreReader reader) {
+            return new CopyFilter(this, reader.labels(), reader.relTypes(), reader.propertyKeys(), slimming.isEmpty() ? null : slimming.compile(reader));
+        }
+
+        /**
+         * Compiles the rules with the slimming decisions recorded in the file, see {@link PropertySlimming.Rules#compile(StoreReader, File)}.
+         */
+        CopyFilter compile(StoreReader reader, File slimmingDecisions) throws IOException {
+            return new CopyFilter(this, reader.labels(), reader.relTypes(), reader.propertyKeys(), slimming.isEmpty() ? null : slimming.compile(reader, slimmingDecisions));
+        }
+    }
+
+    private static final Label[] NO_LABELS = new Label[0];
+
+    private final boolean[] deleteLabels;
+    private final Label[] labels;       // target label by label id, null if ignored
+    private final boolean[] ignoreTypes;
+    private final RelationshipType[] types;
+    private final String[] keys;        // target key by key id, null if ignored everywhere
+    private final boolean[][] ignoreKeyOnLabel;
+    private final boolean[][] ignoreKeyOnType;
+    private final String[] defaults;
+    private final double[] numberDefaults; // NaN if the default is no number
+    private final PropertySlimming slimming; // null without slimming rules
+
+    private CopyFilter(Rules rules, String[] labelNames, String[] typeNames, String[] keyNames, PropertySlimming slimming) {
+        this.slimming = slimming;
+        deleteLabels = new boolean[labelNames.length];
+        labels = new Label[labelNames.length];
+        for (int id = 0; id < labelNames.length; id++) {
+            String name = labelNames[id];
+            if (name == null) continue;
+            deleteLabels[id] = rules.deleteNodesWithLabels.contains(name);
+            if (!rules.ignoreLabels.contains(name)) labels[id] = Label.label(rules.renameLabels.getOrDefault(name, name));
+        }
+        ignoreTypes = new boolean[typeNames.length];
+        types = new RelationshipType[typeNames.length];
+        for (int id = 0; id < typeNames.length; id++) {
+            String name = typeNames[id];
+            if (name == null) continue;
+            ignoreTypes[id] = rules.ignoreRelTypes.contains(name);
+            types[id] = RelationshipType.withName(rules.renameRelTypes.getOrDefault(name, name));
+        }
+        keys = new String[keyNames.length];
+        ignoreKeyOnLabel = new boolean[keyNames.length][];
+        ignoreKeyOnType = new boolean[keyNames.length][];
+        defaults = new String[keyNames.length];
+        numberDefaults = new double[keyNames.length];
+        for (int id = 0; id < keyNames.length; id++) {
+            String name = keyNames[id];
+            if (name == null) continue;
+            if (!rules.ignoreProperties.contains(name)) keys[id] = rules.renameProperties.getOrDefault(name, name);
+            defaults[id] = rules.propertyDefaults.get(name);
+            numberDefaults[id] = defaults[id] == null ? Double.NaN : number(defaults[id]);
+        }
+        for (String entry : rules.ignoreProperties) {
+            int dot = entry.indexOf('.');
+            if (dot < 0) continue;
+            String scope = entry.substring(0, dot), key = entry.substring(dot + 1);
+            int keyId = indexOf(keyNames, key);
+            if (keyId < 0) continue;
+            int labelId = indexOf(labelNames, scope), typeId = indexOf(typeNames, scope);
+            if (labelId >= 0) {
+                if (ignoreKeyOnLabel[keyId] == null) ignoreKeyOnLabel[keyId] = new boolean[labelNames.length];
+                ignoreKeyOnLabel[keyId][labelId] = true;
+            }
+            if (typeId >= 0) {
+                if (ignoreKeyOnType[keyId] == null) ignoreKeyOnType[keyId] = new boolean[typeNames.length];
+                ignoreKeyOnType[keyId][typeId] = true;
+            }
+        }
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (name.equals(names[i])) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if the node has a label whose nodes are not copied
+     */
+    boolean deletesNode(long[] labelIds) {
+        for (long labelId : labelIds) {
+            if (deleteLabels[(int) labelId]) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the target labels of the node
+     */
+    Label[] labels(long[] labelIds) {
+        if (labelIds.length == 0) return NO_LABELS;
+        Label[] result = new Label[labelIds.length];
+        int count = 0;
+        for (long labelId : labelIds) {
+            Label label = labels[(int) labelId];
+            if (label != null && !contains(result, count, label)) result[count++] = label;
+        }
+        return count == result.length ? result : Arrays.copyOf(result, count);
+    }
+
+    // two labels can be renamed to the same name
+    private static boolean contains(Label[] labels, int count, Label label) {
+        for (int i = 0; i < count; i++) {
+            if (labels[i].name().equals(label.name())) return true;
+        }
+        return false;
+    }
+
+    boolean ignoresType(int typeId) {
+        return ignoreTypes[typeId];
+    }
+
+    RelationshipType type(int typeId) {
+        return types[typeId];
+    }
+
+    /**
+     * @return the target key of the property key
+     */
+    String propertyKey(int keyId) {
+        return keys[keyId];
+    }
+
+    boolean keepsNodeProperty(int keyId, long[] labelIds, Value value) {
+        if (keys[keyId] == null) return false;
+        boolean[] ignoredOn = ignoreKeyOnLabel[keyId];
+        if (ignoredOn != null) {
+            for (long labelId : labelIds) {
+                if (ignoredOn[(int) labelId]) return false;
+            }
+        }
+        return (defaults[keyId] == null || !isDefault(keyId, value)) && (slimming == null || !slimming.drops(keyId, value));
+    }
+
+    boolean keepsRelationshipProperty(int keyId, int typeId, Value value) {
+        if (keys[keyId] == null) return false;
+        boolean[] ignoredOn = ignoreKeyOnType[keyId];
+        if (ignoredOn != null && ignoredOn[typeId]) return false;
+        return (defaults[keyId] == null || !isDefault(keyId, value)) && (slimming == null || !slimming.drops(keyId, value));
+    }
+
+    /**
+     * @return the value of a kept property as it is stored in the target
+     */
+    Value value(int keyId, Value value) {
+        return slimming == null ? value : slimming.slim(keyId, value);
+    }
+
+    /**
+     * Prints what the slimming rules changed so far.
+     */
+    void reportSlimming() {
+        if (slimming != null) slimming.report();
+    }
+
+    /**
+     * Forgets what the slimming rules changed so far, for a second pass over the same records.
+     */
+    void resetSlimmingReport() {
+        if (slimming != null) slimming.resetReport();
+    }
+
+    private static double number(String defaultValue) {
+        try {
+            return Double.parseDouble(defaultValue);
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    private boolean isDefault(int keyId, Value value) {
+        // a default that is no number is NaN, which equals no value
+        if (value instanceof NumberValue) return ((NumberValue) value).doubleValue() == numberDefaults[keyId];
+        if (value instanceof BooleanValue) return String.valueOf(((BooleanValue) value).booleanValue()).equalsIgnoreCase(defaults[keyId]);
+        if (value instanceof TextValue) return ((TextValue) value).stringValue().equals(defaults[keyId]);
+        return false;
+    }
+}
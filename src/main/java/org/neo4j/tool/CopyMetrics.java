@@ -0,0 +1,183 @@
+package org.neo4j.tool;
+
+import org.neo4j.io.pagecache.monitoring.PageCacheCounters;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live metrics of a copy, exposed as the MBean {@code org.neo4j.tool:type=StoreCopy} and rewritten every
+ * {@code progress_interval} seconds to {@link #PROGRESS_FILE} in the log directory.
+ * <p>
+ * The copy loops report their position with {@link #update} every few thousand records, a background thread
+ * samples it once a second to compute the throughput over a moving window. Page cache counters are only
+ * available for the source, the BatchInserter and the parallel importer create their page caches without tracer.
+ */
+class CopyMetrics implements CopyMetricsMBean, AutoCloseable {
+    static final String PROGRESS_FILE = "store-copy-progress.json";
+    static final int WINDOW_SECONDS = 10;
+    private static final String OBJECT_NAME = "org.neo4j.tool:type=StoreCopy";
+
+    private final StoreReader source;
+    private final BadEntryLog badEntries;
+    private final File progressFile;
+    private final ScheduledExecutorService scheduler;
+    private ObjectName objectName;
+
+    private volatile String phase = "starting";
+    private volatile long highestId;
+    private volatile long processed;
+    private volatile long unused;
+    private volatile long removed;
+
+    // processed records at the last samples, one per second, written by the scheduler only
+    private final long[] samples = new long[WINDOW_SECONDS + 1];
+    private int sampleCount;
+    private volatile double recordsPerSecond;
+
+    /**
+     * @param progressInterval seconds between writes of the progress file, 0 for no progress file
+     */
+    CopyMetrics(StoreReader source, BadEntryLog badEntries, File logDir, int progressInterval) {
+        this.source = source;
+        this.badEntries = badEntries;
+        this.progressFile = progressInterval > 0 ? new File(logDir, PROGRESS_FILE) : null;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "store-copy-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleAtFixedRate(this::sample, 1, 1, TimeUnit.SECONDS);
+        if (progressFile != null) {
+            scheduler.scheduleAtFixedRate(this::writeProgress, progressInterval, progressInterval, TimeUnit.SECONDS);
+        }
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            System.out.println("Could not register " + OBJECT_NAME + ": " + e.getMessage());
+            objectName = null;
+        }
+    }
+
+    /**
+     * Starts a new phase, e.g. nodes or relationships, which processes the records up to the highest id.
+     */
+    void phase(String phase, long highestId) {
+        this.highestId = highestId;
+        this.processed = 0;
+        this.unused = 0;
+        this.removed = 0;
+        this.phase = phase;
+    }
+
+    /**
+     * Reports the position of the current phase, called from the copying threads.
+     */
+    void update(long processed, long unused, long removed) {
+        this.processed = processed;
+        this.unused = unused;
+        this.removed = removed;
+        source.reportPageCacheEvents();
+    }
+
+    private synchronized void sample() {
+        long current = processed;
+        if (sampleCount > 0 && current < samples[(sampleCount - 1) % samples.length]) {
+            sampleCount = 0; // a new phase started
+        }
+        samples[sampleCount % samples.length] = current;
+        sampleCount++;
+        int window = Math.min(sampleCount, samples.length) - 1;
+        long oldest = samples[(sampleCount - 1 - window) % samples.length];
+        recordsPerSecond = window == 0 ? 0 : (double) (current - oldest) / window;
+    }
+
+    private void writeProgress() {
+        File temp = new File(progressFile.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(temp)) {
+            out.println(toJson());
+        } catch (IOException e) {
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), progressFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            // the next write tries again
+        }
+    }
+
+    String toJson() {
+        return String.format(Locale.ROOT, "{\"phase\":\"%s\",\"highest_id\":%d,\"processed\":%d,\"unused\":%d,\"removed\":%d,\"errors\":%d," +
+                        "\"records_per_second\":%.1f,\"phase_eta_seconds\":%d," +
+                        "\"source_page_cache\":{\"hits\":%d,\"faults\":%d,\"evictions\":%d,\"hit_ratio\":%.3f}," +
+                        "\"heap_used\":%d,\"heap_max\":%d,\"gc_count\":%d,\"gc_time_ms\":%d,\"timestamp\":%d}",
+                getPhase(), getHighestId(), getProcessed(), getUnused(), getRemoved(), getErrors(),
+                getRecordsPerSecond(), getPhaseEtaSeconds(),
+                getSourcePageCacheHits(), getSourcePageCacheFaults(), getSourcePageCacheEvictions(), getSourcePageCacheHitRatio(),
+                getHeapUsed(), getHeapMax(), getGcCount(), getGcTimeMillis(), System.currentTimeMillis());
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        phase = "done";
+        if (progressFile != null) writeProgress();
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                // already gone
+            }
+        }
+    }
+
+    @Override public String getPhase() { return phase; }
+    @Override public long getHighestId() { return highestId; }
+    @Override public long getProcessed() { return processed; }
+    @Override public long getUnused() { return unused; }
+    @Override public long getRemoved() { return removed; }
+    @Override public long getErrors() { return badEntries.count(); }
+    @Override public double getRecordsPerSecond() { return recordsPerSecond; }
+
+    @Override
+    public long getPhaseEtaSeconds() {
+        double rate = recordsPerSecond;
+        return rate <= 0 ? -1 : (long) (Math.max(0, highestId + 1 - processed) / rate);
+    }
+
+    private PageCacheCounters sourcePageCache() {
+        return source.pageCacheCounters();
+    }
+
+    @Override public long getSourcePageCacheHits() { return sourcePageCache().hits(); }
+    @Override public long getSourcePageCacheFaults() { return sourcePageCache().faults(); }
+    @Override public long getSourcePageCacheEvictions() { return sourcePageCache().evictions(); }
+    @Override public double getSourcePageCacheHitRatio() { return sourcePageCache().hitRatio(); }
+    @Override public long getHeapUsed() { return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed(); }
+    @Override public long getHeapMax() { return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getMax(); }
+
+    @Override
+    public long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) count += Math.max(0, gc.getCollectionCount());
+        return count;
+    }
+
+    @Override
+    public long getGcTimeMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) time += Math.max(0, gc.getCollectionTime());
+        return time;
+    }
+}
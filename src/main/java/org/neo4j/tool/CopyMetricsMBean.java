@@ -0,0 +1,44 @@
+package org.neo4j.tool;
+
+/**
+ * Live metrics of a running {@link StoreCopy}, registered as {@code org.neo4j.tool:type=StoreCopy}.
+ */
+public interface CopyMetricsMBean {
+    String getPhase();
+
+    long getHighestId();
+
+    long getProcessed();
+
+    long getUnused();
+
+    long getRemoved();
+
+    long getErrors();
+
+    /**
+     * @return records per second of the current phase over the last {@value CopyMetrics#WINDOW_SECONDS} seconds
+     */
+    double getRecordsPerSecond();
+
+    /**
+     * @return estimated seconds until the current phase is done, -1 if unknown
+     */
+    long getPhaseEtaSeconds();
+
+    long getSourcePageCacheHits();
+
+    long getSourcePageCacheFaults();
+
+    long getSourcePageCacheEvictions();
+
+    double getSourcePageCacheHitRatio();
+
+    long getHeapUsed();
+
+    long getHeapMax();
+
+    long getGcCount();
+
+    long getGcTimeMillis();
+}
@@ -0,0 +1,449 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.values.AnyValue;
+import org.neo4j.values.storable.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Alternative to a copy, exports the source store as CSV files for {@code neo4j-admin import}, filtered and renamed
+ * with the copy rules. Node and relationship id ranges of {@code chunkSize} ids are read concurrently by
+ * {@code threads}, each through its own {@link StoreReader.RecordCursor}, and streamed into one data file per range,
+ * e.g. {@code nodes-00003.csv.gz}, so that only the rows being written are held in memory.
+ * <p>
+ * The header files {@code nodes-header.csv} and {@code relationships-header.csv} name the type of every column, they
+ * need a first pass over the properties, which also marks the exported nodes for the relationships. A key with
+ * values of different types gets the widest number type, or is exported as string. {@code import.sh} holds the
+ * import command for all files, {@code schema.cypher} the statements recreating the indexes and constraints.
+ */
+class CsvExport {
+    static final String IMPORT_SCRIPT = "import.sh";
+    static final String SCHEMA_FILE = "schema.cypher";
+    private static final char ARRAY_DELIMITER = ';';
+    private static final List<String> INTEGRAL = Arrays.asList("byte", "short", "int", "long");
+    private static final Set<String> IMPORTED_ARRAYS = new HashSet<>(Arrays.asList("string[]", "boolean[]", "byte[]", "short[]", "int[]", "long[]", "float[]", "double[]"));
+
+    private final StoreReader reader;
+    private final CopyFilter filter;
+    private final File directory;
+    private final long chunkSize;
+    private final int threads;
+    private final boolean compress;
+    private final BadEntryLog badEntries;
+    private final CopyMetrics metrics;
+
+    private final long highestNodeId;
+    private final long highestRelId;
+    private final ParallelStoreCopy.ConcurrentBitSet exportedNodes;
+    private final Map<String, String> nodeColumns = new TreeMap<>();
+    private final Map<String, String> relationshipColumns = new TreeMap<>();
+    private final Map<Integer, File> nodeFiles = new TreeMap<>();
+    private final Map<Integer, File> relationshipFiles = new TreeMap<>();
+
+    private final LongAdder nodesNotFound = new LongAdder();
+    private final LongAdder nodesRemoved = new LongAdder();
+    private final LongAdder relsNotFound = new LongAdder();
+    private final LongAdder relsRemoved = new LongAdder();
+    private final LongAdder nodesExported = new LongAdder();
+    private final LongAdder relsExported = new LongAdder();
+    private final LongAdder emptyArrays = new LongAdder();
+
+    private CsvExport(StoreReader reader, File directory, long highestNodeId, long highestRelId, CopyFilter filter, int threads, long chunkSize,
+                      boolean compress, BadEntryLog badEntries, CopyMetrics metrics) {
+        this.reader = reader;
+        this.directory = directory;
+        this.highestNodeId = highestNodeId;
+        this.highestRelId = highestRelId;
+        this.filter = filter;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = chunkSize;
+        this.compress = compress;
+        this.badEntries = badEntries;
+        this.metrics = metrics;
+        this.exportedNodes = new ParallelStoreCopy.ConcurrentBitSet(highestNodeId + 1);
+    }
+
+    /**
+     * @param stableNodeIds import the nodes with their source ids instead of renumbering them
+     */
+    static void export(StoreReader reader, File directory, long highestNodeId, long highestRelId, CopyFilter.Rules rules, boolean stableNodeIds,
+                       int threads, long chunkSize, boolean compress, SchemaCopy schema, BadEntryLog badEntries, CopyMetrics metrics) throws Exception {
+        CsvExport export = new CsvExport(reader, directory, highestNodeId, highestRelId, rules.compile(reader), threads, chunkSize, compress, badEntries, metrics);
+        long time = System.currentTimeMillis();
+        export.forEachRange("scanning nodes", highestNodeId, export.nodesNotFound, export.nodesRemoved, export::scanNodes);
+        export.forEachRange("scanning relationships", highestRelId, export.relsNotFound, export.relsRemoved, export::scanRelationships);
+        // the export passes report the slimmed values again
+        export.filter.resetSlimmingReport();
+        export.writeHeader("nodes-header.csv", ":ID", export.nodeColumns, ":LABEL");
+        export.writeHeader("relationships-header.csv", ":START_ID,:END_ID,:TYPE", export.relationshipColumns, null);
+        export.forEachRange("exporting nodes", highestNodeId, export.nodesNotFound, export.nodesRemoved, export::exportNodes);
+        export.forEachRange("exporting relationships", highestRelId, export.relsNotFound, export.relsRemoved, export::exportRelationships);
+        export.writeImportScript(stableNodeIds);
+        schema.write(new File(directory, SCHEMA_FILE), badEntries);
+        if (export.emptyArrays.sum() > 0) badEntries.message(export.emptyArrays.sum() + " empty array properties can not be imported from CSV and were not exported");
+        time = Math.max(1, (System.currentTimeMillis() - time) / 1000);
+        System.out.printf("%n exporting %d nodes into %d files and %d relationships into %d files took %d seconds. Removed nodes %d, removed relationships %d%n",
+                export.nodesExported.sum(), export.nodeFiles.size(), export.relsExported.sum(), export.relationshipFiles.size(), time,
+                export.nodesRemoved.sum(), export.relsRemoved.sum());
+        export.filter.reportSlimming();
+        System.out.printf(" import the files with %s, then create the schema with %s%n", new File(directory, IMPORT_SCRIPT), new File(directory, SCHEMA_FILE));
+    }
+
+    private interface RangeTask {
+        void run(StoreReader.RecordCursor cursor, long from, long to, int chunk) throws IOException;
+    }
+
+    /**
+     * Hands out consecutive id ranges of {@link #chunkSize} to the threads, each reads its ranges through its own cursor.
+     * The unused and removed records are counted by the first pass only.
+     */
+    private void forEachRange(String phase, long highestId, LongAdder notFound, LongAdder removed, RangeTask task) throws Exception {
+        metrics.phase(phase, highestId);
+        AtomicLong nextId = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            futures.add(executor.submit(() -> {
+                try (StoreReader.RecordCursor cursor = reader.newCursor()) {
+                    long from;
+                    while ((from = nextId.getAndAdd(chunkSize)) <= highestId) {
+                        metrics.update(from, notFound.sum(), removed.sum());
+                        task.run(cursor, from, Math.min(from + chunkSize, highestId + 1), (int) (from / chunkSize));
+                    }
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) future.get();
+        metrics.update(highestId + 1, notFound.sum(), removed.sum());
+    }
+
+    private void scanNodes(StoreReader.RecordCursor cursor, long from, long to, int chunk) {
+        Map<String, String> columns = new HashMap<>();
+        for (long node = from; node < to; node++) {
+            try {
+                if (!cursor.node(node)) {
+                    nodesNotFound.increment();
+                    continue;
+                }
+                long[] labelIds = cursor.labelIds();
+                if (filter.deletesNode(labelIds)) {
+                    nodesRemoved.increment();
+                    continue;
+                }
+                for (int i = 0, count = cursor.nodeProperties(); i < count; i++) {
+                    int keyId = cursor.propertyKeyId(i);
+                    Value value = cursor.propertyValue(i);
+                    if (filter.keepsNodeProperty(keyId, labelIds, value)) columns.merge(filter.propertyKey(keyId), typeOf(filter.value(keyId, value)), CsvExport::widen);
+                }
+            } catch (Exception e) {
+                badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                continue;
+            }
+            exportedNodes.set(node);
+        }
+        merge(nodeColumns, columns);
+    }
+
+    private void scanRelationships(StoreReader.RecordCursor cursor, long from, long to, int chunk) {
+        Map<String, String> columns = new HashMap<>();
+        for (long rel = from; rel < to; rel++) {
+            try {
+                if (!cursor.relationship(rel)) {
+                    relsNotFound.increment();
+                    continue;
+                }
+                int typeId = cursor.typeId();
+                if (filter.ignoresType(typeId) || !exportedNodes.get(cursor.startNode()) || !exportedNodes.get(cursor.endNode())) {
+                    relsRemoved.increment();
+                    continue;
+                }
+                for (int i = 0, count = cursor.relationshipProperties(); i < count; i++) {
+                    int keyId = cursor.propertyKeyId(i);
+                    Value value = cursor.propertyValue(i);
+                    if (filter.keepsRelationshipProperty(keyId, typeId, value)) columns.merge(filter.propertyKey(keyId), typeOf(filter.value(keyId, value)), CsvExport::widen);
+                }
+            } catch (Exception e) {
+                // reported by the export of the relationship
+            }
+        }
+        merge(relationshipColumns, columns);
+    }
+
+    private static void merge(Map<String, String> columns, Map<String, String> chunkColumns) {
+        synchronized (columns) {
+            chunkColumns.forEach((key, type) -> columns.merge(key, type, CsvExport::widen));
+        }
+    }
+
+    private void exportNodes(StoreReader.RecordCursor cursor, long from, long to, int chunk) throws IOException {
+        Map<String, Integer> columns = columnIndexes(nodeColumns);
+        Value[] values = new Value[columns.size()];
+        StringBuilder row = new StringBuilder();
+        try (ChunkWriter writer = new ChunkWriter("nodes", chunk, nodeFiles)) {
+            for (long node = from; node < to; node++) {
+                if (!exportedNodes.get(node)) continue;
+                row.setLength(0);
+                try {
+                    if (!cursor.node(node)) continue;
+                    long[] labelIds = cursor.labelIds();
+                    Arrays.fill(values, null);
+                    for (int i = 0, count = cursor.nodeProperties(); i < count; i++) {
+                        int keyId = cursor.propertyKeyId(i);
+                        Value value = cursor.propertyValue(i);
+                        if (filter.keepsNodeProperty(keyId, labelIds, value)) values[columns.get(filter.propertyKey(keyId))] = filter.value(keyId, value);
+                    }
+                    row.append(node);
+                    appendValues(row, values);
+                    row.append(',');
+                    appendLabels(row, filter.labels(labelIds));
+                } catch (Exception e) {
+                    badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                    continue;
+                }
+                writer.write(row);
+                nodesExported.increment();
+            }
+        }
+    }
+
+    private void exportRelationships(StoreReader.RecordCursor cursor, long from, long to, int chunk) throws IOException {
+        Map<String, Integer> columns = columnIndexes(relationshipColumns);
+        Value[] values = new Value[columns.size()];
+        StringBuilder row = new StringBuilder();
+        try (ChunkWriter writer = new ChunkWriter("relationships", chunk, relationshipFiles)) {
+            for (long rel = from; rel < to; rel++) {
+                row.setLength(0);
+                try {
+                    if (!cursor.relationship(rel)) continue;
+                    int typeId = cursor.typeId();
+                    long startNode = cursor.startNode(), endNode = cursor.endNode();
+                    if (filter.ignoresType(typeId) || !exportedNodes.get(startNode) || !exportedNodes.get(endNode)) continue;
+                    Arrays.fill(values, null);
+                    for (int i = 0, count = cursor.relationshipProperties(); i < count; i++) {
+                        int keyId = cursor.propertyKeyId(i);
+                        Value value = cursor.propertyValue(i);
+                        if (filter.keepsRelationshipProperty(keyId, typeId, value)) values[columns.get(filter.propertyKey(keyId))] = filter.value(keyId, value);
+                    }
+                    row.append(startNode).append(',').append(endNode).append(',');
+                    appendQuoted(row, filter.type(typeId).name());
+                    appendValues(row, values);
+                } catch (Exception e) {
+                    badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, rel, e);
+                    continue;
+                }
+                writer.write(row);
+                relsExported.increment();
+            }
+        }
+    }
+
+    private static Map<String, Integer> columnIndexes(Map<String, String> columns) {
+        Map<String, Integer> indexes = new HashMap<>();
+        for (String key : columns.keySet()) indexes.put(key, indexes.size());
+        return indexes;
+    }
+
+    /**
+     * Writes the rows of one id range, the file is only created with the first row.
+     */
+    private class ChunkWriter implements Closeable {
+        private final String prefix;
+        private final int chunk;
+        private final Map<Integer, File> files;
+        private Writer out;
+
+        ChunkWriter(String prefix, int chunk, Map<Integer, File> files) {
+            this.prefix = prefix;
+            this.chunk = chunk;
+            this.files = files;
+        }
+
+        void write(CharSequence row) throws IOException {
+            if (out == null) {
+                File file = new File(directory, String.format("%s-%05d.csv%s", prefix, chunk, compress ? ".gz" : ""));
+                OutputStream stream = new FileOutputStream(file);
+                out = new BufferedWriter(new OutputStreamWriter(compress ? new GZIPOutputStream(stream, 1 << 16) : stream, StandardCharsets.UTF_8), 1 << 16);
+                synchronized (files) {
+                    files.put(chunk, file);
+                }
+            }
+            out.append(row).append('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (out != null) out.close();
+        }
+    }
+
+    private void writeHeader(String name, String idColumns, Map<String, String> columns, String lastColumn) throws IOException {
+        StringBuilder header = new StringBuilder(idColumns);
+        columns.forEach((key, type) -> {
+            header.append(',');
+            if (type.endsWith("[]") && !IMPORTED_ARRAYS.contains(type)) {
+                badEntries.message("Property " + key + " of type " + type + " is exported as string[], neo4j-admin import reads no arrays of its type");
+                type = "string[]";
+            }
+            String column = key + ":" + type;
+            if (column.indexOf(',') >= 0 || column.indexOf('"') >= 0) appendQuoted(header, column); else header.append(column);
+        });
+        if (lastColumn != null) header.append(',').append(lastColumn);
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(directory, name)), StandardCharsets.UTF_8)) {
+            out.append(header).append('\n');
+        }
+    }
+
+    private void writeImportScript(boolean stableNodeIds) throws IOException {
+        File script = new File(directory, IMPORT_SCRIPT);
+        try (PrintWriter out = new PrintWriter(new FileWriter(script))) {
+            out.println("#!/bin/sh");
+            out.println("# imports the export into a new database, run from the neo4j home directory: " + IMPORT_SCRIPT + " [database-name]");
+            out.printf("neo4j-admin import --database=${1:-graph.db} --id-type=%s --multiline-fields=true --array-delimiter='%s' \\%n",
+                    stableNodeIds ? "ACTUAL" : "INTEGER", ARRAY_DELIMITER);
+            out.printf("  --nodes=\"%s\" \\%n", fileList("nodes-header.csv", nodeFiles));
+            out.printf("  --relationships=\"%s\"%n", fileList("relationships-header.csv", relationshipFiles));
+        }
+        script.setExecutable(true);
+    }
+
+    private String fileList(String header, Map<Integer, File> files) {
+        StringBuilder list = new StringBuilder(new File(directory, header).getAbsolutePath());
+        for (File file : files.values()) list.append(',').append(file.getAbsolutePath());
+        return list.toString();
+    }
+
+    /**
+     * An empty array reads back as no value, so it is left out and counted.
+     */
+    private void appendValues(StringBuilder row, Value[] values) {
+        for (Value value : values) {
+            row.append(',');
+            if (value instanceof ArrayValue && ((ArrayValue) value).length() == 0) emptyArrays.increment();
+            else if (value != null) appendValue(row, value);
+        }
+    }
+
+    private static void appendLabels(StringBuilder row, Label[] labels) {
+        if (labels.length == 0) return;
+        StringBuilder names = new StringBuilder();
+        for (Label label : labels) {
+            if (names.length() > 0) names.append(ARRAY_DELIMITER);
+            names.append(label.name());
+        }
+        appendQuoted(row, names);
+    }
+
+    /**
+     * Numbers and booleans are written as they are, all other values quoted, arrays as their delimited elements.
+     * Values of a column exported as string are written the same way and read back as their text.
+     */
+    static void appendValue(StringBuilder row, Value value) {
+        if (value instanceof NumberValue || value instanceof BooleanValue) {
+            row.append(value.prettyPrint());
+        } else if (value instanceof ArrayValue) {
+            StringBuilder elements = new StringBuilder();
+            for (AnyValue element : (ArrayValue) value) {
+                if (elements.length() > 0) elements.append(ARRAY_DELIMITER);
+                elements.append(text((Value) element));
+            }
+            appendQuoted(row, elements);
+        } else {
+            appendQuoted(row, text(value));
+        }
+    }
+
+    private static String text(Value value) {
+        if (value instanceof TextValue) return ((TextValue) value).stringValue();
+        if (value instanceof CharValue) return String.valueOf(((CharValue) value).value());
+        if (value instanceof PointValue) {
+            PointValue point = (PointValue) value;
+            double[] coordinate = point.coordinate();
+            StringBuilder map = new StringBuilder("{crs:'").append(point.getCoordinateReferenceSystem().getName()).append("',x:").append(coordinate[0]).append(",y:").append(coordinate[1]);
+            if (coordinate.length > 2) map.append(",z:").append(coordinate[2]);
+            return map.append('}').toString();
+        }
+        return value.prettyPrint();
+    }
+
+    private static void appendQuoted(StringBuilder row, CharSequence text) {
+        row.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"') row.append('"');
+            row.append(c);
+        }
+        row.append('"');
+    }
+
+    /**
+     * @return the import type of the value, e.g. {@code int} or {@code string[]}
+     */
+    static String typeOf(Value value) {
+        switch (value.valueGroup()) {
+            case NUMBER: return numberType(value);
+            case NUMBER_ARRAY:
+                if (value instanceof ByteArray) return "byte[]";
+                if (value instanceof ShortArray) return "short[]";
+                if (value instanceof IntArray) return "int[]";
+                if (value instanceof LongArray) return "long[]";
+                if (value instanceof FloatArray) return "float[]";
+                return "double[]";
+            case TEXT: return value instanceof CharValue ? "char" : "string";
+            case TEXT_ARRAY: return value instanceof CharArray ? "char[]" : "string[]";
+            case BOOLEAN: return "boolean";
+            case BOOLEAN_ARRAY: return "boolean[]";
+            case GEOMETRY: return "point";
+            case GEOMETRY_ARRAY: return "point[]";
+            case DATE: return "date";
+            case DATE_ARRAY: return "date[]";
+            case LOCAL_TIME: return "localtime";
+            case LOCAL_TIME_ARRAY: return "localtime[]";
+            case ZONED_TIME: return "time";
+            case ZONED_TIME_ARRAY: return "time[]";
+            case LOCAL_DATE_TIME: return "localdatetime";
+            case LOCAL_DATE_TIME_ARRAY: return "localdatetime[]";
+            case ZONED_DATE_TIME: return "datetime";
+            case ZONED_DATE_TIME_ARRAY: return "datetime[]";
+            case DURATION: return "duration";
+            case DURATION_ARRAY: return "duration[]";
+            default: return "string";
+        }
+    }
+
+    private static String numberType(Value value) {
+        if (value instanceof ByteValue) return "byte";
+        if (value instanceof ShortValue) return "short";
+        if (value instanceof IntValue) return "int";
+        if (value instanceof LongValue) return "long";
+        if (value instanceof FloatValue) return "float";
+        return "double";
+    }
+
+    /**
+     * @return the type of a column with values of both types, the wider number type or string
+     */
+    static String widen(String type, String other) {
+        if (type.equals(other)) return type;
+        boolean array = type.endsWith("[]");
+        if (array != other.endsWith("[]")) return "string";
+        String suffix = array ? "[]" : "";
+        String element = type.substring(0, type.length() - suffix.length()), otherElement = other.substring(0, other.length() - suffix.length());
+        int rank = INTEGRAL.indexOf(element), otherRank = INTEGRAL.indexOf(otherElement);
+        if (rank >= 0 && otherRank >= 0) return INTEGRAL.get(Math.max(rank, otherRank)) + suffix;
+        boolean number = rank >= 0 || element.equals("float") || element.equals("double");
+        boolean otherNumber = otherRank >= 0 || otherElement.equals("float") || otherElement.equals("double");
+        if (number && otherNumber) return "double" + suffix;
+        return "string" + suffix;
+    }
+}
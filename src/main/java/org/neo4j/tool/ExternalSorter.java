@@ -0,0 +1,211 @@
+package org.neo4j.tool;
+
+import org.neo4j.io.fs.FileUtils;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * External sort of entries of a fixed number of longs, in the order of their first long, then the second and so on.
+ * Entries are buffered in a long array, full buffers are sorted and written as runs into a scratch directory and
+ * merged when reading. If everything fits into one buffer nothing is written. At most {@link #MAX_MERGED_RUNS} runs are
+ * open at a time, more runs are first merged in passes into longer runs, so that the open files and their read
+ * buffers stay bounded however large the input.
+ * <p>
+ * Usage: {@link #add} all entries, then {@link #next} through the sorted entries.
+ */
+class ExternalSorter implements AutoCloseable {
+    static final int MAX_MERGED_RUNS = 64;
+    private static final int IO_BUFFER = 1 << 16;
+
+    private final int entryLongs;
+
+    private final File directory;
+    private final long[] buffer;
+    private int size;
+    private final List<File> runs = new ArrayList<>();
+    private int runFiles;
+
+    private PriorityQueue<Run> merge;
+    private int position;
+    private final long[] current;
+
+    /**
+     * @param entryLongs number of longs of an entry
+     * @param bufferEntries number of entries sorted in memory
+     */
+    ExternalSorter(File directory, int entryLongs, int bufferEntries) {
+        this.entryLongs = entryLongs;
+        this.directory = directory;
+        this.buffer = new long[bufferEntries * entryLongs];
+        this.current = new long[entryLongs];
+        this.position = -entryLongs;
+    }
+
+    /**
+     * Adds a copy of the entry, which can be reused by the caller.
+     */
+    void add(long[] entry) throws IOException {
+        if (size == buffer.length) writeRun();
+        System.arraycopy(entry, 0, buffer, size, entryLongs);
+        size += entryLongs;
+    }
+
+    /**
+     * @return true if positioned on the next entry in sort order
+     */
+    boolean next() throws IOException {
+        if (runs.isEmpty()) {
+            if (position < 0) sort(buffer, 0, size - entryLongs);
+            position += entryLongs;
+            if (position >= size) return false;
+            System.arraycopy(buffer, position, current, 0, entryLongs);
+            return true;
+        }
+        if (merge == null) startMerge();
+        Run run = merge.poll();
+        if (run == null) return false;
+        System.arraycopy(run.entry, 0, current, 0, entryLongs);
+        if (run.read()) merge.add(run); else run.close();
+        return true;
+    }
+
+    /**
+     * @return the long at the index of the current entry
+     */
+    long get(int index) {
+        return current[index];
+    }
+
+    private void writeRun() throws IOException {
+        sort(buffer, 0, size - entryLongs);
+        File file = newRunFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER))) {
+            for (int i = 0; i < size; i++) out.writeLong(buffer[i]);
+        }
+        runs.add(file);
+        size = 0;
+    }
+
+    private File newRunFile() {
+        directory.mkdirs();
+        return new File(directory, "run-" + runFiles++);
+    }
+
+    private void startMerge() throws IOException {
+        if (size > 0) writeRun();
+        // the oldest runs are merged first, so that every entry is written about log(runs) / log(MAX_MERGED_RUNS) times
+        while (runs.size() > MAX_MERGED_RUNS) {
+            List<File> merged = new ArrayList<>(runs.subList(0, MAX_MERGED_RUNS));
+            runs.subList(0, MAX_MERGED_RUNS).clear();
+            File file = newRunFile();
+            PriorityQueue<Run> pass = open(merged);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IO_BUFFER))) {
+                Run run;
+                while ((run = pass.poll()) != null) {
+                    for (long value : run.entry) out.writeLong(value);
+                    if (run.read()) pass.add(run); else run.close();
+                }
+            } finally {
+                for (Run run : pass) run.close();
+            }
+            for (File run : merged) run.delete();
+            runs.add(file);
+        }
+        merge = open(runs);
+    }
+
+    private PriorityQueue<Run> open(List<File> files) throws IOException {
+        PriorityQueue<Run> queue = new PriorityQueue<>(files.size(), (a, b) -> compare(a.entry, 0, b.entry, 0));
+        for (File file : files) {
+            Run run = new Run(file, entryLongs);
+            if (run.read()) queue.add(run); else run.close();
+        }
+        return queue;
+    }
+
+    private int compare(long[] a, int i, long[] b, int j) {
+        for (int k = 0; k < entryLongs; k++) {
+            int c = Long.compare(a[i + k], b[j + k]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+
+    // quicksort of the entries between the entry offsets lo and hi, inclusive
+    private void sort(long[] a, int lo, int hi) {
+        while (hi - lo > 16 * entryLongs) {
+            int p = partition(a, lo, hi);
+            if (p - lo < hi - p) {
+                sort(a, lo, p - entryLongs);
+                lo = p + entryLongs;
+            } else {
+                sort(a, p + entryLongs, hi);
+                hi = p - entryLongs;
+            }
+        }
+        for (int i = lo + entryLongs; i <= hi; i += entryLongs) {
+            for (int j = i; j > lo && compare(a, j - entryLongs, a, j) > 0; j -= entryLongs) swap(a, j - entryLongs, j);
+        }
+    }
+
+    private int partition(long[] a, int lo, int hi) {
+        int mid = lo + ((hi - lo) / entryLongs / 2) * entryLongs;
+        // median of three as pivot, moved to hi
+        if (compare(a, mid, a, lo) < 0) swap(a, mid, lo);
+        if (compare(a, hi, a, lo) < 0) swap(a, hi, lo);
+        if (compare(a, mid, a, hi) < 0) swap(a, mid, hi);
+        int store = lo;
+        for (int i = lo; i < hi; i += entryLongs) {
+            if (compare(a, i, a, hi) < 0) {
+                swap(a, i, store);
+                store += entryLongs;
+            }
+        }
+        swap(a, store, hi);
+        return store;
+    }
+
+    private void swap(long[] a, int i, int j) {
+        for (int k = 0; k < entryLongs; k++) {
+            long t = a[i + k];
+            a[i + k] = a[j + k];
+            a[j + k] = t;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (merge != null) {
+            for (Run run : merge) run.close();
+        }
+        FileUtils.deleteRecursively(directory);
+    }
+
+    private static class Run implements Closeable {
+        private final DataInputStream in;
+        private final long[] entry;
+
+        Run(File file, int entryLongs) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IO_BUFFER));
+            entry = new long[entryLongs];
+        }
+
+        boolean read() throws IOException {
+            try {
+                entry[0] = in.readLong();
+            } catch (EOFException e) {
+                return false;
+            }
+            for (int k = 1; k < entry.length; k++) entry[k] = in.readLong();
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
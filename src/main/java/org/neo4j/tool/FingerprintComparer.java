@@ -0,0 +1,383 @@
+package org.neo4j.tool;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.neo4j.graphdb.*;
+import org.neo4j.helpers.collection.Iterables;
+import org.neo4j.io.fs.FileUtils;
+import org.neo4j.values.storable.Values;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.TreeMap;
+
+/**
+ * Compares a copy with its source by content instead of by node id, for copies made with {@code keep_node_ids=false}.
+ * <p>
+ * The nodes of both stores are matched by a fingerprint of their labels and their not ignored properties, which does
+ * not depend on the order of either. The (fingerprint, node id) pairs of both stores are sorted externally and joined:
+ * a fingerprint of one node on both sides maps the source node to the target node, fingerprints shared by as many
+ * nodes on both sides are ambiguous and paired in id order, which a compacting copy keeps, fingerprints of one side
+ * only are missing or additional nodes, other ambiguous fingerprints are reported and their nodes left unmatched.
+ * <p>
+ * The relationships of both stores are then translated through the node correspondence, by two external sort joins
+ * with the id mapping, one for the start and one for the end nodes, and diffed as sorted multisets of (start node,
+ * end node, type, property fingerprint). Relationships of unmatched nodes are counted and left out on both sides.
+ * All sorts spill to {@code -Dcompare_scratch_dir}, only {@code -Dcompare_sort_buffer} entries per sort, by default
+ * sized from the heap, and the nodes of one fingerprint are held in memory.
+ */
+class FingerprintComparer {
+    private static final int GROUP_REPORTED = 10;
+    // sorts open at the same time, with up to 5 longs per entry
+    private static final int OPEN_SORTS = 8;
+
+    private final GraphDatabaseService sourceDb;
+    private final GraphDatabaseService targetDb;
+    private final Set<String> ignoreRelTypes;
+    private final Set<String> ignoreProperties;
+    private final int threads;
+    private final File directory;
+    private final int bufferEntries;
+
+    private FingerprintComparer(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties,
+                                int threads, File directory, int bufferEntries) {
+        this.sourceDb = sourceDb;
+        this.targetDb = targetDb;
+        this.ignoreRelTypes = ignoreRelTypes;
+        this.ignoreProperties = ignoreProperties;
+        this.threads = threads;
+        this.directory = directory;
+        this.bufferEntries = bufferEntries;
+    }
+
+    /**
+     * @param directory scratch directory of the sorts, deleted afterwards
+     * @param bufferEntries number of entries each sort holds in memory
+     * @return the node and the relationship comparison
+     */
+    static StoreComparer.Comparison[] compare(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties,
+                                              int threads, File directory, int bufferEntries) throws IOException {
+        FingerprintComparer comparer = new FingerprintComparer(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads, directory, bufferEntries);
+        try (ExternalSorter sourceByStart = comparer.sorter("source-map-start", 2);
+             ExternalSorter sourceByEnd = comparer.sorter("source-map-end", 2);
+             ExternalSorter targetByStart = comparer.sorter("target-map-start", 2);
+             ExternalSorter targetByEnd = comparer.sorter("target-map-end", 2)) {
+            StoreComparer.Comparison nodes = comparer.matchNodes(sourceByStart, sourceByEnd, targetByStart, targetByEnd);
+            StoreComparer.Comparison relationships = comparer.compareRelationships(sourceByStart, sourceByEnd, targetByStart, targetByEnd);
+            return new StoreComparer.Comparison[]{nodes, relationships};
+        } finally {
+            FileUtils.deleteRecursively(directory);
+        }
+    }
+
+    /**
+     * @return the entries per sort, so that all open sorts together take about a quarter of the heap
+     */
+    static int defaultSortBuffer() {
+        long entries = Runtime.getRuntime().maxMemory() / 4 / (OPEN_SORTS * 5 * Long.BYTES);
+        return (int) Math.max(1 << 16, Math.min(1 << 24, entries));
+    }
+
+    private ExternalSorter sorter(String name, int entryLongs) {
+        return new ExternalSorter(new File(directory, name), entryLongs, bufferEntries);
+    }
+
+    /**
+     * Joins the sorted fingerprints of both stores and writes the matched node pairs into the id mappings, the source
+     * ones from source to target id, the target ones from target id to itself.
+     */
+    private StoreComparer.Comparison matchNodes(ExternalSorter sourceByStart, ExternalSorter sourceByEnd, ExternalSorter targetByStart, ExternalSorter targetByEnd) throws IOException {
+        long time = System.currentTimeMillis();
+        StoreComparer.Comparison result = new StoreComparer.Comparison();
+        long matched = 0, ambiguous = 0, unmatched = 0;
+        try (ExternalSorter sourceNodes = fingerprints(sourceDb, "source-nodes");
+             ExternalSorter targetNodes = fingerprints(targetDb, "target-nodes")) {
+            LongArrayList sourceGroup = new LongArrayList(), targetGroup = new LongArrayList();
+            long[] key = new long[1], entry = new long[2];
+            boolean hasSource = sourceNodes.next(), hasTarget = targetNodes.next();
+            while (hasSource || hasTarget) {
+                smallerKey(sourceNodes, hasSource, targetNodes, hasTarget, key);
+                hasSource = group(sourceNodes, hasSource, key, 2, sourceGroup);
+                hasTarget = group(targetNodes, hasTarget, key, 2, targetGroup);
+                result.compared += sourceGroup.size();
+                if (sourceGroup.size() == targetGroup.size()) {
+                    if (sourceGroup.size() > 1) ambiguous += sourceGroup.size();
+                    for (int i = 0; i < sourceGroup.size(); i++) {
+                        long sourceNode = sourceGroup.get(i), targetNode = targetGroup.get(i);
+                        entry[0] = sourceNode;
+                        entry[1] = targetNode;
+                        sourceByStart.add(entry);
+                        sourceByEnd.add(entry);
+                        entry[0] = targetNode;
+                        targetByStart.add(entry);
+                        targetByEnd.add(entry);
+                    }
+                    matched += sourceGroup.size();
+                } else if (targetGroup.isEmpty()) {
+                    for (int i = 0; i < sourceGroup.size(); i++) {
+                        long node = sourceGroup.get(i);
+                        result.difference(() -> "Missing " + describe(sourceDb, node) + " in the target");
+                    }
+                } else if (sourceGroup.isEmpty()) {
+                    for (int i = 0; i < targetGroup.size(); i++) {
+                        long node = targetGroup.get(i);
+                        result.difference(() -> "Additional " + describe(targetDb, node) + " in the target");
+                    }
+                } else {
+                    unmatched += sourceGroup.size() + targetGroup.size();
+                    result.difference(() -> String.format("Ambiguous %d source nodes %s and %d target nodes %s with the content of %s", sourceGroup.size(), ids(sourceGroup),
+                            targetGroup.size(), ids(targetGroup), describe(sourceDb, sourceGroup.get(0))));
+                }
+            }
+        }
+        result.print();
+        System.out.printf("%n matched %d nodes by fingerprint, %d of them ambiguous and paired in id order, %d nodes of ambiguous fingerprints left unmatched%n", matched, ambiguous, unmatched);
+        System.out.println("\n comparing of " + result.compared + " nodes by fingerprint took " + (System.currentTimeMillis() - time) + " ms.");
+        return result;
+    }
+
+    /**
+     * @return the sorted (fingerprint, node id) pairs of all nodes of the database
+     */
+    private ExternalSorter fingerprints(GraphDatabaseService db, String name) {
+        ExternalSorter sorter = sorter(name, 2);
+        StoreComparer.forEachRange(db, threads, () -> null, (from, to, result) -> {
+            LongArrayList entries = new LongArrayList();
+            try (Transaction tx = db.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    Node node = StoreComparer.nodeOrNull(db, id);
+                    if (node == null) continue;
+                    entries.add(fingerprint(node));
+                    entries.add(id);
+                }
+                tx.success();
+            }
+            addAll(sorter, entries, 2);
+        });
+        return sorter;
+    }
+
+    private long fingerprint(Node node) {
+        long labels = 0;
+        for (Label label : node.getLabels()) labels += CopyDigest.name(label.name());
+        return labels * 0x9E3779B97F4A7C15L + properties(node);
+    }
+
+    private long properties(PropertyContainer pc) {
+        long fingerprint = 0;
+        for (Map.Entry<String, Object> property : pc.getAllProperties().entrySet()) {
+            if (!ignoreProperties.contains(property.getKey().toLowerCase())) fingerprint += CopyDigest.property(property.getKey(), Values.of(property.getValue()));
+        }
+        return fingerprint;
+    }
+
+    private static void addAll(ExternalSorter sorter, LongArrayList entries, int entryLongs) {
+        long[] entry = new long[entryLongs];
+        synchronized (sorter) {
+            try {
+                for (int i = 0; i < entries.size(); i += entryLongs) {
+                    for (int k = 0; k < entryLongs; k++) entry[k] = entries.get(i + k);
+                    sorter.add(entry);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private StoreComparer.Comparison compareRelationships(ExternalSorter sourceByStart, ExternalSorter sourceByEnd, ExternalSorter targetByStart, ExternalSorter targetByEnd) throws IOException {
+        long time = System.currentTimeMillis();
+        StoreComparer.Comparison result = new StoreComparer.Comparison();
+        long[] leftOut = new long[2];
+        try (ExternalSorter source = translate(sourceDb, "source", sourceByStart, sourceByEnd, leftOut, 0);
+             ExternalSorter target = translate(targetDb, "target", targetByStart, targetByEnd, leftOut, 1)) {
+            LongArrayList sourceGroup = new LongArrayList(), targetGroup = new LongArrayList();
+            long[] key = new long[3];
+            boolean hasSource = source.next(), hasTarget = target.next();
+            while (hasSource || hasTarget) {
+                smallerKey(source, hasSource, target, hasTarget, key);
+                hasSource = group(source, hasSource, key, 5, sourceGroup);
+                hasTarget = group(target, hasTarget, key, 5, targetGroup);
+                result.compared += sourceGroup.size() / 2;
+                compareGroup(sourceGroup, targetGroup, result);
+            }
+        }
+        result.print();
+        System.out.printf("%n left out %d source and %d target relationships of unmatched nodes%n", leftOut[0], leftOut[1]);
+        System.out.println("\n comparing of " + result.compared + " relationships by fingerprint took " + (System.currentTimeMillis() - time) + " ms.");
+        return result;
+    }
+
+    /**
+     * Sorts the relationships of the database as (start node, end node, type, property fingerprint, relationship id)
+     * in the target node ids, through the mappings by start and by end node.
+     * @param leftOut counts the relationships with an unmatched node at the index
+     */
+    private ExternalSorter translate(GraphDatabaseService db, String name, ExternalSorter mappingByStart, ExternalSorter mappingByEnd, long[] leftOut, int index) throws IOException {
+        try (ExternalSorter byStart = outgoing(db, name + "-relationships");
+             ExternalSorter byEnd = sorter(name + "-relationships-end", 5)) {
+            leftOut[index] += join(byStart, mappingByStart, byEnd);
+            ExternalSorter translated = sorter(name + "-relationships-translated", 5);
+            leftOut[index] += join(byEnd, mappingByEnd, translated);
+            return translated;
+        }
+    }
+
+    /**
+     * @return the sorted (start node, end node, type, property fingerprint, relationship id) of all relationships
+     */
+    private ExternalSorter outgoing(GraphDatabaseService db, String name) {
+        ExternalSorter sorter = sorter(name, 5);
+        StoreComparer.forEachRange(db, threads, () -> null, (from, to, result) -> {
+            LongArrayList entries = new LongArrayList();
+            try (Transaction tx = db.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    Node node = StoreComparer.nodeOrNull(db, id);
+                    if (node == null) continue;
+                    for (Relationship rel : node.getRelationships(Direction.OUTGOING)) {
+                        String type = rel.getType().name();
+                        if (ignoreRelTypes.contains(type.toLowerCase())) continue;
+                        entries.addAll(id, rel.getEndNodeId(), CopyDigest.name(type), properties(rel), rel.getId());
+                    }
+                }
+                tx.success();
+            }
+            addAll(sorter, entries, 5);
+        });
+        return sorter;
+    }
+
+    /**
+     * Joins the entries sorted by their first long with the mapping sorted by its key, and adds the mapped entries with
+     * their first two longs swapped, the second one first and the mapped first one second, so that a second join maps
+     * the second long.
+     * @return the number of entries whose first long is not in the mapping
+     */
+    private static long join(ExternalSorter entries, ExternalSorter mapping, ExternalSorter mapped) throws IOException {
+        long unmapped = 0;
+        long[] entry = new long[5];
+        boolean hasMapping = mapping.next();
+        while (entries.next()) {
+            long key = entries.get(0);
+            while (hasMapping && mapping.get(0) < key) hasMapping = mapping.next();
+            if (!hasMapping || mapping.get(0) != key) {
+                unmapped++;
+                continue;
+            }
+            entry[0] = entries.get(1);
+            entry[1] = mapping.get(1);
+            for (int k = 2; k < entry.length; k++) entry[k] = entries.get(k);
+            mapped.add(entry);
+        }
+        return unmapped;
+    }
+
+    /**
+     * Diffs the relationships between the same nodes with the same type as multisets of property fingerprints, the
+     * ones left over on both sides are paired and compared property by property, the others are missing or additional.
+     * @param sourceGroup (fingerprint, relationship id) pairs sorted by fingerprint, the same for targetGroup
+     */
+    private void compareGroup(LongArrayList sourceGroup, LongArrayList targetGroup, StoreComparer.Comparison result) {
+        LongArrayList sourceOnly = new LongArrayList(), targetOnly = new LongArrayList();
+        int s = 0, t = 0;
+        while (s < sourceGroup.size() || t < targetGroup.size()) {
+            int order = s == sourceGroup.size() ? 1 : t == targetGroup.size() ? -1 : Long.compare(sourceGroup.get(s), targetGroup.get(t));
+            if (order == 0) {
+                s += 2;
+                t += 2;
+            } else if (order < 0) {
+                sourceOnly.add(sourceGroup.get(s + 1));
+                s += 2;
+            } else {
+                targetOnly.add(targetGroup.get(t + 1));
+                t += 2;
+            }
+        }
+        int paired = Math.min(sourceOnly.size(), targetOnly.size());
+        for (int i = 0; i < paired; i++) {
+            try (Transaction sourceTx = sourceDb.beginTx();
+                 Transaction targetTx = targetDb.beginTx()) {
+                StoreComparer.compareProperties(sourceDb.getRelationshipById(sourceOnly.get(i)), targetDb.getRelationshipById(targetOnly.get(i)), ignoreProperties, result);
+                sourceTx.success();
+                targetTx.success();
+            }
+        }
+        for (int i = paired; i < sourceOnly.size(); i++) {
+            long rel = sourceOnly.get(i);
+            result.difference(() -> "Missing " + describeRelationship(sourceDb, rel) + " in the target");
+        }
+        for (int i = paired; i < targetOnly.size(); i++) {
+            long rel = targetOnly.get(i);
+            result.difference(() -> "Additional " + describeRelationship(targetDb, rel) + " in the target");
+        }
+    }
+
+    /**
+     * Sets the key to the smaller leading longs of the current entries of both sorters.
+     */
+    private static void smallerKey(ExternalSorter source, boolean hasSource, ExternalSorter target, boolean hasTarget, long[] key) {
+        ExternalSorter smaller = !hasTarget || hasSource && compare(source, target, key.length) <= 0 ? source : target;
+        for (int k = 0; k < key.length; k++) key[k] = smaller.get(k);
+    }
+
+    private static int compare(ExternalSorter a, ExternalSorter b, int longs) {
+        for (int k = 0; k < longs; k++) {
+            int result = Long.compare(a.get(k), b.get(k));
+            if (result != 0) return result;
+        }
+        return 0;
+    }
+
+    /**
+     * Collects the remaining longs of the entries that start with the key into the group.
+     * @return true if the sorter is positioned on an entry after the group
+     */
+    private static boolean group(ExternalSorter sorter, boolean hasEntry, long[] key, int entryLongs, LongArrayList group) throws IOException {
+        group.clear();
+        while (hasEntry && startsWith(sorter, key)) {
+            for (int k = key.length; k < entryLongs; k++) group.add(sorter.get(k));
+            hasEntry = sorter.next();
+        }
+        return hasEntry;
+    }
+
+    private static boolean startsWith(ExternalSorter sorter, long[] key) {
+        for (int k = 0; k < key.length; k++) {
+            if (sorter.get(k) != key[k]) return false;
+        }
+        return true;
+    }
+
+    private static String ids(LongArrayList ids) {
+        if (ids.size() <= GROUP_REPORTED) return ids.toString();
+        return LongArrayList.newListWith(Arrays.copyOf(ids.toArray(), GROUP_REPORTED)) + "...";
+    }
+
+    private static String describe(GraphDatabaseService db, long id) {
+        try (Transaction tx = db.beginTx()) {
+            Node node = db.getNodeById(id);
+            String result = node + " " + Iterables.asList(node.getLabels()) + " " + toString(node.getAllProperties());
+            tx.success();
+            return result;
+        }
+    }
+
+    private static String describeRelationship(GraphDatabaseService db, long id) {
+        try (Transaction tx = db.beginTx()) {
+            Relationship rel = db.getRelationshipById(id);
+            String result = rel + " " + toString(rel.getAllProperties());
+            tx.success();
+            return result;
+        }
+    }
+
+    private static String toString(Map<String, Object> properties) {
+        StringJoiner result = new StringJoiner(", ", "{", "}");
+        for (Map.Entry<String, Object> property : new TreeMap<>(properties).entrySet()) result.add(property.getKey() + "=" + StoreComparer.toString(property.getValue()));
+        return result.toString();
+    }
+}
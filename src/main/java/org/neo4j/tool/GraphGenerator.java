@@ -4,23 +4,241 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.ByteUnit;
+import org.neo4j.io.fs.DefaultFileSystemAbstraction;
+import org.neo4j.io.layout.DatabaseLayout;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.scheduler.JobSchedulerFactory;
+import org.neo4j.kernel.impl.store.format.RecordFormatSelector;
+import org.neo4j.logging.internal.NullLogService;
+import org.neo4j.scheduler.JobScheduler;
+import org.neo4j.unsafe.impl.batchimport.*;
+import org.neo4j.unsafe.impl.batchimport.cache.NumberArrayFactory;
+import org.neo4j.unsafe.impl.batchimport.cache.idmapping.IdMapper;
+import org.neo4j.unsafe.impl.batchimport.cache.idmapping.IdMappers;
+import org.neo4j.unsafe.impl.batchimport.input.*;
+import org.neo4j.unsafe.impl.batchimport.staging.ExecutionMonitors;
+import org.neo4j.values.storable.Value;
 
-import java.io.File;
-import java.util.Arrays;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToIntFunction;
 
 /**
- * @author mh
- * @since 12.08.11
+ * Generates synthetic stores of any size through the parallel batch importer.
+ * <ul>
+ * <li>Out-degrees follow a power law with the given exponent and average degree, a number of supernodes get a
+ * fixed large out-degree, end nodes are picked with a skewed popularity, so in-degrees are unequal as well.</li>
+ * <li>Every node gets one label picked by weight and the properties of the schema for all nodes plus those of its label,
+ * relationships get a type picked by weight and the relationship properties. Each property has a type, a size for
+ * strings and arrays and the share of entities that have it.</li>
+ * <li>A share of the node ids is left unused, to get the unused records of a fragmented store, and optionally a share
+ * of the generated relationships is left out.</li>
+ * </ul>
+ * Every node and the outgoing relationships of every node are computed from the seed and the node id, so the same
+ * options give the same graph with the same node ids regardless of the number of threads. The importer assigns
+ * relationship ids in the order it writes the relationships, which depends on the threads.
+ * <p>
+ * Usage: {@code GraphGenerator target.db [generator.properties]}, options are read from the properties file and
+ * can be overridden as system properties, see the readme.
  */
 public class GraphGenerator {
     public static final int MILLION = 1000 * 1000;
+    private static final int CHUNK_SIZE = 10_000;
+    private static final long DELETED_NODE_SALT = 0x6E6F6465L;
+    private static final long DELETED_RELATIONSHIP_SALT = 0x72656C73L;
+    private static final long SHUFFLE = 1_000_000_007L;
 
-    public static void main(String[] args) {
-        final GraphDatabaseService gdb = new GraphDatabaseFactory().newEmbeddedDatabase(new File("target/data"));
-        createDatabase(gdb);
-        gdb.shutdown();
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: GraphGenerator target.db [generator.properties]");
+            return;
+        }
+        Properties properties = new Properties();
+        if (args.length > 1) {
+            try (Reader reader = new FileReader(args[1])) {
+                properties.load(reader);
+            }
+        }
+        File target = new File(args[0]);
+        if (target.exists()) throw new IllegalArgumentException("Target Directory already exists " + target);
+        generate(target, Options.from(properties));
+    }
+
+    /**
+     * The shape of a generated store.
+     */
+    static class Options {
+        long nodes = 1_000_000;
+        double degree = 4;
+        double exponent = 2.5;
+        long maxDegree = 100_000;
+        double endNodeSkew = 2;
+        int supernodes = 0;
+        long supernodeDegree = 100_000;
+        boolean parallelRelationships = true;
+        Map<String, Double> labels = weights("Person:5,Movie:3,Tag:2");
+        Map<String, Double> types = weights(String.join(",", names(Rels.values())));
+        List<PropertySpec> nodeProperties = PropertySpec.parse("name:string:16,age:int::0.8,score:double::0.5,tags:string[]:4:0.3");
+        Map<String, List<PropertySpec>> labelProperties = new HashMap<>();
+        List<PropertySpec> relationshipProperties = PropertySpec.parse("weight:double::0.5");
+        double deletedNodes = 0;
+        double deletedRelationships = 0;
+        long seed = 42;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        static Options from(Properties properties) {
+            Options options = new Options();
+            options.nodes = Long.parseLong(option(properties, "nodes", String.valueOf(options.nodes)));
+            options.degree = Double.parseDouble(option(properties, "degree", String.valueOf(options.degree)));
+            options.exponent = Double.parseDouble(option(properties, "degree_exponent", String.valueOf(options.exponent)));
+            options.maxDegree = Long.parseLong(option(properties, "max_degree", String.valueOf(options.maxDegree)));
+            options.endNodeSkew = Double.parseDouble(option(properties, "end_node_skew", String.valueOf(options.endNodeSkew)));
+            options.supernodes = Integer.parseInt(option(properties, "supernodes", String.valueOf(options.supernodes)));
+            options.supernodeDegree = Long.parseLong(option(properties, "supernode_degree", String.valueOf(options.supernodeDegree)));
+            options.parallelRelationships = Boolean.parseBoolean(option(properties, "parallel_relationships", String.valueOf(options.parallelRelationships)));
+            String labels = option(properties, "labels", null);
+            if (labels != null) options.labels = weights(labels);
+            String types = option(properties, "relationship_types", null);
+            if (types != null) options.types = weights(types);
+            String nodeProperties = option(properties, "node_properties", null);
+            if (nodeProperties != null) options.nodeProperties = PropertySpec.parse(nodeProperties);
+            for (String label : options.labels.keySet()) {
+                String spec = option(properties, "node_properties." + label, null);
+                if (spec != null) options.labelProperties.put(label, PropertySpec.parse(spec));
+            }
+            String relationshipProperties = option(properties, "relationship_properties", null);
+            if (relationshipProperties != null) options.relationshipProperties = PropertySpec.parse(relationshipProperties);
+            options.deletedNodes = Double.parseDouble(option(properties, "deleted_nodes", String.valueOf(options.deletedNodes)));
+            options.deletedRelationships = Double.parseDouble(option(properties, "deleted_relationships", String.valueOf(options.deletedRelationships)));
+            options.seed = Long.parseLong(option(properties, "seed", String.valueOf(options.seed)));
+            options.threads = Integer.parseInt(option(properties, "threads", String.valueOf(options.threads)));
+            if (options.exponent <= 2) throw new IllegalArgumentException("degree_exponent has to be larger than 2 for a finite average degree");
+            return options;
+        }
+
+        private static String option(Properties properties, String key, String defaultValue) {
+            String value = System.getProperty(key, properties.getProperty(key));
+            if (value == null || value.trim().isEmpty()) return defaultValue;
+            return value.trim();
+        }
+
+        private static String[] names(Enum<?>[] values) {
+            String[] names = new String[values.length];
+            for (int i = 0; i < values.length; i++) names[i] = values[i].name();
+            return names;
+        }
+
+        /**
+         * @param spec {@code Name[:weight],...}, the weight is 1 by default
+         */
+        static Map<String, Double> weights(String spec) {
+            Map<String, Double> weights = new LinkedHashMap<>();
+            for (String entry : spec.split(", *")) {
+                String[] parts = entry.trim().split(":");
+                weights.put(parts[0], parts.length > 1 ? Double.parseDouble(parts[1]) : 1d);
+            }
+            return weights;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d nodes with %.1f relationships on average (exponent %.2f, at most %d), %d supernodes with %d relationships, " +
+                            "labels %s, relationship types %s, %.0f%% deleted nodes, %.0f%% deleted relationships, seed %d",
+                    nodes, degree, exponent, maxDegree, supernodes, supernodeDegree, labels, types, deletedNodes * 100, deletedRelationships * 100, seed);
+        }
     }
+
+    /**
+     * A property of the schema, {@code key:type[:size[:share]]}. Types are string, int, long, double, boolean and the
+     * arrays string[], int[], long[], double[]. The size is the average length of strings and arrays, the share the
+     * fraction of the entities that have the property, 1 by default.
+     */
+    static class PropertySpec {
+        final String key;
+        final String type;
+        final int size;
+        final double share;
+
+        PropertySpec(String key, String type, int size, double share) {
+            this.key = key;
+            this.type = type;
+            this.size = size;
+            this.share = share;
+        }
+
+        static List<PropertySpec> parse(String spec) {
+            List<PropertySpec> result = new ArrayList<>();
+            if (spec == null || spec.trim().isEmpty()) return result;
+            for (String entry : spec.split(", *")) {
+                String[] parts = entry.trim().split(":");
+                if (parts.length < 2) throw new IllegalArgumentException("Expected key:type[:size[:share]] instead of " + entry);
+                int size = parts.length > 2 && !parts[2].isEmpty() ? Integer.parseInt(parts[2]) : 8;
+                double share = parts.length > 3 ? Double.parseDouble(parts[3]) : 1;
+                result.add(new PropertySpec(parts[0], parts[1], size, share));
+            }
+            return result;
+        }
+
+        Object value(SplittableRandom random) {
+            switch (type) {
+                case "string": return string(random, size);
+                case "int": return random.nextInt(1000);
+                case "long": return random.nextLong();
+                case "double": return random.nextDouble();
+                case "boolean": return random.nextBoolean();
+                case "string[]": {
+                    String[] array = new String[length(random)];
+                    for (int i = 0; i < array.length; i++) array[i] = string(random, 8);
+                    return array;
+                }
+                case "int[]": return random.ints(length(random), 0, 1000).toArray();
+                case "long[]": return random.longs(length(random)).toArray();
+                case "double[]": return random.doubles(length(random)).toArray();
+                default: throw new IllegalArgumentException("Unknown property type " + type + " of " + key);
+            }
+        }
+
+        private int length(SplittableRandom random) {
+            return random.nextInt(2 * size + 1);
+        }
+
+        private static String string(SplittableRandom random, int size) {
+            int length = size / 2 + random.nextInt(size + 1);
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) chars[i] = (char) ('a' + random.nextInt(26));
+            return new String(chars);
+        }
+    }
+
+    static void generate(File target, Options options) throws Exception {
+        System.out.println("Generating " + options);
+        String pageCacheSize = System.getProperty("dbms.pagecache.memory", "2G");
+        target.mkdirs();
+        JobScheduler jobScheduler = JobSchedulerFactory.createInitialisedScheduler();
+        try (OutputStream badOutput = new FileOutputStream(new File(target, Configuration.BAD_FILE_NAME));
+             Collector badCollector = Collectors.badCollector(badOutput, Long.MAX_VALUE, Collectors.collect(true, true, false))) {
+            Configuration configuration = new Configuration() {
+                @Override public int maxNumberOfProcessors() { return options.threads; }
+                @Override public long pageCacheMemory() { return ByteUnit.parse(pageCacheSize); }
+            };
+            BatchImporter importer = BatchImporterFactory.withHighestPriority().instantiate(DatabaseLayout.of(target), new DefaultFileSystemAbstraction(), null,
+                    configuration, NullLogService.getInstance(), ExecutionMonitors.defaultVisible(jobScheduler), AdditionalInitialIds.EMPTY, Config.defaults(),
+                    RecordFormatSelector.defaultFormat(), ImportLogic.NO_MONITOR, jobScheduler);
+            long time = System.currentTimeMillis();
+            importer.doImport(new Generator(options).input(badCollector));
+            System.out.printf("%n generating took %d seconds%n", (System.currentTimeMillis() - time) / 1000);
+        } finally {
+            jobScheduler.close();
+        }
+        System.out.println(StoreMetadata.probe(target));
+    }
+
+    /**
+     * Creates the chain of a million nodes with large array properties on the relationships of earlier versions, in
+     * transactions of 10000 nodes.
+     */
     public static void createDatabase(GraphDatabaseService graphdb) {
         int [] largeArray = new int[5000];
         Arrays.fill(largeArray, 101);
@@ -53,4 +271,213 @@ public class GraphGenerator {
         long delta = (System.currentTimeMillis() - cpuTime);
         System.out.println("create-db delta = " + delta);
     }
+
+    /**
+     * @return true for the given share of the ids, decided by a hash of the id
+     */
+    private static boolean picked(long seed, long id, double share) {
+        return share > 0 && (mix(seed + id) >>> 11) * 0x1.0p-53 < share;
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * The importer input, node and relationship chunks cover fixed id ranges and seed their random numbers from it.
+     */
+    private static class Generator {
+        private final Options options;
+        private final String[] labels;
+        private final double[] labelWeights;
+        private final List<List<PropertySpec>> labelProperties = new ArrayList<>();
+        private final String[] types;
+        private final double[] typeWeights;
+        private final long supernodeStride;
+        private final double minDegree;
+
+        Generator(Options options) {
+            this.options = options;
+            this.labels = options.labels.keySet().toArray(new String[0]);
+            this.labelWeights = cumulative(options.labels.values());
+            for (String label : labels) {
+                List<PropertySpec> properties = new ArrayList<>(options.nodeProperties);
+                properties.addAll(options.labelProperties.getOrDefault(label, Collections.emptyList()));
+                labelProperties.add(properties);
+            }
+            this.types = options.types.keySet().toArray(new String[0]);
+            this.typeWeights = cumulative(options.types.values());
+            this.supernodeStride = options.supernodes > 0 ? Math.max(1, options.nodes / options.supernodes) : 0;
+            // the mean of a pareto distribution with shape a and minimum m is m * a / (a - 1)
+            double shape = options.exponent - 1;
+            this.minDegree = options.degree * (shape - 1) / shape;
+        }
+
+        private static double[] cumulative(Collection<Double> weights) {
+            double[] result = new double[weights.size()];
+            double sum = 0;
+            int i = 0;
+            for (double weight : weights) result[i++] = sum += weight;
+            for (i = 0; i < result.length; i++) result[i] /= sum;
+            return result;
+        }
+
+        private static int pick(double[] cumulative, SplittableRandom random) {
+            double value = random.nextDouble();
+            for (int i = 0; i < cumulative.length - 1; i++) {
+                if (value < cumulative[i]) return i;
+            }
+            return cumulative.length - 1;
+        }
+
+        boolean isDeleted(long node) {
+            return !isSupernode(node) && picked(options.seed ^ DELETED_NODE_SALT, node, options.deletedNodes);
+        }
+
+        boolean isSupernode(long node) {
+            return supernodeStride > 0 && node % supernodeStride == 0 && node / supernodeStride < options.supernodes;
+        }
+
+        long degree(long node, SplittableRandom random) {
+            if (isSupernode(node)) return options.supernodeDegree;
+            double degree = minDegree * Math.pow(1 - random.nextDouble(), -1 / (options.exponent - 1));
+            return Math.min(options.maxDegree, Math.round(degree));
+        }
+
+        /**
+         * @return an end node, low ranks are more likely with a skew above 1, ranks are spread over the ids
+         */
+        long endNode(SplittableRandom random) {
+            long rank = (long) (options.nodes * Math.pow(random.nextDouble(), options.endNodeSkew));
+            return options.nodes % SHUFFLE == 0 ? rank : Math.floorMod(rank * SHUFFLE, options.nodes);
+        }
+
+        Input input(Collector badCollector) {
+            return new Input() {
+                @Override public InputIterable nodes() { return () -> new ChunkIterator(NodeChunk::new); }
+                @Override public InputIterable relationships() { return () -> new ChunkIterator(RelationshipChunk::new); }
+                @Override public IdMapper idMapper(NumberArrayFactory numberArrayFactory) { return IdMappers.actual(); }
+                @Override public Collector badCollector() { return badCollector; }
+                @Override public Estimates calculateEstimates(ToIntFunction<Value[]> valueSizeCalculator) {
+                    long nodes = options.nodes, relationships = (long) (nodes * options.degree) + (long) options.supernodes * options.supernodeDegree;
+                    long nodeProperties = nodes * options.nodeProperties.size(), relationshipProperties = relationships * options.relationshipProperties.size();
+                    return Inputs.knownEstimates(nodes, relationships, nodeProperties, relationshipProperties,
+                            nodeProperties * 16, relationshipProperties * 16, nodes);
+                }
+            };
+        }
+
+        private class ChunkIterator implements InputIterator {
+            private final AtomicLong nextId = new AtomicLong();
+            private final java.util.function.Supplier<GeneratorChunk> factory;
+
+            ChunkIterator(java.util.function.Supplier<GeneratorChunk> factory) {
+                this.factory = factory;
+            }
+
+            @Override
+            public InputChunk newChunk() {
+                return factory.get();
+            }
+
+            @Override
+            public boolean next(InputChunk chunk) {
+                long from = nextId.getAndAdd(CHUNK_SIZE);
+                if (from >= options.nodes) return false;
+                ((GeneratorChunk) chunk).initialize(from, Math.min(from + CHUNK_SIZE, options.nodes));
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
+        private abstract class GeneratorChunk implements InputChunk {
+            SplittableRandom random;
+            long node;
+            long end;
+
+            void initialize(long from, long to) {
+                this.random = new SplittableRandom(mix(options.seed + from));
+                this.node = from;
+                this.end = to;
+            }
+
+            void properties(List<PropertySpec> specs, InputEntityVisitor visitor) {
+                for (PropertySpec spec : specs) {
+                    if (spec.share >= 1 || random.nextDouble() < spec.share) visitor.property(spec.key, spec.value(random));
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
+        private class NodeChunk extends GeneratorChunk {
+            @Override
+            public boolean next(InputEntityVisitor visitor) throws IOException {
+                while (node < end) {
+                    long id = node++;
+                    if (isDeleted(id)) continue;
+                    int label = pick(labelWeights, random);
+                    visitor.id(id);
+                    visitor.labels(new String[]{labels[label]});
+                    properties(labelProperties.get(label), visitor);
+                    visitor.endOfEntity();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Generates the outgoing relationships of the nodes of the range, one start node after the other.
+         */
+        private class RelationshipChunk extends GeneratorChunk {
+            private long remaining;
+            private long index; // of the relationship among the generated ones of the start node
+            private final Set<Long> endNodes = new HashSet<>();
+
+            @Override
+            void initialize(long from, long to) {
+                super.initialize(from, to);
+                remaining = 0;
+                node--;
+            }
+
+            @Override
+            public boolean next(InputEntityVisitor visitor) throws IOException {
+                while (true) {
+                    while (remaining == 0) {
+                        if (++node >= end) return false;
+                        if (isDeleted(node)) continue;
+                        remaining = degree(node, random);
+                        index = 0;
+                        endNodes.clear();
+                    }
+                    remaining--;
+                    long endNode = endNode(random);
+                    if (isDeleted(endNode)) continue;
+                    if (!options.parallelRelationships && !endNodes.add(endNode)) continue;
+                    String type = types[pick(typeWeights, random)];
+                    // picked by the start node and the index, left out relationships still draw their properties,
+                    // so that the share does not change the other relationships
+                    if (picked(options.seed ^ DELETED_RELATIONSHIP_SALT, mix(node) + index++, options.deletedRelationships)) {
+                        properties(options.relationshipProperties, InputEntityVisitor.NULL);
+                        continue;
+                    }
+                    visitor.startId(node);
+                    visitor.endId(endNode);
+                    visitor.type(type);
+                    properties(options.relationshipProperties, visitor);
+                    visitor.endOfEntity();
+                    return true;
+                }
+            }
+        }
+    }
 }
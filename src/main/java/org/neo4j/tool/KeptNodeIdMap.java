@@ -0,0 +1,71 @@
+package org.neo4j.tool;
+
+import org.neo4j.unsafe.impl.batchimport.cache.LongArray;
+import org.neo4j.unsafe.impl.batchimport.cache.NumberArrayFactory;
+
+import java.io.*;
+
+/**
+ * The identity mapping of a copy that keeps node ids, restricted to the copied nodes. An off-heap bitmap of
+ * the copied source ids, one bit per source id, lets the relationship copy skip relationships of nodes that
+ * were deleted or missing before reading their properties.
+ */
+class KeptNodeIdMap implements NodeIdMap {
+    private final long highestSourceId;
+    private final LongArray words;
+    private long count;
+
+    KeptNodeIdMap(long highestSourceId) {
+        this.highestSourceId = highestSourceId;
+        this.words = NumberArrayFactory.AUTO_WITHOUT_PAGECACHE.newLongArray((highestSourceId >>> 6) + 1, 0);
+    }
+
+    void add(long sourceId) {
+        long wordIndex = sourceId >>> 6;
+        words.set(wordIndex, words.get(wordIndex) | (1L << sourceId));
+        count++;
+    }
+
+    @Override
+    public long get(long sourceId) {
+        if (sourceId < 0 || sourceId > highestSourceId) return -1L;
+        return (words.get(sourceId >>> 6) & (1L << sourceId)) == 0 ? -1L : sourceId;
+    }
+
+    @Override
+    public long size() {
+        return count;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return words.length() * Long.BYTES;
+    }
+
+    @Override
+    public void writeTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeLong(highestSourceId);
+            out.writeLong(count);
+            for (long i = 0; i < words.length(); i++) {
+                out.writeLong(words.get(i));
+            }
+        }
+    }
+
+    static KeptNodeIdMap readFrom(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            KeptNodeIdMap map = new KeptNodeIdMap(in.readLong());
+            map.count = in.readLong();
+            for (long i = 0; i < map.words.length(); i++) {
+                map.words.set(i, in.readLong());
+            }
+            return map;
+        }
+    }
+
+    @Override
+    public void close() {
+        words.close();
+    }
+}
@@ -0,0 +1,49 @@
+package org.neo4j.tool;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Maps source node ids to target node ids: compacted by {@link CompactNodeIdMap}, renumbered by
+ * {@link PermutedNodeIdMap}, or kept with keep_node_ids by {@link KeptNodeIdMap}, the identity on the copied nodes.
+ */
+interface NodeIdMap extends AutoCloseable {
+    /**
+     * @return the target id of the source node or -1 if it was not copied
+     */
+    long get(long sourceId);
+
+    /**
+     * @return the number of mapped nodes
+     */
+    long size();
+
+    long memoryUsage();
+
+    /**
+     * Writes the mapping so that a resumed copy can read it again.
+     */
+    void writeTo(File file) throws IOException;
+
+    @Override
+    void close();
+
+    /**
+     * @return the name of the type of the mapping for {@link #readFrom(String, File)}
+     */
+    static String typeOf(NodeIdMap nodeIdMap) {
+        return nodeIdMap instanceof KeptNodeIdMap ? "kept" : nodeIdMap instanceof PermutedNodeIdMap ? "permuted" : "compact";
+    }
+
+    /**
+     * @return the mapping written by {@link #writeTo(File)}, null for an unknown type
+     */
+    static NodeIdMap readFrom(String type, File file) throws IOException {
+        switch (type) {
+            case "kept": return KeptNodeIdMap.readFrom(file);
+            case "permuted": return PermutedNodeIdMap.readFrom(file);
+            case "compact": return CompactNodeIdMap.readFrom(file);
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.neo4j.tool;
+
+import org.neo4j.unsafe.impl.batchimport.cache.LongArray;
+import org.neo4j.unsafe.impl.batchimport.cache.NumberArrayFactory;
+
+/**
+ * Computes the order of the copied nodes for compacting mode, so that nodes which are traversed together get close
+ * target ids and share pages of the node store, and, with the relationships written in node order, of the
+ * relationship store.
+ * <ul>
+ * <li>{@link Strategy#BFS} numbers the nodes in breadth first order over the relationships, ignoring direction,
+ * starting a new traversal from the lowest unnumbered source id.</li>
+ * <li>{@link Strategy#LABEL} groups the nodes by their first label, in source id order within a label.</li>
+ * </ul>
+ * Reads the node records once and the relationship records up to three times, BFS additionally keeps the adjacency
+ * lists off-heap, 8 bytes per copied node plus 16 bytes per copied relationship.
+ */
+class NodeRenumbering {
+    enum Strategy { BFS, LABEL }
+
+    private static final int PAGE_SIZE = 8192;
+    private static final NumberArrayFactory ARRAYS = NumberArrayFactory.AUTO_WITHOUT_PAGECACHE;
+
+    /**
+     * @param badEntries gets the nodes whose records are broken, they are left out of the order and not copied
+     */
+    static PermutedNodeIdMap renumber(StoreReader sourceDb, Strategy strategy, long highestNodeId, long highestRelId, CopyFilter filter, BadEntryLog badEntries) {
+        long time = System.currentTimeMillis();
+        int labelCount = sourceDb.labels().length;
+        // rank of the copied nodes in source id order, -1 for nodes that are not copied, the label keys only for label order
+        try (StoreReader.RecordCursor cursor = sourceDb.newCursor();
+             LongArray rank = ARRAYS.newLongArray(highestNodeId + 1, -1);
+             LongArray labelKeys = strategy == Strategy.LABEL ? ARRAYS.newLongArray(highestNodeId + 1, 0) : null) {
+            long count = 0;
+            for (long node = 0; node <= highestNodeId; node++) {
+                try {
+                    if (!cursor.node(node)) continue;
+                    long[] labelIds = cursor.labelIds();
+                    if (filter.deletesNode(labelIds)) continue;
+                    if (labelKeys != null) labelKeys.set(count, labelIds.length == 0 ? labelCount : labelIds[0]);
+                    rank.set(node, count++);
+                } catch (Exception e) {
+                    if (!(e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use"))) {
+                        badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                    }
+                }
+            }
+            try (LongArray order = strategy == Strategy.BFS
+                    ? bfsOrder(cursor, rank, count, highestRelId, filter)
+                    : labelOrder(labelKeys, labelCount + 1, count)) {
+                report(strategy, cursor, rank, order, highestRelId, filter, sourceDb.neoStores().getNodeStore().getRecordSize());
+                PermutedNodeIdMap map = new PermutedNodeIdMap(highestNodeId, count);
+                for (long node = 0; node <= highestNodeId; node++) {
+                    long r = rank.get(node);
+                    if (r != -1) map.map(node, order.get(r));
+                }
+                System.out.printf(" renumbering %d nodes in %s order took %d seconds%n", count, strategy, (System.currentTimeMillis() - time) / 1000);
+                return map;
+            }
+        }
+    }
+
+    /**
+     * @return the position of every node by rank, positions are assigned in breadth first order
+     */
+    private static LongArray bfsOrder(StoreReader.RecordCursor cursor, LongArray rank, long count, long highestRelId, CopyFilter filter) {
+        try (LongArray offsets = ARRAYS.newLongArray(count + 1, 0)) {
+            // adjacency lists of the undirected graph, first count the degrees, then fill in the neighbours
+            for (long relId = 0; relId <= highestRelId; relId++) {
+                if (!copied(cursor, relId, rank, filter)) continue;
+                long start = rank.get(cursor.startNode()), end = rank.get(cursor.endNode());
+                offsets.set(start + 1, offsets.get(start + 1) + 1);
+                offsets.set(end + 1, offsets.get(end + 1) + 1);
+            }
+            for (long i = 1; i <= count; i++) {
+                offsets.set(i, offsets.get(i) + offsets.get(i - 1));
+            }
+            try (LongArray neighbours = ARRAYS.newLongArray(Math.max(1, offsets.get(count)), -1);
+                 LongArray filled = ARRAYS.newLongArray(count, 0)) {
+                for (long relId = 0; relId <= highestRelId; relId++) {
+                    if (!copied(cursor, relId, rank, filter)) continue;
+                    long start = rank.get(cursor.startNode()), end = rank.get(cursor.endNode());
+                    addNeighbour(offsets, neighbours, filled, start, end);
+                    addNeighbour(offsets, neighbours, filled, end, start);
+                }
+                // the queue of the traversal is the order itself, everything before head was visited already
+                LongArray order = ARRAYS.newLongArray(Math.max(1, count), -1);
+                try (LongArray queue = ARRAYS.newLongArray(Math.max(1, count), -1)) {
+                    long tail = 0;
+                    for (long root = 0; root < count; root++) {
+                        if (order.get(root) != -1) continue;
+                        order.set(root, tail);
+                        queue.set(tail++, root);
+                        for (long head = tail - 1; head < tail; head++) {
+                            long node = queue.get(head);
+                            for (long i = offsets.get(node), end = offsets.get(node + 1); i < end; i++) {
+                                long next = neighbours.get(i);
+                                if (order.get(next) != -1) continue;
+                                order.set(next, tail);
+                                queue.set(tail++, next);
+                            }
+                        }
+                    }
+                }
+                return order;
+            }
+        }
+    }
+
+    private static void addNeighbour(LongArray offsets, LongArray neighbours, LongArray filled, long node, long neighbour) {
+        long index = filled.get(node);
+        neighbours.set(offsets.get(node) + index, neighbour);
+        filled.set(node, index + 1);
+    }
+
+    /**
+     * @return the position of every node by rank, grouped by the label key and in rank order within a group
+     */
+    private static LongArray labelOrder(LongArray labelKeys, int keys, long count) {
+        long[] next = new long[keys + 1];
+        for (long r = 0; r < count; r++) next[(int) labelKeys.get(r) + 1]++;
+        for (int key = 1; key <= keys; key++) next[key] += next[key - 1];
+        LongArray order = ARRAYS.newLongArray(Math.max(1, count), -1);
+        for (long r = 0; r < count; r++) order.set(r, next[(int) labelKeys.get(r)]++);
+        return order;
+    }
+
+    /**
+     * Prints the average distance of the target ids of the end nodes of the copied relationships and the share of
+     * relationships with both end nodes on the same node store page, for the plain compacting order and the new order.
+     */
+    private static void report(Strategy strategy, StoreReader.RecordCursor cursor, LongArray rank, LongArray order, long highestRelId, CopyFilter filter, int nodeRecordSize) {
+        long nodesPerPage = PAGE_SIZE / nodeRecordSize;
+        long relationships = 0, before = 0, after = 0, samePageBefore = 0, samePageAfter = 0;
+        for (long relId = 0; relId <= highestRelId; relId++) {
+            if (!copied(cursor, relId, rank, filter)) continue;
+            long start = rank.get(cursor.startNode()), end = rank.get(cursor.endNode());
+            long newStart = order.get(start), newEnd = order.get(end);
+            relationships++;
+            before += Math.abs(start - end);
+            after += Math.abs(newStart - newEnd);
+            if (start / nodesPerPage == end / nodesPerPage) samePageBefore++;
+            if (newStart / nodesPerPage == newEnd / nodesPerPage) samePageAfter++;
+        }
+        long total = Math.max(1, relationships);
+        System.out.printf(" %s order, average node id distance of %d relationships %.1f before, %.1f after, both nodes on one node store page %d%% before, %d%% after%n",
+                strategy, relationships, (double) before / total, (double) after / total, 100 * samePageBefore / total, 100 * samePageAfter / total);
+    }
+
+    /**
+     * @return true if the relationship is in use, not of an ignored type and both of its nodes are copied,
+     * the cursor is positioned on the relationship
+     */
+    private static boolean copied(StoreReader.RecordCursor cursor, long relId, LongArray rank, CopyFilter filter) {
+        try {
+            return cursor.relationship(relId) && !filter.ignoresType(cursor.typeId())
+                    && rank.get(cursor.startNode()) != -1 && rank.get(cursor.endNode()) != -1;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+}
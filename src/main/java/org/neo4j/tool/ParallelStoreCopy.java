@@ -0,0 +1,334 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.Label;
+import org.neo4j.io.ByteUnit;
+import org.neo4j.io.fs.DefaultFileSystemAbstraction;
+import org.neo4j.io.fs.FileSystemAbstraction;
+import org.neo4j.io.layout.DatabaseLayout;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.scheduler.JobSchedulerFactory;
+import org.neo4j.logging.internal.NullLogService;
+import org.neo4j.scheduler.JobScheduler;
+import org.neo4j.unsafe.impl.batchimport.*;
+import org.neo4j.unsafe.impl.batchimport.cache.NumberArrayFactory;
+import org.neo4j.unsafe.impl.batchimport.cache.idmapping.IdMapper;
+import org.neo4j.unsafe.impl.batchimport.cache.idmapping.IdMappers;
+import org.neo4j.unsafe.impl.batchimport.input.*;
+import org.neo4j.unsafe.impl.batchimport.staging.ExecutionMonitors;
+import org.neo4j.values.storable.Value;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+
+/**
+ * Alternative copy engine for {@link StoreCopy} that feeds the source store as an {@link Input}
+ * into the parallel batch importer. Node and relationship id ranges are handed out to the importer
+ * threads in chunks and read concurrently through one {@link StoreReader.RecordCursor} per thread.
+ */
+class ParallelStoreCopy {
+
+    private static final int CHUNK_SIZE = 10_000;
+
+    private final StoreReader reader;
+    private final CopyFilter filter;
+    private final boolean stableNodeIds;
+    private final CopyDigest digest;
+    private final BadEntryLog badEntries;
+    private final CopyMetrics metrics;
+
+    private final long highestNodeId;
+    private final long highestRelId;
+    private final ConcurrentBitSet copiedNodes;
+
+    private final LongAdder nodesNotFound = new LongAdder();
+    private final LongAdder nodesRemoved = new LongAdder();
+    private final LongAdder relsNotFound = new LongAdder();
+    private final LongAdder relsRemoved = new LongAdder();
+
+    private ParallelStoreCopy(StoreReader reader, long highestNodeId, long highestRelId, CopyFilter filter, boolean stableNodeIds, CopyDigest digest, BadEntryLog badEntries, CopyMetrics metrics) {
+        this.reader = reader;
+        this.highestNodeId = highestNodeId;
+        this.highestRelId = highestRelId;
+        this.filter = filter;
+        this.stableNodeIds = stableNodeIds;
+        this.digest = digest;
+        this.badEntries = badEntries;
+        this.metrics = metrics;
+        this.copiedNodes = new ConcurrentBitSet(highestNodeId + 1);
+    }
+
+    static void copyStore(StoreReader reader, File target, long highestNodeId, long highestRelId, CopyFilter.Rules rules, boolean stableNodeIds, int threads,
+                          CopyDigest digest, BadEntryLog badEntries, CopyMetrics metrics) throws Exception {
+        String pageCacheSize = System.getProperty("dbms.pagecache.memory", "2G");
+        FileSystemAbstraction fs = new DefaultFileSystemAbstraction();
+        JobScheduler jobScheduler = JobSchedulerFactory.createInitialisedScheduler();
+        try (OutputStream badOutput = new FileOutputStream(new File(target, Configuration.BAD_FILE_NAME));
+             Collector badCollector = Collectors.badCollector(badOutput, Long.MAX_VALUE, Collectors.collect(true, true, false))) {
+
+            ParallelStoreCopy copy = new ParallelStoreCopy(reader, highestNodeId, highestRelId, rules.compile(reader), stableNodeIds, digest, badEntries, metrics);
+            Configuration configuration = new Configuration() {
+                @Override public int maxNumberOfProcessors() { return threads; }
+                @Override public long pageCacheMemory() { return ByteUnit.parse(pageCacheSize); }
+            };
+            BatchImporter importer = BatchImporterFactory.withHighestPriority().instantiate(DatabaseLayout.of(target), fs, null, configuration,
+                    NullLogService.getInstance(), ExecutionMonitors.defaultVisible(jobScheduler), AdditionalInitialIds.EMPTY, Config.defaults(),
+                    reader.neoStores().getRecordFormats(), ImportLogic.NO_MONITOR, jobScheduler);
+
+            long time = System.currentTimeMillis();
+            importer.doImport(copy.input(badCollector));
+            time = Math.max(1, (System.currentTimeMillis() - time) / 1000);
+            copy.printStatistics(time);
+            copy.filter.reportSlimming();
+        } finally {
+            jobScheduler.close();
+        }
+    }
+
+    private Input input(Collector badCollector) {
+        return new Input() {
+            @Override public InputIterable nodes() { return () -> new RangeIterator("nodes", highestNodeId, nodesNotFound, nodesRemoved, NodeChunk::new); }
+            @Override public InputIterable relationships() { return () -> new RangeIterator("relationships", highestRelId, relsNotFound, relsRemoved, RelationshipChunk::new); }
+            @Override public IdMapper idMapper(NumberArrayFactory numberArrayFactory) {
+                return stableNodeIds ? IdMappers.actual() : IdMappers.longs(numberArrayFactory, new Groups());
+            }
+            @Override public Collector badCollector() { return badCollector; }
+            @Override public Estimates calculateEstimates(ToIntFunction<Value[]> valueSizeCalculator) {
+                long properties = reader.neoStores().getPropertyStore().getHighId() * 2;
+                return Inputs.knownEstimates(highestNodeId + 1, highestRelId + 1, properties / 2, properties / 2,
+                        properties * 8, properties * 8, highestNodeId + 1);
+            }
+        };
+    }
+
+    private void printStatistics(long time) {
+        long nodes = highestNodeId + 1, rels = highestRelId + 1;
+        System.out.printf("%n copying of %d node records took %d seconds (%d rec/s). Unused Records %d (%d%%). Removed Records %d (%d%%).%n",
+                nodes, time, nodes / time, nodesNotFound.sum(), percent(nodesNotFound.sum(), nodes), nodesRemoved.sum(), percent(nodesRemoved.sum(), nodes));
+        System.out.printf(" copying of %d relationship records took %d seconds (%d rec/s). Unused Records %d (%d%%) Removed Records %d (%d%%)%n",
+                rels, time, rels / time, relsNotFound.sum(), percent(relsNotFound.sum(), rels), relsRemoved.sum(), percent(relsRemoved.sum(), rels));
+    }
+
+    private static int percent(Number part, Number total) {
+        return (int) (100 * part.floatValue() / total.floatValue());
+    }
+
+    private interface ChunkFactory {
+        RangeChunk newChunk();
+    }
+
+    /**
+     * Hands out consecutive id ranges of {@link #CHUNK_SIZE} to the importer threads, each thread
+     * reads its range through its own chunk with its own page cursors. Every range handed out updates the metrics.
+     */
+    private class RangeIterator implements InputIterator {
+        private final AtomicLong nextId = new AtomicLong();
+        private final long highestId;
+        private final LongAdder notFound;
+        private final LongAdder removed;
+        private final ChunkFactory factory;
+
+        RangeIterator(String phase, long highestId, LongAdder notFound, LongAdder removed, ChunkFactory factory) {
+            this.highestId = highestId;
+            this.notFound = notFound;
+            this.removed = removed;
+            this.factory = factory;
+            metrics.phase(phase, highestId);
+        }
+
+        @Override
+        public InputChunk newChunk() {
+            return factory.newChunk();
+        }
+
+        @Override
+        public boolean next(InputChunk chunk) {
+            long from = nextId.getAndAdd(CHUNK_SIZE);
+            metrics.update(Math.min(from, highestId + 1), notFound.sum(), removed.sum());
+            if (from > highestId) return false;
+            ((RangeChunk) chunk).initialize(from, Math.min(from + CHUNK_SIZE, highestId + 1));
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private abstract class RangeChunk implements InputChunk {
+        final StoreReader.RecordCursor cursor = reader.newCursor();
+        private final List<String> keys = new ArrayList<>();
+        private final List<Object> values = new ArrayList<>();
+        long propertiesHash;
+        long id;
+        long end;
+
+        void initialize(long from, long to) {
+            this.id = from;
+            this.end = to;
+        }
+
+        @Override
+        public boolean next(InputEntityVisitor visitor) throws IOException {
+            while (id < end) {
+                long current = id++;
+                if (read(current, visitor)) return true;
+            }
+            return false;
+        }
+
+        /**
+         * Reads the record with the given id and passes it on to the visitor, only after the record and
+         * all of its properties were read successfully, so that a broken record never leaves half an entity behind.
+         */
+        abstract boolean read(long id, InputEntityVisitor visitor) throws IOException;
+
+        void collectNodeProperties(long[] labelIds) {
+            keys.clear();
+            values.clear();
+            propertiesHash = 0;
+            for (int i = 0, count = cursor.nodeProperties(); i < count; i++) {
+                int keyId = cursor.propertyKeyId(i);
+                Value value = cursor.propertyValue(i);
+                if (filter.keepsNodeProperty(keyId, labelIds, value)) addProperty(keyId, value);
+            }
+        }
+
+        void collectRelationshipProperties(int typeId) {
+            keys.clear();
+            values.clear();
+            propertiesHash = 0;
+            for (int i = 0, count = cursor.relationshipProperties(); i < count; i++) {
+                int keyId = cursor.propertyKeyId(i);
+                Value value = cursor.propertyValue(i);
+                if (filter.keepsRelationshipProperty(keyId, typeId, value)) addProperty(keyId, value);
+            }
+        }
+
+        private void addProperty(int keyId, Value value) {
+            String key = filter.propertyKey(keyId);
+            Value targetValue = filter.value(keyId, value);
+            keys.add(key);
+            values.add(targetValue.asObject());
+            if (digest != null) propertiesHash += CopyDigest.property(key, targetValue);
+        }
+
+        void visitProperties(InputEntityVisitor visitor) {
+            for (int i = 0; i < keys.size(); i++) {
+                visitor.property(keys.get(i), values.get(i));
+            }
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+
+    private class NodeChunk extends RangeChunk {
+        @Override
+        boolean read(long node, InputEntityVisitor visitor) throws IOException {
+            String[] nodeLabels;
+            try {
+                if (!cursor.node(node)) {
+                    nodesNotFound.increment();
+                    return false;
+                }
+                long[] labelIds = cursor.labelIds();
+                if (filter.deletesNode(labelIds)) {
+                    nodesRemoved.increment();
+                    return false;
+                }
+                nodeLabels = labelNames(filter.labels(labelIds));
+                collectNodeProperties(labelIds);
+            } catch (Exception e) {
+                badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                return false;
+            }
+            copiedNodes.set(node);
+            if (digest != null) {
+                long labelsHash = 0;
+                for (String label : nodeLabels) labelsHash += CopyDigest.name(label);
+                digest.node(node, labelsHash, propertiesHash);
+            }
+            if (stableNodeIds) visitor.id(node); else visitor.id(node, Group.GLOBAL);
+            visitor.labels(nodeLabels);
+            visitProperties(visitor);
+            visitor.endOfEntity();
+            return true;
+        }
+
+        private String[] labelNames(Label[] labels) {
+            String[] names = new String[labels.length];
+            for (int i = 0; i < labels.length; i++) names[i] = labels[i].name();
+            return names;
+        }
+    }
+
+    private class RelationshipChunk extends RangeChunk {
+        @Override
+        boolean read(long rel, InputEntityVisitor visitor) throws IOException {
+            String type = null;
+            long startNode, endNode;
+            try {
+                if (!cursor.relationship(rel)) {
+                    relsNotFound.increment();
+                    return false;
+                }
+                type = filter.type(cursor.typeId()).name();
+                startNode = cursor.startNode();
+                endNode = cursor.endNode();
+                if (filter.ignoresType(cursor.typeId()) || !copiedNodes.get(startNode) || !copiedNodes.get(endNode)) {
+                    relsRemoved.increment();
+                    return false;
+                }
+                collectRelationshipProperties(cursor.typeId());
+            } catch (Exception e) {
+                badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, rel, e);
+                return false;
+            }
+            if (digest != null) digest.relationship(startNode, endNode, CopyDigest.name(type), propertiesHash);
+            if (stableNodeIds) {
+                visitor.startId(startNode);
+                visitor.endId(endNode);
+            } else {
+                visitor.startId(startNode, Group.GLOBAL);
+                visitor.endId(endNode, Group.GLOBAL);
+            }
+            visitor.type(type);
+            visitProperties(visitor);
+            visitor.endOfEntity();
+            return true;
+        }
+    }
+
+    /**
+     * Fixed size bitset that can be written from many importer threads at once.
+     */
+    static class ConcurrentBitSet {
+        private final AtomicLongArray words;
+        private final long size;
+
+        ConcurrentBitSet(long size) {
+            this.size = size;
+            this.words = new AtomicLongArray((int) ((size + 63) >>> 6));
+        }
+
+        void set(long index) {
+            int word = (int) (index >>> 6);
+            long mask = 1L << index;
+            long current;
+            do {
+                current = words.get(word);
+                if ((current & mask) != 0) return;
+            } while (!words.compareAndSet(word, current, current | mask));
+        }
+
+        boolean get(long index) {
+            return index >= 0 && index < size && (words.get((int) (index >>> 6)) & (1L << index)) != 0;
+        }
+    }
+}
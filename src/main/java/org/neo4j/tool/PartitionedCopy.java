@@ -0,0 +1,397 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.RelationshipType;
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.io.ByteUnit;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+import org.neo4j.unsafe.impl.batchimport.cache.IntArray;
+import org.neo4j.unsafe.impl.batchimport.cache.NumberArrayFactory;
+import org.neo4j.values.storable.NumberValue;
+import org.neo4j.values.storable.TextValue;
+import org.neo4j.values.storable.Value;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Splits the source into several target stores in one pass over the source store, instead of one copy per target
+ * with different {@code labels_to_delete}. Every node is routed to one partition by the partition rules, and
+ * created in the {@link BatchInserter} of that partition in {@code partition-<n>/graph.db} inside the target directory.
+ * A relationship is copied into the partition of its nodes, a relationship between nodes of different partitions
+ * is not copied but listed in {@link #CROSS_FILE}.
+ * <p>
+ * Each partition has its own node id map, the keep-node-ids and the compacting mode work per partition, the page
+ * cache of the targets is divided between them. The partition of every copied node is recorded off-heap, 4 bytes per
+ * source node id, so that a relationship looks up the partitions of its nodes directly. The copy filters and renames apply as for a single copy.
+ */
+class PartitionedCopy {
+    static final String CROSS_FILE = "partition-cross-relationships.tsv";
+
+    /**
+     * The uncompiled partition rules as configured.
+     */
+    static class Rules {
+        enum By { HASH, LABEL, PROPERTY }
+
+        final By by;
+        final int partitions;
+        final Map<String, String> labels;
+        final String property;
+        final List<String> ranges;
+        final int defaultPartition;
+
+        /**
+         * @param partitions number of partitions of the hash of the node id
+         * @param labels partition by label name
+         * @param property key whose value ranges are partitioned
+         * @param ranges {@code from:to} value ranges of the property, the from value is included, either can be left out
+         * @param defaultPartition partition of the nodes no rule matches, -1 to not copy them
+         */
+        Rules(By by, int partitions, Map<String, String> labels, String property, List<String> ranges, int defaultPartition) {
+            this.by = by;
+            this.partitions = partitions;
+            this.labels = labels;
+            this.property = property;
+            this.ranges = ranges;
+            this.defaultPartition = defaultPartition;
+        }
+
+        Partitioner compile(StoreReader reader) {
+            switch (by) {
+                case HASH:
+                    if (partitions < 2) throw new IllegalArgumentException("Partitioning by hash needs at least 2 partitions");
+                    return new HashPartitioner(partitions);
+                case LABEL:
+                    if (labels.isEmpty()) throw new IllegalArgumentException("Partitioning by label needs partition_labels");
+                    return new LabelPartitioner(reader.labels(), labels, defaultPartition);
+                default:
+                    if (property == null || ranges.isEmpty()) throw new IllegalArgumentException("Partitioning by property needs partition_property and partition_ranges");
+                    return new RangePartitioner(reader.propertyKeys(), property, ranges, defaultPartition);
+            }
+        }
+    }
+
+    interface Partitioner {
+        int partitions();
+
+        /**
+         * @param cursor positioned on the node, with its properties read
+         * @return the partition of the node, -1 if it is not copied
+         */
+        int partition(long nodeId, long[] labelIds, StoreReader.RecordCursor cursor);
+    }
+
+    static class HashPartitioner implements Partitioner {
+        private final int partitions;
+
+        HashPartitioner(int partitions) {
+            this.partitions = partitions;
+        }
+
+        @Override
+        public int partitions() {
+            return partitions;
+        }
+
+        @Override
+        public int partition(long nodeId, long[] labelIds, StoreReader.RecordCursor cursor) {
+            // the finalizer of murmur3, spreads neighbouring ids over all partitions
+            long hash = nodeId;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return (int) Long.remainderUnsigned(hash, partitions);
+        }
+    }
+
+    /**
+     * A node with several partitioned labels goes to the lowest of their partitions.
+     */
+    static class LabelPartitioner implements Partitioner {
+        private final int[] partitionByLabel;
+        private final int defaultPartition;
+        private final int partitions;
+
+        LabelPartitioner(String[] labelNames, Map<String, String> labels, int defaultPartition) {
+            this.partitionByLabel = new int[labelNames.length];
+            this.defaultPartition = defaultPartition;
+            Arrays.fill(partitionByLabel, -1);
+            int partitions = defaultPartition + 1;
+            for (Map.Entry<String, String> entry : labels.entrySet()) {
+                int partition = Integer.parseInt(entry.getValue());
+                partitions = Math.max(partitions, partition + 1);
+                int labelId = Arrays.asList(labelNames).indexOf(entry.getKey());
+                if (labelId < 0) throw new IllegalArgumentException("Partition label " + entry.getKey() + " does not exist in the source");
+                partitionByLabel[labelId] = partition;
+            }
+            this.partitions = partitions;
+        }
+
+        @Override
+        public int partitions() {
+            return partitions;
+        }
+
+        @Override
+        public int partition(long nodeId, long[] labelIds, StoreReader.RecordCursor cursor) {
+            int result = -1;
+            for (long labelId : labelIds) {
+                int partition = partitionByLabel[(int) labelId];
+                if (partition >= 0 && (result < 0 || partition < result)) result = partition;
+            }
+            return result < 0 ? defaultPartition : result;
+        }
+    }
+
+    /**
+     * Partition n holds the nodes whose property value is in the n-th range, in the order of {@code partition_ranges}.
+     * Numbers are compared with numeric bounds, text with text bounds, other values match no range.
+     */
+    static class RangePartitioner implements Partitioner {
+        private final int keyId;
+        private final Double[] numberFrom, numberTo;
+        private final String[] textFrom, textTo;
+        private final int defaultPartition;
+
+        RangePartitioner(String[] keyNames, String property, Collection<String> ranges, int defaultPartition) {
+            this.keyId = Arrays.asList(keyNames).indexOf(property);
+            if (keyId < 0) throw new IllegalArgumentException("Partition property " + property + " does not exist in the source");
+            this.defaultPartition = defaultPartition;
+            int count = ranges.size();
+            numberFrom = new Double[count];
+            numberTo = new Double[count];
+            textFrom = new String[count];
+            textTo = new String[count];
+            int i = 0;
+            for (String range : ranges) {
+                int colon = range.indexOf(':');
+                if (colon < 0) throw new IllegalArgumentException("Expected from:to instead of " + range);
+                textFrom[i] = range.substring(0, colon).trim();
+                textTo[i] = range.substring(colon + 1).trim();
+                numberFrom[i] = number(textFrom[i]);
+                numberTo[i] = number(textTo[i]);
+                i++;
+            }
+        }
+
+        private static Double number(String bound) {
+            if (bound.isEmpty()) return null;
+            try {
+                return Double.valueOf(bound);
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+
+        @Override
+        public int partitions() {
+            return Math.max(textFrom.length, defaultPartition + 1);
+        }
+
+        @Override
+        public int partition(long nodeId, long[] labelIds, StoreReader.RecordCursor cursor) {
+            for (int i = 0, count = cursor.propertyCount(); i < count; i++) {
+                if (cursor.propertyKeyId(i) != keyId) continue;
+                Value value = cursor.propertyValue(i);
+                for (int range = 0; range < textFrom.length; range++) {
+                    if (value instanceof NumberValue ? inRange(((NumberValue) value).doubleValue(), range)
+                            : value instanceof TextValue && inRange(((TextValue) value).stringValue(), range)) return range;
+                }
+                break;
+            }
+            return defaultPartition;
+        }
+
+        private boolean inRange(double value, int range) {
+            Double from = numberFrom[range], to = numberTo[range];
+            if ((from != null && from.isNaN()) || (to != null && to.isNaN())) return false;
+            return (from == null || value >= from) && (to == null || value < to);
+        }
+
+        private boolean inRange(String value, int range) {
+            if (numberFrom[range] != null && !numberFrom[range].isNaN() || numberTo[range] != null && !numberTo[range].isNaN()) return false;
+            return (textFrom[range].isEmpty() || value.compareTo(textFrom[range]) >= 0) && (textTo[range].isEmpty() || value.compareTo(textTo[range]) < 0);
+        }
+    }
+
+    private final StoreReader reader;
+    private final CopyFilter filter;
+    private final Partitioner partitioner;
+    private final boolean stableNodeIds;
+    private final BadEntryLog badEntries;
+    private final CopyMetrics metrics;
+    private final BatchInserter[] targets;
+    private final AdaptiveFlusher[] flushers;
+    private final NodeIdMap[] nodeIds;
+    private IntArray partitionOfNode;   // by source node id, -1 if the node was not copied
+    private final long[] nodeCounts;
+    private final long[] relationshipCounts;
+
+    private PartitionedCopy(StoreReader reader, CopyFilter filter, Partitioner partitioner, boolean stableNodeIds, BadEntryLog badEntries, CopyMetrics metrics, int partitions) {
+        this.reader = reader;
+        this.filter = filter;
+        this.partitioner = partitioner;
+        this.stableNodeIds = stableNodeIds;
+        this.badEntries = badEntries;
+        this.metrics = metrics;
+        this.targets = new BatchInserter[partitions];
+        this.flushers = new AdaptiveFlusher[partitions];
+        this.nodeIds = new NodeIdMap[partitions];
+        this.nodeCounts = new long[partitions];
+        this.relationshipCounts = new long[partitions];
+    }
+
+    /**
+     * Every partition gets a directory of its own, as the store lock is taken in the parent of a store.
+     */
+    static File partitionDirectory(File target, int partition) {
+        return new File(new File(target, "partition-" + partition), "graph.db");
+    }
+
+    /**
+     * @return the directories of the partitions
+     */
+    static List<File> copyStore(StoreReader reader, File target, File logDir, long highestNodeId, long highestRelId, CopyFilter.Rules rules, Rules partitionRules,
+                                boolean stableNodeIds, String pageCacheSize, AdaptiveFlusher flusher, BadEntryLog badEntries, CopyMetrics metrics) throws IOException {
+        Partitioner partitioner = partitionRules.compile(reader);
+        int partitions = partitioner.partitions();
+        PartitionedCopy copy = new PartitionedCopy(reader, rules.compile(reader), partitioner, stableNodeIds, badEntries, metrics, partitions);
+        String partitionPageCache = String.valueOf(ByteUnit.parse(pageCacheSize) / partitions);
+        List<File> directories = new ArrayList<>();
+        System.out.printf("Copying into %d partitions with %s bytes of page cache each%n", partitions, partitionPageCache);
+        try {
+            for (int p = 0; p < partitions; p++) {
+                File directory = partitionDirectory(target, p);
+                directories.add(directory);
+                copy.flushers[p] = flusher.copy();
+                copy.targets[p] = BatchInserters.inserter(directory, copy.flushers[p].configure(MapUtil.stringMap("dbms.pagecache.memory", partitionPageCache)));
+                copy.nodeIds[p] = stableNodeIds ? new KeptNodeIdMap(highestNodeId) : new CompactNodeIdMap(highestNodeId);
+            }
+            copy.partitionOfNode = NumberArrayFactory.AUTO_WITHOUT_PAGECACHE.newIntArray(highestNodeId + 1, -1);
+            copy.copyNodes(highestNodeId);
+            try (PrintWriter cross = new PrintWriter(new BufferedWriter(new FileWriter(new File(logDir, CROSS_FILE)), 1 << 16))) {
+                cross.println("relationship\ttype\tstart\tstart_partition\tend\tend_partition");
+                copy.copyRelationships(highestRelId, cross);
+            }
+        } finally {
+            if (copy.partitionOfNode != null) copy.partitionOfNode.close();
+            for (int p = 0; p < partitions; p++) {
+                if (copy.nodeIds[p] != null) copy.nodeIds[p].close();
+                if (copy.targets[p] != null) copy.targets[p].shutdown();
+            }
+        }
+        for (int p = 0; p < partitions; p++) {
+            System.out.printf(" partition %d: %d nodes %d relationships, %s%n", p, copy.nodeCounts[p], copy.relationshipCounts[p], copy.flushers[p]);
+        }
+        copy.filter.reportSlimming();
+        return directories;
+    }
+
+    private void copyNodes(long highestNodeId) {
+        long time = System.currentTimeMillis();
+        long node = 0, notFound = 0, removed = 0;
+        Map<String, Object> properties = new HashMap<>();
+        metrics.phase("nodes", highestNodeId);
+        try (StoreReader.RecordCursor cursor = reader.newCursor()) {
+            while (node <= highestNodeId) {
+                try {
+                    if (cursor.node(node)) {
+                        long[] labelIds = cursor.labelIds();
+                        Map<String, Object> props = filter.deletesNode(labelIds) ? null : StoreCopy.nodeProperties(filter, cursor, labelIds, properties);
+                        int partition = props == null ? -1 : partitioner.partition(node, labelIds, cursor);
+                        if (partition < 0) {
+                            removed++;
+                        } else if (stableNodeIds) {
+                            targets[partition].createNode(node, props, filter.labels(labelIds));
+                            flushers[partition].written(targets[partition]);
+                            ((KeptNodeIdMap) nodeIds[partition]).add(node);
+                            partitionOfNode.set(node, partition);
+                            nodeCounts[partition]++;
+                        } else {
+                            CompactNodeIdMap compactedNodes = (CompactNodeIdMap) nodeIds[partition];
+                            targets[partition].createNode(compactedNodes.nextTargetId(), props, filter.labels(labelIds));
+                            flushers[partition].written(targets[partition]);
+                            compactedNodes.add(node);
+                            partitionOfNode.set(node, partition);
+                            nodeCounts[partition]++;
+                        }
+                    } else {
+                        notFound++;
+                    }
+                } catch (Exception e) {
+                    if (e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use")) {
+                        notFound++;
+                    } else badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                }
+                node++;
+                if (node % 10000 == 0) {
+                    System.out.print(".");
+                    metrics.update(node, notFound, removed);
+                }
+                if (node % 500000 == 0) {
+                    System.out.printf(" %d / %d (%d%%) unused %d removed %d%n", node, highestNodeId, percent(node, highestNodeId), notFound, removed);
+                }
+            }
+        }
+        time = Math.max(1, (System.currentTimeMillis() - time) / 1000);
+        System.out.printf("%n copying of %d node records took %d seconds (%d rec/s). Unused Records %d (%d%%). Removed Records %d (%d%%).%n",
+                node, time, node / time, notFound, percent(notFound, node), removed, percent(removed, node));
+    }
+
+    private void copyRelationships(long highestRelId, PrintWriter cross) {
+        long time = System.currentTimeMillis();
+        long relId = 0, notFound = 0, removed = 0, crossing = 0;
+        Map<String, Object> properties = new HashMap<>();
+        metrics.phase("relationships", highestRelId);
+        try (StoreReader.RecordCursor cursor = reader.newCursor()) {
+            while (relId <= highestRelId) {
+                try {
+                    if (!cursor.relationship(relId)) {
+                        notFound++;
+                    } else if (filter.ignoresType(cursor.typeId())) {
+                        removed++;
+                    } else {
+                        int startPartition = partitionOfNode.get(cursor.startNode()), endPartition = partitionOfNode.get(cursor.endNode());
+                        if (startPartition < 0 || endPartition < 0) {
+                            removed++;
+                        } else if (startPartition != endPartition) {
+                            crossing++;
+                            cross.printf("%d\t%s\t%d\t%d\t%d\t%d%n", relId, reader.relType(cursor.typeId()), cursor.startNode(), startPartition, cursor.endNode(), endPartition);
+                        } else {
+                            RelationshipType type = filter.type(cursor.typeId());
+                            NodeIdMap map = nodeIds[startPartition];
+                            targets[startPartition].createRelationship(map.get(cursor.startNode()), map.get(cursor.endNode()), type,
+                                    StoreCopy.relationshipProperties(filter, cursor, properties));
+                            flushers[startPartition].written(targets[startPartition]);
+                            relationshipCounts[startPartition]++;
+                        }
+                    }
+                } catch (Exception e) {
+                    if (e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use")) {
+                        notFound++;
+                    } else {
+                        badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, relId, e);
+                    }
+                }
+                relId++;
+                if (relId % 10000 == 0) {
+                    System.out.print(".");
+                    metrics.update(relId, notFound, removed);
+                }
+                if (relId % 500000 == 0) {
+                    System.out.printf(" %d / %d (%d%%) unused %d removed %d crossing %d%n", relId, highestRelId, percent(relId, highestRelId), notFound, removed, crossing);
+                }
+            }
+        }
+        time = Math.max(1, (System.currentTimeMillis() - time) / 1000);
+        System.out.printf("%n copying of %d relationship records took %d seconds (%d rec/s). Unused Records %d (%d%%) Removed Records %d (%d%%) Crossing partitions %d (%d%%)%n",
+                relId, time, relId / time, notFound, percent(notFound, relId), removed, percent(removed, relId), crossing, percent(crossing, relId));
+    }
+
+    private static int percent(Number part, Number total) {
+        return (int) (100 * part.floatValue() / total.floatValue());
+    }
+}
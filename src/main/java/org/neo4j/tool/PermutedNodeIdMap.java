@@ -0,0 +1,82 @@
+package org.neo4j.tool;
+
+import org.neo4j.unsafe.impl.batchimport.cache.LongArray;
+import org.neo4j.unsafe.impl.batchimport.cache.NumberArrayFactory;
+
+import java.io.*;
+
+/**
+ * Maps source node ids to target node ids in an arbitrary order, as computed by {@link NodeRenumbering}.
+ * Target ids are still dense, the node at position p of the order gets target id p, so the nodes are copied
+ * by walking the positions. Keeps the target position of every source id and the source id of every position
+ * off-heap, which is 8 bytes per source id plus 8 bytes per copied node.
+ */
+class PermutedNodeIdMap implements NodeIdMap {
+    private final long highestSourceId;
+    private final long count;
+    private final LongArray positions;
+    private final LongArray sourceIds;
+
+    PermutedNodeIdMap(long highestSourceId, long count) {
+        this.highestSourceId = highestSourceId;
+        this.count = count;
+        this.positions = NumberArrayFactory.AUTO_WITHOUT_PAGECACHE.newLongArray(highestSourceId + 1, -1);
+        this.sourceIds = NumberArrayFactory.AUTO_WITHOUT_PAGECACHE.newLongArray(Math.max(1, count), -1);
+    }
+
+    void map(long sourceId, long position) {
+        positions.set(sourceId, position);
+        sourceIds.set(position, sourceId);
+    }
+
+    /**
+     * @return the source id of the node at the position of the order
+     */
+    long sourceId(long position) {
+        return sourceIds.get(position);
+    }
+
+    @Override
+    public long get(long sourceId) {
+        if (sourceId < 0 || sourceId > highestSourceId) return -1L;
+        long position = positions.get(sourceId);
+        return position == -1L ? -1L : CompactNodeIdMap.targetId(position);
+    }
+
+    @Override
+    public long size() {
+        return count;
+    }
+
+    @Override
+    public long memoryUsage() {
+        return (positions.length() + sourceIds.length()) * Long.BYTES;
+    }
+
+    @Override
+    public void writeTo(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeLong(highestSourceId);
+            out.writeLong(count);
+            for (long i = 0; i < count; i++) {
+                out.writeLong(sourceIds.get(i));
+            }
+        }
+    }
+
+    static PermutedNodeIdMap readFrom(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            PermutedNodeIdMap map = new PermutedNodeIdMap(in.readLong(), in.readLong());
+            for (long i = 0; i < map.count; i++) {
+                map.map(in.readLong(), i);
+            }
+            return map;
+        }
+    }
+
+    @Override
+    public void close() {
+        positions.close();
+        sourceIds.close();
+    }
+}
@@ -116,7 +116,7 @@ public class PropertyAnalyzer {
         outputEmptyCounts(withoutProps, props, nodes, rels);
     }
 
-    private static int analyzeProperties(Map<String, PropertyInfo> props, PropertyContainer propertyContainer) {
+    static int analyzeProperties(Map<String, PropertyInfo> props, PropertyContainer propertyContainer) {
         boolean hasProps = false;
         for (String property : propertyContainer.getPropertyKeys()) {
             hasProps=true;
@@ -0,0 +1,408 @@
+package org.neo4j.tool;
+
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.neo4j.values.storable.ArrayValue;
+import org.neo4j.values.storable.TextArray;
+import org.neo4j.values.storable.TextValue;
+import org.neo4j.values.storable.Value;
+import org.neo4j.values.storable.Values;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shrinks the property store of the target by storing property values in a smaller form, driven by an analysis of
+ * the values of the source like the one of {@link PropertyAnalyzer}. Every rule is opt-in for a set of property
+ * keys, {@code *} for all keys, and what it changed is reported per key at the end of the copy.
+ * <ul>
+ * <li>empty values: empty strings and arrays are not copied.</li>
+ * <li>numeric strings: strings of a key whose string values are all canonical numbers, like {@code 42} or
+ * {@code 0.5} but not {@code 007}, are stored as long or double. A single string of the key that is no number
+ * keeps all strings of the key as they are, so that a key never mixes numbers and numeric strings.</li>
+ * <li>arrays: integral arrays are stored with the smallest element type that holds all elements of all arrays of the
+ * key, double arrays as float arrays if all their elements of the key are exact floats. The dynamic array store
+ * bit-packs integral arrays already, narrowing them gains little on disk but some heap in applications, the gain is
+ * on double arrays.</li>
+ * <li>duplicates: strings and arrays of at least {@code duplicateMinBytes} that repeat within a key are counted with
+ * the bytes that sharing them would save. Property records cannot share values in this store format, so they are
+ * reported to drive a model change, e.g. moving the value to a node of its own, and are copied as they are.</li>
+ * </ul>
+ * The analysis reads the property store of the source once when the copy rules are compiled, if numeric strings,
+ * arrays or duplicates are slimmed. A copy that can be caught up records its decisions per key, so that the catch-up
+ * slims as the copy did instead of analyzing the source again, values that are added later and do not fit the
+ * decisions are copied unchanged.
+ */
+class PropertySlimming {
+    // distinct values remembered by the duplicate analysis, over all keys
+    private static final int DUPLICATE_HASHES = 10_000_000;
+
+    private enum ArrayType { BYTE, SHORT, INT, LONG }
+
+    /**
+     * The uncompiled slimming rules as configured, sets of source property keys.
+     */
+    static class Rules {
+        static final Rules NONE = new Rules(Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), Collections.emptySet(), 0);
+
+        final Set<String> emptyValues;
+        final Set<String> numericStrings;
+        final Set<String> arrays;
+        final Set<String> duplicates;
+        final int duplicateMinBytes;
+
+        Rules(Set<String> emptyValues, Set<String> numericStrings, Set<String> arrays, Set<String> duplicates, int duplicateMinBytes) {
+            this.emptyValues = emptyValues;
+            this.numericStrings = numericStrings;
+            this.arrays = arrays;
+            this.duplicates = duplicates;
+            this.duplicateMinBytes = duplicateMinBytes;
+        }
+
+        boolean isEmpty() {
+            return emptyValues.isEmpty() && numericStrings.isEmpty() && arrays.isEmpty() && duplicates.isEmpty();
+        }
+
+        PropertySlimming compile(StoreReader reader) {
+            PropertySlimming slimming = new PropertySlimming(this, reader.propertyKeys());
+            if (!numericStrings.isEmpty() || !arrays.isEmpty() || !duplicates.isEmpty()) slimming.analyze(reader);
+            return slimming;
+        }
+
+        /**
+         * Compiles the rules with the decisions recorded in the file, or analyzes the source and records them there.
+         */
+        PropertySlimming compile(StoreReader reader, File decisions) throws IOException {
+            if (!decisions.exists()) {
+                PropertySlimming slimming = compile(reader);
+                slimming.writeDecisions(decisions);
+                return slimming;
+            }
+            PropertySlimming slimming = new PropertySlimming(this, reader.propertyKeys());
+            slimming.readDecisions(decisions);
+            return slimming;
+        }
+
+        private static boolean matches(Set<String> keys, String key) {
+            return keys.contains("*") || keys.contains(key);
+        }
+    }
+
+    private final Rules rules;
+    private final String[] keyNames;
+    private final boolean[] dropEmpty;
+    private final boolean[] numeric;        // all strings of the key are numbers
+    private final ArrayType[] integralType; // element type of the integral arrays of the key, null to keep them
+    private final boolean[] floats;         // all double arrays of the key hold floats
+    private final LongAdder[] dropped;
+    private final LongAdder[] converted;
+    private final LongAdder[] narrowed;
+    private final LongAdder[] narrowedBytes;
+
+    private PropertySlimming(Rules rules, String[] keyNames) {
+        this.rules = rules;
+        this.keyNames = keyNames;
+        int keys = keyNames.length;
+        dropEmpty = new boolean[keys];
+        numeric = new boolean[keys];
+        integralType = new ArrayType[keys];
+        floats = new boolean[keys];
+        dropped = new LongAdder[keys];
+        converted = new LongAdder[keys];
+        narrowed = new LongAdder[keys];
+        narrowedBytes = new LongAdder[keys];
+        for (int id = 0; id < keys; id++) {
+            if (keyNames[id] == null) continue;
+            dropEmpty[id] = Rules.matches(rules.emptyValues, keyNames[id]);
+            dropped[id] = new LongAdder();
+            converted[id] = new LongAdder();
+            narrowed[id] = new LongAdder();
+            narrowedBytes[id] = new LongAdder();
+        }
+    }
+
+    /**
+     * Scans the property store of the source for the keys of the numeric string, array and duplicate rules.
+     */
+    private void analyze(StoreReader reader) {
+        long time = System.currentTimeMillis();
+        int keys = keyNames.length;
+        boolean[] wanted = new boolean[keys], analyzeNumeric = new boolean[keys], analyzeArrays = new boolean[keys], analyzeDuplicates = new boolean[keys];
+        boolean[] sawString = new boolean[keys], sawIntegral = new boolean[keys], sawDoubles = new boolean[keys];
+        long[] min = new long[keys], max = new long[keys];
+        LongHashSet[] seen = new LongHashSet[keys];
+        long[] repeated = new long[keys], repeatedBytes = new long[keys];
+        long hashes = 0;
+        for (int id = 0; id < keys; id++) {
+            String key = keyNames[id];
+            if (key == null) continue;
+            analyzeNumeric[id] = numeric[id] = Rules.matches(rules.numericStrings, key);
+            analyzeArrays[id] = floats[id] = Rules.matches(rules.arrays, key);
+            analyzeDuplicates[id] = Rules.matches(rules.duplicates, key);
+            wanted[id] = analyzeNumeric[id] || analyzeArrays[id] || analyzeDuplicates[id];
+            if (analyzeDuplicates[id]) seen[id] = new LongHashSet();
+            min[id] = Long.MAX_VALUE;
+            max[id] = Long.MIN_VALUE;
+        }
+        long highestPropertyId = reader.highestPropertyId();
+        try (StoreReader.RecordCursor cursor = reader.newCursor()) {
+            for (long propertyId = 0; propertyId <= highestPropertyId; propertyId++) {
+                int count;
+                try {
+                    count = cursor.propertyRecord(propertyId, wanted);
+                } catch (Exception e) {
+                    // broken records are reported by the copy
+                    continue;
+                }
+                for (int i = 0; i < count; i++) {
+                    int keyId = cursor.propertyKeyId(i);
+                    Value value = cursor.propertyValue(i);
+                    if (analyzeNumeric[keyId] && value instanceof TextValue && !(dropEmpty[keyId] && ((TextValue) value).length() == 0)) {
+                        sawString[keyId] = true;
+                        if (numeric[keyId] && number(((TextValue) value).stringValue()) == null) numeric[keyId] = false;
+                    }
+                    if (analyzeArrays[keyId] && value instanceof ArrayValue) {
+                        Object array = value.asObject();
+                        if (array instanceof double[]) {
+                            sawDoubles[keyId] = true;
+                            if (floats[keyId] && !isFloats((double[]) array)) floats[keyId] = false;
+                        } else if (isIntegral(array)) {
+                            sawIntegral[keyId] = true;
+                            for (int j = 0, length = java.lang.reflect.Array.getLength(array); j < length; j++) {
+                                long element = ((Number) java.lang.reflect.Array.get(array, j)).longValue();
+                                min[keyId] = Math.min(min[keyId], element);
+                                max[keyId] = Math.max(max[keyId], element);
+                            }
+                        }
+                    }
+                    if (analyzeDuplicates[keyId] && (value instanceof TextValue || value instanceof ArrayValue)) {
+                        long bytes = bytes(value);
+                        if (bytes < rules.duplicateMinBytes) continue;
+                        long hash = value.hashCode64() * 31 + bytes;
+                        if (seen[keyId].contains(hash)) {
+                            repeated[keyId]++;
+                            repeatedBytes[keyId] += bytes;
+                        } else if (hashes < DUPLICATE_HASHES) {
+                            seen[keyId].add(hash);
+                            hashes++;
+                        }
+                    }
+                }
+            }
+        }
+        for (int id = 0; id < keys; id++) {
+            numeric[id] &= sawString[id];
+            floats[id] &= sawDoubles[id];
+            if (analyzeArrays[id] && sawIntegral[id]) integralType[id] = arrayType(min[id], max[id]);
+        }
+        System.out.printf("Analyzing %d property records for slimming took %d seconds%n", highestPropertyId + 1, (System.currentTimeMillis() - time) / 1000);
+        for (int id = 0; id < keys; id++) {
+            if (numeric[id]) System.out.printf(" strings of %s are all numbers, storing them as numbers%n", keyNames[id]);
+            if (integralType[id] != null) System.out.printf(" integral arrays of %s fit in %s elements in [%d,%d]%n", keyNames[id], integralType[id].name().toLowerCase(), min[id], max[id]);
+            if (floats[id]) System.out.printf(" double arrays of %s are all floats, storing them as float arrays%n", keyNames[id]);
+            if (repeated[id] > 0) {
+                System.out.printf(" %d values of %s of at least %d bytes repeat, sharing them would save %d bytes%n", repeated[id], keyNames[id], rules.duplicateMinBytes, repeatedBytes[id]);
+            }
+        }
+        if (hashes >= DUPLICATE_HASHES) System.out.printf(" only the first %d distinct values were analyzed for duplicates%n", DUPLICATE_HASHES);
+    }
+
+    /**
+     * Writes the numeric string and array decisions of the analysis by key name, keys without any are left out.
+     */
+    private void writeDecisions(File file) throws IOException {
+        Properties decisions = new Properties();
+        for (int id = 0; id < keyNames.length; id++) {
+            if (keyNames[id] == null) continue;
+            List<String> decided = new ArrayList<>();
+            if (numeric[id]) decided.add("numbers");
+            if (integralType[id] != null) decided.add(integralType[id].name().toLowerCase());
+            if (floats[id]) decided.add("floats");
+            if (!decided.isEmpty()) decisions.setProperty(keyNames[id], String.join(",", decided));
+        }
+        try (Writer writer = new FileWriter(file)) {
+            decisions.store(writer, "StoreCopy slimming decisions");
+        }
+    }
+
+    /**
+     * Takes the decisions of an earlier analysis for the keys the rules still slim, keys created since are not slimmed.
+     */
+    private void readDecisions(File file) throws IOException {
+        Properties decisions = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            decisions.load(reader);
+        }
+        for (int id = 0; id < keyNames.length; id++) {
+            String key = keyNames[id];
+            if (key == null || !decisions.containsKey(key)) continue;
+            List<String> decided = Arrays.asList(decisions.getProperty(key).split(","));
+            numeric[id] = decided.contains("numbers") && Rules.matches(rules.numericStrings, key);
+            floats[id] = decided.contains("floats") && Rules.matches(rules.arrays, key);
+            if (!Rules.matches(rules.arrays, key)) continue;
+            for (ArrayType type : ArrayType.values()) {
+                if (decided.contains(type.name().toLowerCase())) integralType[id] = type;
+            }
+        }
+        System.out.printf("Slimming with the decisions of %d keys from %s%n", decisions.size(), file);
+    }
+
+    /**
+     * @return true if the value is dropped as empty, counted for the report
+     */
+    boolean drops(int keyId, Value value) {
+        if (!dropEmpty[keyId]) return false;
+        boolean empty = value instanceof TextValue ? ((TextValue) value).length() == 0
+                : value instanceof ArrayValue && ((ArrayValue) value).length() == 0;
+        if (empty) dropped[keyId].increment();
+        return empty;
+    }
+
+    /**
+     * @return the value to store in the target, counted for the report if it is slimmed
+     */
+    Value slim(int keyId, Value value) {
+        if (numeric[keyId] && value instanceof TextValue) {
+            Value number = number(((TextValue) value).stringValue());
+            if (number == null) return value;
+            converted[keyId].increment();
+            return number;
+        }
+        if ((floats[keyId] || integralType[keyId] != null) && value instanceof ArrayValue) {
+            Object array = value.asObject();
+            Object narrow = array instanceof double[] ? floats[keyId] ? toFloats((double[]) array) : null
+                    : integralType[keyId] != null && isIntegral(array) ? narrow(array, integralType[keyId]) : null;
+            if (narrow == null) return value;
+            narrowed[keyId].increment();
+            narrowedBytes[keyId].add(bytes(value) - elementBytes(narrow) * java.lang.reflect.Array.getLength(narrow));
+            return Values.of(narrow);
+        }
+        return value;
+    }
+
+    /**
+     * Prints what the rules changed per key.
+     */
+    void report() {
+        for (int id = 0; id < keyNames.length; id++) {
+            if (keyNames[id] == null) continue;
+            long drops = dropped[id].sum(), conversions = converted[id].sum(), narrowings = narrowed[id].sum();
+            if (drops > 0) System.out.printf(" slimming dropped %d empty values of %s%n", drops, keyNames[id]);
+            if (conversions > 0) System.out.printf(" slimming stored %d strings of %s as numbers%n", conversions, keyNames[id]);
+            if (narrowings > 0) System.out.printf(" slimming narrowed %d arrays of %s by %d bytes%n", narrowings, keyNames[id], narrowedBytes[id].sum());
+        }
+    }
+
+    /**
+     * Forgets the counts, for a second pass over the same values.
+     */
+    void resetReport() {
+        for (int id = 0; id < keyNames.length; id++) {
+            if (keyNames[id] == null) continue;
+            dropped[id].reset();
+            converted[id].reset();
+            narrowed[id].reset();
+            narrowedBytes[id].reset();
+        }
+    }
+
+    /**
+     * @return the number the text is the canonical form of, null if there is none
+     */
+    static Value number(String text) {
+        int length = text.length();
+        if (length == 0 || length > 24) return null;
+        char first = text.charAt(0);
+        if (first != '-' && (first < '0' || first > '9')) return null;
+        try {
+            long number = Long.parseLong(text);
+            return Long.toString(number).equals(text) ? Values.longValue(number) : null;
+        } catch (NumberFormatException e) {
+            // not integral
+        }
+        try {
+            double number = Double.parseDouble(text);
+            return !Double.isInfinite(number) && Double.toString(number).equals(text) ? Values.doubleValue(number) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static boolean isIntegral(Object array) {
+        return array instanceof long[] || array instanceof int[] || array instanceof short[] || array instanceof byte[];
+    }
+
+    private static boolean isFloats(double[] array) {
+        for (double element : array) {
+            if ((double) (float) element != element && !Double.isNaN(element)) return false;
+        }
+        return true;
+    }
+
+    private static float[] toFloats(double[] array) {
+        if (!isFloats(array)) return null;
+        float[] result = new float[array.length];
+        for (int i = 0; i < array.length; i++) result[i] = (float) array[i];
+        return result;
+    }
+
+    private static ArrayType arrayType(long min, long max) {
+        if (min >= Byte.MIN_VALUE && max <= Byte.MAX_VALUE) return ArrayType.BYTE;
+        if (min >= Short.MIN_VALUE && max <= Short.MAX_VALUE) return ArrayType.SHORT;
+        if (min >= Integer.MIN_VALUE && max <= Integer.MAX_VALUE) return ArrayType.INT;
+        return ArrayType.LONG;
+    }
+
+    /**
+     * @return the array with the narrower element type, null if it has it already or has an element that does not fit
+     */
+    private static Object narrow(Object array, ArrayType type) {
+        int length = java.lang.reflect.Array.getLength(array);
+        if (elementBytes(array) <= 1 << type.ordinal()) return null;
+        long[] elements = new long[length];
+        for (int i = 0; i < length; i++) {
+            elements[i] = ((Number) java.lang.reflect.Array.get(array, i)).longValue();
+            if (arrayType(elements[i], elements[i]).ordinal() > type.ordinal()) return null;
+        }
+        switch (type) {
+            case BYTE: {
+                byte[] result = new byte[length];
+                for (int i = 0; i < length; i++) result[i] = (byte) elements[i];
+                return result;
+            }
+            case SHORT: {
+                short[] result = new short[length];
+                for (int i = 0; i < length; i++) result[i] = (short) elements[i];
+                return result;
+            }
+            case INT: {
+                int[] result = new int[length];
+                for (int i = 0; i < length; i++) result[i] = (int) elements[i];
+                return result;
+            }
+            default: return elements;
+        }
+    }
+
+    private static long elementBytes(Object array) {
+        Class<?> type = array.getClass().getComponentType();
+        if (type == byte.class || type == boolean.class) return 1;
+        if (type == short.class || type == char.class) return 2;
+        if (type == int.class || type == float.class) return 4;
+        return 8;
+    }
+
+    /**
+     * @return the size of the value as stored, roughly, strings as one byte per char
+     */
+    private static long bytes(Value value) {
+        if (value instanceof TextValue) return ((TextValue) value).stringValue().length();
+        if (value instanceof TextArray) {
+            long bytes = 0;
+            for (int i = 0, length = ((TextArray) value).length(); i < length; i++) bytes += ((TextArray) value).stringValue(i).length();
+            return bytes;
+        }
+        Object array = value.asObject();
+        return array.getClass().isArray() ? elementBytes(array) * java.lang.reflect.Array.getLength(array) : 8;
+    }
+}
@@ -0,0 +1,89 @@
+package org.neo4j.tool;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Maps source relationship ids to target relationship ids in a file of one long per source id, so that the mapping
+ * of large stores costs no memory. The copy writes the ids in increasing source id order through a window buffer,
+ * the catch-up looks up and updates a few ids at random. Target ids are stored plus one, so that the gaps of the
+ * file read as not copied.
+ */
+class RelationshipIdFile implements AutoCloseable {
+    private static final int WINDOW_ENTRIES = 1 << 16;
+
+    private final FileChannel channel;
+    private final ByteBuffer window = ByteBuffer.allocate(WINDOW_ENTRIES * Long.BYTES);
+    private final ByteBuffer single = ByteBuffer.allocate(Long.BYTES);
+    private long windowStart = -1;
+    private int windowEntries;
+
+    RelationshipIdFile(File file) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @param targetId the target id of the source relationship, -1 if it is not or no longer copied
+     */
+    void set(long sourceId, long targetId) throws IOException {
+        if (windowStart < 0 || sourceId < windowStart || sourceId >= windowStart + WINDOW_ENTRIES) {
+            flush();
+            windowStart = sourceId;
+        }
+        int index = (int) (sourceId - windowStart);
+        window.putLong(index * Long.BYTES, targetId + 1);
+        windowEntries = Math.max(windowEntries, index + 1);
+    }
+
+    /**
+     * Writes a single id in place, for updates at random source ids. {@link #set} writes the gaps of its window as
+     * not copied, which is right for a copy in source id order only.
+     */
+    void update(long sourceId, long targetId) throws IOException {
+        flush();
+        ((Buffer) single).clear();
+        single.putLong(0, targetId + 1);
+        long position = sourceId * Long.BYTES;
+        while (single.hasRemaining()) {
+            channel.write(single, position + single.position());
+        }
+    }
+
+    /**
+     * @return the target id of the source relationship or -1 if it was not copied
+     */
+    long get(long sourceId) throws IOException {
+        flush();
+        ((Buffer) single).clear();
+        long position = sourceId * Long.BYTES;
+        while (single.hasRemaining()) {
+            if (channel.read(single, position + single.position()) < 0) return -1L;
+        }
+        return single.getLong(0) - 1;
+    }
+
+    void flush() throws IOException {
+        if (windowEntries == 0) return;
+        // through Buffer, the covariant overrides of ByteBuffer compiled on newer JDKs do not exist on Java 8
+        ((Buffer) window).position(0).limit(windowEntries * Long.BYTES);
+        long position = windowStart * Long.BYTES;
+        while (window.hasRemaining()) {
+            position += channel.write(window, position);
+        }
+        ((Buffer) window).clear();
+        for (int i = 0; i < windowEntries; i++) window.putLong(i * Long.BYTES, 0);
+        windowEntries = 0;
+        windowStart = -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.force(false);
+        channel.close();
+    }
+}
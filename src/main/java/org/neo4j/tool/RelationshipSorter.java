@@ -0,0 +1,41 @@
+package org.neo4j.tool;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * External sort of relationships by (start node, type, end node), with the source relationship id as tie breaker.
+ * <p>
+ * Usage: {@link #add} all relationships, then {@link #next} through the sorted entries.
+ */
+class RelationshipSorter extends ExternalSorter {
+    private final long[] entry = new long[4]; // start, type, end, relationship id
+
+    RelationshipSorter(File directory, int bufferEntries) {
+        super(directory, 4, bufferEntries);
+    }
+
+    void add(long startNode, int type, long endNode, long relId) throws IOException {
+        entry[0] = startNode;
+        entry[1] = type;
+        entry[2] = endNode;
+        entry[3] = relId;
+        add(entry);
+    }
+
+    long startNode() {
+        return get(0);
+    }
+
+    int type() {
+        return (int) get(1);
+    }
+
+    long endNode() {
+        return get(2);
+    }
+
+    long relationshipId() {
+        return get(3);
+    }
+}
@@ -0,0 +1,286 @@
+package org.neo4j.tool;
+
+import org.eclipse.collections.impl.list.mutable.primitive.LongArrayList;
+import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
+import org.eclipse.collections.impl.map.mutable.primitive.LongObjectHashMap;
+import org.eclipse.collections.impl.set.mutable.primitive.LongHashSet;
+import org.neo4j.graphdb.Label;
+import org.neo4j.unsafe.batchinsert.BatchInserter;
+import org.neo4j.unsafe.batchinsert.BatchInserters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Copies a sample of the source instead of all of it, for small but realistic test and staging stores. The sampled
+ * nodes are copied in compacting mode with all relationships between them, the induced subgraph.
+ * <ul>
+ * <li>{@link Method#FOREST_FIRE} starts a fire at a random node, every burning node sets fire to a geometrically
+ * distributed number of its not yet burnt neighbours, with mean {@code p / (1 - p)} for the burn probability p,
+ * a fire that dies out is restarted at another random node. It keeps the degree distribution and the communities
+ * of the source well.</li>
+ * <li>{@link Method#RANDOM_WALK} walks to a random neighbour at every step and jumps back to its start node with
+ * the restart probability, a walk that finds no new nodes for a while starts again at another random node. It
+ * favours nodes of high degree.</li>
+ * </ul>
+ * Both read the relationship chains of the sampled nodes only, never the whole store, so the time taken is
+ * proportional to the size of the sample and the degrees of its nodes. Only relationships that the copy rules keep
+ * are followed, nodes that the rules delete are not sampled.
+ */
+class SampledCopy {
+    enum Method { FOREST_FIRE, RANDOM_WALK }
+
+    // random node ids tried before the sample is taken as all there is
+    private static final int SEED_ATTEMPTS = 100_000;
+    // steps without a new node before a walk starts again elsewhere
+    private static final int STALE_STEPS = 1000;
+    private static final int CACHED_DEGREE = 1000;
+
+    /**
+     * The uncompiled sampling options as configured.
+     */
+    static class Options {
+        final Method method;
+        final double fraction;
+        final double burnProbability;
+        final double restartProbability;
+        final long seed;
+
+        /**
+         * @param fraction size of the sample as a fraction of the node ids of the source
+         */
+        Options(Method method, double fraction, double burnProbability, double restartProbability, long seed) {
+            if (fraction <= 0 || fraction > 1) throw new IllegalArgumentException("The sample fraction has to be in (0,1] instead of " + fraction);
+            if (burnProbability <= 0 || burnProbability >= 1) throw new IllegalArgumentException("The burn probability has to be in (0,1) instead of " + burnProbability);
+            this.method = method;
+            this.fraction = fraction;
+            this.burnProbability = burnProbability;
+            this.restartProbability = restartProbability;
+            this.seed = seed;
+        }
+    }
+
+    private final StoreReader.RecordCursor cursor;
+    private final CopyFilter filter;
+    private final Options options;
+    private final long highestNodeId;
+    private final Random random;
+    private final LongHashSet sampled = new LongHashSet();
+    private final LongArrayList picked = new LongArrayList();
+    private final LongArrayList neighbours = new LongArrayList();
+    private final LongObjectHashMap<long[]> hubNeighbours = new LongObjectHashMap<>();
+    private long seenNeighbours;
+
+    private SampledCopy(StoreReader.RecordCursor cursor, CopyFilter filter, Options options, long highestNodeId) {
+        this.cursor = cursor;
+        this.filter = filter;
+        this.options = options;
+        this.highestNodeId = highestNodeId;
+        this.random = new Random(options.seed);
+    }
+
+    static void copyStore(StoreReader reader, File target, long highestNodeId, CopyFilter.Rules rules, Options options, Map<String, String> targetConfig,
+                          AdaptiveFlusher flusher, BadEntryLog badEntries, CopyMetrics metrics) throws IOException {
+        long size = Math.max(1, (long) (options.fraction * (highestNodeId + 1)));
+        CopyFilter filter = rules.compile(reader);
+        try (StoreReader.RecordCursor cursor = reader.newCursor()) {
+            SampledCopy copy = new SampledCopy(cursor, filter, options, highestNodeId);
+            long time = System.currentTimeMillis();
+            metrics.phase("sampling nodes", size);
+            if (options.method == Method.FOREST_FIRE) copy.forestFire(size, metrics); else copy.randomWalk(size, metrics);
+            System.out.printf("%n sampling %d of %d node ids by %s took %d seconds%n", copy.sampled.size(), highestNodeId + 1, options.method, (System.currentTimeMillis() - time) / 1000);
+
+            long[] nodes = copy.sampled.toSortedArray();
+            BatchInserter targetDb = BatchInserters.inserter(target, flusher.configure(targetConfig));
+            // sized to the sample, not to the source
+            LongLongHashMap copiedNodes = new LongLongHashMap(nodes.length);
+            try {
+                copy.copyNodes(nodes, targetDb, copiedNodes, flusher, badEntries, metrics);
+                copy.copyRelationships(nodes, targetDb, copiedNodes, flusher, badEntries, metrics);
+            } finally {
+                targetDb.shutdown();
+            }
+            System.out.println(" " + flusher);
+            filter.reportSlimming();
+        }
+    }
+
+    private void forestFire(long size, CopyMetrics metrics) {
+        LongArrayList burning = new LongArrayList();
+        int head = 0;
+        double logBurn = Math.log(options.burnProbability);
+        while (sampled.size() < size) {
+            if (head == burning.size()) {
+                long seed = randomNode();
+                if (seed == -1L) break;
+                burning.clear();
+                head = 0;
+                burning.add(seed);
+            }
+            long node = burning.get(head++);
+            int count = (int) Math.min(Integer.MAX_VALUE, Math.floor(Math.log(1 - random.nextDouble()) / logBurn));
+            for (int i = 0, picks = pickNeighbours(node, count, true); i < picks && sampled.size() < size; i++) {
+                long neighbour = picked.get(i);
+                if (isCopied(neighbour) && sampled.add(neighbour)) burning.add(neighbour);
+            }
+            if (sampled.size() % 10000 == 0) metrics.update(sampled.size(), 0, 0);
+        }
+    }
+
+    private void randomWalk(long size, CopyMetrics metrics) {
+        long start = -1L, current = -1L;
+        int staleSteps = 0;
+        while (sampled.size() < size) {
+            if (start == -1L || staleSteps > STALE_STEPS) {
+                start = current = randomNode();
+                if (start == -1L) break;
+                staleSteps = 0;
+            }
+            if (random.nextDouble() < options.restartProbability || pickNeighbours(current, 1, false) == 0) {
+                current = start;
+                staleSteps++;
+                continue;
+            }
+            current = picked.get(0);
+            if (isCopied(current) && sampled.add(current)) {
+                staleSteps = 0;
+                if (sampled.size() % 10000 == 0) metrics.update(sampled.size(), 0, 0);
+            } else {
+                if (!sampled.contains(current)) current = start;
+                staleSteps++;
+            }
+        }
+    }
+
+    /**
+     * @return an unsampled node the copy rules keep, added to the sample, -1 if none was found
+     */
+    private long randomNode() {
+        for (int attempt = 0; attempt < SEED_ATTEMPTS; attempt++) {
+            long node = (long) (random.nextDouble() * (highestNodeId + 1));
+            if (!sampled.contains(node) && isCopied(node)) {
+                sampled.add(node);
+                return node;
+            }
+        }
+        System.out.printf("%n found no unsampled node in %d attempts, the sample has %d nodes%n", SEED_ATTEMPTS, sampled.size());
+        return -1L;
+    }
+
+    private boolean isCopied(long node) {
+        try {
+            return cursor.node(node) && !filter.deletesNode(cursor.labelIds());
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Picks up to count neighbours uniformly at random over the followed relationships of the node, in one pass over
+     * its relationship chain by reservoir sampling. The neighbours of nodes with at least {@link #CACHED_DEGREE} of
+     * them are kept, walks come back to them often and would read their long chains again and again.
+     * @param unsampledOnly pick only neighbours that are not sampled yet
+     * @return the number of neighbours picked into {@link #picked}
+     */
+    private int pickNeighbours(long node, int count, boolean unsampledOnly) {
+        picked.clear();
+        if (count <= 0) return 0;
+        seenNeighbours = 0;
+        long[] cached = hubNeighbours.get(node);
+        if (cached != null) {
+            for (long other : cached) pick(other, count, unsampledOnly);
+            return picked.size();
+        }
+        neighbours.clear();
+        try {
+            if (!cursor.node(node)) return 0;
+            cursor.relationshipsOfNode((relId, other) -> {
+                if (filter.ignoresType(cursor.typeId())) return true;
+                neighbours.add(other);
+                pick(other, count, unsampledOnly);
+                return true;
+            });
+        } catch (Exception e) {
+            // a broken chain ends the visit, the neighbours picked so far are used
+        }
+        if (neighbours.size() >= CACHED_DEGREE) hubNeighbours.put(node, neighbours.toArray());
+        return picked.size();
+    }
+
+    private void pick(long other, int count, boolean unsampledOnly) {
+        if (unsampledOnly && sampled.contains(other)) return;
+        seenNeighbours++;
+        if (picked.size() < count) {
+            picked.add(other);
+        } else {
+            long index = (long) (random.nextDouble() * seenNeighbours);
+            if (index < count) picked.set((int) index, other);
+        }
+    }
+
+    /**
+     * Copies the sampled nodes in source id order and maps them to consecutive target ids.
+     */
+    private void copyNodes(long[] nodes, BatchInserter targetDb, LongLongHashMap copiedNodes, AdaptiveFlusher flusher, BadEntryLog badEntries, CopyMetrics metrics) {
+        long time = System.currentTimeMillis();
+        Map<String, Object> properties = new HashMap<>();
+        Map<String, Long> labelCounts = new TreeMap<>();
+        metrics.phase("nodes", nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            long node = nodes[i];
+            try {
+                cursor.node(node);
+                long[] labelIds = cursor.labelIds();
+                Label[] labels = filter.labels(labelIds);
+                long targetId = copiedNodes.size();
+                targetDb.createNode(targetId, StoreCopy.nodeProperties(filter, cursor, labelIds, properties), labels);
+                flusher.written(targetDb);
+                copiedNodes.put(node, targetId);
+                for (Label label : labels) labelCounts.merge(label.name(), 1L, Long::sum);
+            } catch (Exception e) {
+                badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+            }
+            if (i % 10000 == 0) metrics.update(i, 0, 0);
+        }
+        System.out.printf(" copying %d sampled nodes took %d seconds, labels %s%n", copiedNodes.size(), (System.currentTimeMillis() - time) / 1000, labelCounts);
+    }
+
+    /**
+     * Copies the relationships between sampled nodes from the chains of their start nodes, so each is copied once.
+     */
+    private void copyRelationships(long[] nodes, BatchInserter targetDb, LongLongHashMap copiedNodes, AdaptiveFlusher flusher, BadEntryLog badEntries, CopyMetrics metrics) {
+        long time = System.currentTimeMillis();
+        Map<String, Object> properties = new HashMap<>();
+        long[] counts = new long[2]; // copied, left out
+        metrics.phase("relationships", nodes.length);
+        for (int i = 0; i < nodes.length; i++) {
+            long node = nodes[i], startNode = copiedNodes.getIfAbsent(node, -1L);
+            if (startNode == -1L) continue;
+            try {
+                cursor.node(node);
+                cursor.relationshipsOfNode((relId, other) -> {
+                    if (cursor.startNode() != node || filter.ignoresType(cursor.typeId())) return true;
+                    long endNode = copiedNodes.getIfAbsent(other, -1L);
+                    if (endNode == -1L) {
+                        counts[1]++;
+                        return true;
+                    }
+                    try {
+                        targetDb.createRelationship(startNode, endNode, filter.type(cursor.typeId()), StoreCopy.relationshipProperties(filter, cursor, properties));
+                        flusher.written(targetDb);
+                        counts[0]++;
+                    } catch (Exception e) {
+                        badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, relId, e);
+                    }
+                    return true;
+                });
+            } catch (Exception e) {
+                badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+            }
+            if (i % 10000 == 0) metrics.update(i, 0, counts[1]);
+        }
+        System.out.printf(" copying %d relationships between sampled nodes took %d seconds, %d relationships from sampled to unsampled nodes left out, %.2f relationships per node%n",
+                counts[0], (System.currentTimeMillis() - time) / 1000, counts[1], (double) counts[0] / Math.max(1, copiedNodes.size()));
+    }
+}
@@ -0,0 +1,275 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.QueryExecutionException;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.TransientFailureException;
+import org.neo4j.graphdb.TransientTransactionFailureException;
+import org.neo4j.helpers.Exceptions;
+import org.neo4j.internal.kernel.api.TokenNameLookup;
+import org.neo4j.internal.kernel.api.schema.SchemaDescriptor;
+import org.neo4j.internal.kernel.api.schema.constraints.ConstraintDescriptor;
+import org.neo4j.kernel.impl.store.SchemaStorage;
+import org.neo4j.kernel.impl.store.record.ConstraintRule;
+import org.neo4j.storageengine.api.EntityType;
+import org.neo4j.storageengine.api.schema.StoreIndexDescriptor;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recreates the schema indexes and constraints of the source in the target after a copy, so that the target is
+ * ready for queries when the copy ends instead of populating its indexes on the first start.
+ * <p>
+ * The schema rules are read from the schema store of the source and translated with the copy rules: renamed labels,
+ * types and keys are renamed, rules on ignored or deleted labels, ignored types or ignored keys are dropped.
+ * The target is then opened embedded once, all indexes are created in one transaction so that they are populated
+ * together by one parallel scan of the store, the constraints, which populate their index while they are created,
+ * are created concurrently by {@code threads}. Indexes get the default index provider of the target, fulltext
+ * indexes their default analyzer. Failing rules, e.g. uniqueness violated by the copy or enterprise constraints on
+ * community, are reported and skipped.
+ */
+class SchemaCopy {
+    private static final int CONSTRAINT_ATTEMPTS = 10;
+    private static final long CONSTRAINT_BACKOFF_MS = 100;
+    private static final long CONSTRAINT_MAX_BACKOFF_MS = 10_000;
+
+    private final List<String> indexes = new ArrayList<>();
+    private final List<String> constraints = new ArrayList<>();
+    private final List<String> dropped = new ArrayList<>();
+
+    /**
+     * Reads the schema of the source and translates it to statements for the target.
+     */
+    static SchemaCopy read(StoreReader reader, CopyFilter.Rules rules) {
+        SchemaCopy schema = new SchemaCopy();
+        SchemaStorage storage = new SchemaStorage(reader.neoStores().getSchemaStore());
+        TokenNameLookup names = new TokenNameLookup() {
+            @Override public String labelGetName(int labelId) { return reader.label(labelId); }
+            @Override public String relationshipTypeGetName(int typeId) { return reader.relType(typeId); }
+            @Override public String propertyKeyGetName(int keyId) { return reader.propertyKey(keyId); }
+        };
+        Iterator<StoreIndexDescriptor> indexes = storage.indexesGetAll();
+        while (indexes.hasNext()) {
+            StoreIndexDescriptor index = indexes.next();
+            // unique indexes are created by their constraints
+            if (index.isUnique()) continue;
+            schema.add(schema.indexes, index.userDescription(names), index.schema(), reader, rules, tokens -> "fulltext".equals(index.providerKey())
+                    ? fulltextIndex(index.getName(), index.schema().entityType(), tokens)
+                    : "CREATE INDEX ON :" + tokens.entities.get(0) + "(" + String.join(",", tokens.properties) + ")");
+        }
+        Iterator<ConstraintRule> constraints = storage.constraintsGetAllIgnoreMalformed();
+        while (constraints.hasNext()) {
+            ConstraintDescriptor constraint = constraints.next().getConstraintDescriptor();
+            schema.add(schema.constraints, constraint.userDescription(names), constraint.schema(), reader, rules, tokens -> constraint(constraint.type(), constraint.schema().entityType(), tokens));
+        }
+        return schema;
+    }
+
+    private static String fulltextIndex(String name, EntityType entityType, Tokens tokens) {
+        return String.format("CALL db.index.fulltext.create%sIndex('%s', [%s], [%s])", entityType == EntityType.NODE ? "Node" : "Relationship",
+                name.replace("'", "\\'"), quoted(tokens.entities), quoted(tokens.properties));
+    }
+
+    private static String constraint(ConstraintDescriptor.Type type, EntityType entityType, Tokens tokens) {
+        if (entityType == EntityType.RELATIONSHIP) {
+            return "CREATE CONSTRAINT ON ()-[r:" + tokens.entities.get(0) + "]-() ASSERT exists(r." + tokens.properties.get(0) + ")";
+        }
+        String on = "CREATE CONSTRAINT ON (n:" + tokens.entities.get(0) + ") ASSERT ";
+        switch (type) {
+            case UNIQUE: return on + "n." + tokens.properties.get(0) + " IS UNIQUE";
+            case EXISTS: return on + "exists(n." + tokens.properties.get(0) + ")";
+            default: return on + "(n." + String.join(", n.", tokens.properties) + ") IS NODE KEY";
+        }
+    }
+
+    private static String quoted(List<String> names) {
+        StringBuilder result = new StringBuilder();
+        for (String name : names) {
+            if (result.length() > 0) result.append(", ");
+            // the procedures take plain names
+            result.append('\'').append(unescape(name).replace("'", "\\'")).append('\'');
+        }
+        return result.toString();
+    }
+
+    /**
+     * The target names of the labels or types and property keys of a rule, escaped for Cypher.
+     */
+    private static class Tokens {
+        final List<String> entities = new ArrayList<>();
+        final List<String> properties = new ArrayList<>();
+    }
+
+    private interface Statement {
+        String create(Tokens tokens);
+    }
+
+    private void add(List<String> statements, String description, SchemaDescriptor schema, StoreReader reader, CopyFilter.Rules rules, Statement statement) {
+        Tokens tokens = new Tokens();
+        boolean nodes = schema.entityType() == EntityType.NODE;
+        for (int id : schema.getEntityTokenIds()) {
+            String name = nodes ? reader.label(id) : reader.relType(id);
+            if (nodes ? rules.ignoreLabels.contains(name) || rules.deleteNodesWithLabels.contains(name) : rules.ignoreRelTypes.contains(name)) {
+                dropped.add(description + " on ignored " + name);
+                return;
+            }
+            tokens.entities.add(escape((nodes ? rules.renameLabels : rules.renameRelTypes).getOrDefault(name, name)));
+        }
+        for (int id : schema.getPropertyIds()) {
+            String key = reader.propertyKey(id);
+            if (rules.ignoreProperties.contains(key) || ignoredOnAny(rules, schema, reader, key)) {
+                dropped.add(description + " on ignored property " + key);
+                return;
+            }
+            tokens.properties.add(escape(rules.renameProperties.getOrDefault(key, key)));
+        }
+        statements.add(statement.create(tokens));
+    }
+
+    private static boolean ignoredOnAny(CopyFilter.Rules rules, SchemaDescriptor schema, StoreReader reader, String key) {
+        for (int id : schema.getEntityTokenIds()) {
+            String name = schema.entityType() == EntityType.NODE ? reader.label(id) : reader.relType(id);
+            if (rules.ignoreProperties.contains(name + "." + key)) return true;
+        }
+        return false;
+    }
+
+    private static String escape(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+
+    private static String unescape(String name) {
+        return name.substring(1, name.length() - 1).replace("``", "`");
+    }
+
+    boolean isEmpty() {
+        return indexes.isEmpty() && constraints.isEmpty();
+    }
+
+    /**
+     * Writes the statements to a file for a target that is not created by the copy, e.g. by an import of an export.
+     */
+    void write(File file, BadEntryLog log) throws IOException {
+        for (String rule : dropped) log.message("Schema rule not exported: " + rule);
+        try (PrintWriter out = new PrintWriter(new FileWriter(file))) {
+            for (String index : indexes) out.println(index + ";");
+            for (String constraint : constraints) out.println(constraint + ";");
+        }
+    }
+
+    /**
+     * Opens the target embedded and creates the schema, returns when all indexes are online.
+     */
+    void create(File target, Map<String, String> config, int threads, BadEntryLog log) throws InterruptedException {
+        for (String rule : dropped) log.message("Schema rule not copied: " + rule);
+        if (isEmpty()) return;
+        long time = System.currentTimeMillis();
+        System.out.printf("Creating %d indexes and %d constraints in the target with %d threads%n", indexes.size(), constraints.size(), threads);
+        GraphDatabaseService db = StoreMetadata.factory().newEmbeddedDatabaseBuilder(target).setConfig(config).newGraphDatabase();
+        try {
+            if (!createTogether(db, indexes)) {
+                for (String index : indexes) {
+                    try (Transaction tx = db.beginTx()) {
+                        if (execute(db, index, log)) tx.success();
+                    } catch (TransientFailureException e) {
+                        log.message("Failed to create " + index + ":" + System.lineSeparator() + Exceptions.stringify(e));
+                    }
+                }
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+            List<Future<?>> futures = new ArrayList<>();
+            for (String constraint : constraints) {
+                futures.add(executor.submit(() -> createConstraint(db, constraint, log)));
+            }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (Exception e) {
+                    log.message("Failed to create a constraint:" + System.lineSeparator() + Exceptions.stringify(e));
+                }
+            }
+            try (Transaction tx = db.beginTx()) {
+                // a longer timeout overflows the deadline
+                db.schema().awaitIndexesOnline(365, TimeUnit.DAYS);
+                tx.success();
+            } catch (IllegalStateException e) {
+                log.message("Index population failed: " + e.getMessage());
+            }
+        } finally {
+            db.shutdown();
+        }
+        System.out.printf(" creating the schema took %d seconds%n", (System.currentTimeMillis() - time) / 1000);
+    }
+
+    /**
+     * @return false if one of the statements failed and none was created
+     */
+    private static boolean createTogether(GraphDatabaseService db, List<String> statements) {
+        try (Transaction tx = db.beginTx()) {
+            for (String statement : statements) {
+                System.out.println(" " + statement);
+                db.execute(statement).close();
+            }
+            tx.success();
+            return true;
+        } catch (Exception e) {
+            System.out.println(" creating the indexes together failed, creating them one by one: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Creates the constraint in its own transaction, which fails transiently when another constraint was committed
+     * while its index was populated, and is then tried again after a backoff that doubles from
+     * {@link #CONSTRAINT_BACKOFF_MS}, so that the attempts outlast the population of the other index.
+     */
+    private static void createConstraint(GraphDatabaseService db, String constraint, BadEntryLog log) {
+        for (int attempt = 1; ; attempt++) {
+            try (Transaction tx = db.beginTx()) {
+                if (!execute(db, constraint, log)) return;
+                tx.success();
+            } catch (TransientFailureException e) {
+                if (attempt >= CONSTRAINT_ATTEMPTS) throw e;
+                try {
+                    Thread.sleep(Math.min(CONSTRAINT_MAX_BACKOFF_MS, CONSTRAINT_BACKOFF_MS << (attempt - 1)));
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                continue;
+            }
+            return;
+        }
+    }
+
+    /**
+     * @return false if the statement failed, which is logged, transient failures are thrown to be retried
+     */
+    private static boolean execute(GraphDatabaseService db, String statement, BadEntryLog log) {
+        System.out.println(" " + statement);
+        try {
+            db.execute(statement).close();
+            return true;
+        } catch (TransientFailureException e) {
+            throw e;
+        } catch (QueryExecutionException e) {
+            // Cypher reports deadlocks and concurrent schema changes by status code
+            if (e.getStatusCode() != null && e.getStatusCode().startsWith("Neo.TransientError")) throw new TransientTransactionFailureException(e.getMessage(), e);
+            log.message("Failed to create " + statement + ":" + System.lineSeparator() + Exceptions.stringify(e));
+            return false;
+        } catch (Exception e) {
+            log.message("Failed to create " + statement + ":" + System.lineSeparator() + Exceptions.stringify(e));
+            return false;
+        }
+    }
+}
@@ -5,15 +5,33 @@ import org.neo4j.graphdb.factory.GraphDatabaseFactory;
 import org.neo4j.helpers.collection.Iterables;
 import org.neo4j.helpers.collection.MapUtil;
 import org.neo4j.io.fs.FileUtils;
+import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
+import org.neo4j.kernel.impl.store.id.IdType;
+import org.neo4j.kernel.internal.GraphDatabaseAPI;
+import org.neo4j.values.storable.Values;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptySet;
 
+/**
+ * Compares a copy with its source through the embedded API: the counts of nodes, relationships and properties, the
+ * properties of the nodes with the same id and the relationships between the same nodes. The node id space is split
+ * into ranges that are compared on a pool of {@code -Dcompare_threads} threads, default one per core, each range in its
+ * own short transactions, the results of the ranges are merged into one report.
+ * <p>
+ * With {@code -Dcompare_by=fingerprint} the nodes are matched by their content instead of their ids, for copies that
+ * did not keep the node ids, see {@link FingerprintComparer}. With {@code -Dcompare_fingerprints=source.tsv,target.tsv}
+ * only the node id blocks in which the {@link StoreFingerprint}s of both stores differ are compared.
+ */
 public class StoreComparer {
+    private static final int RANGE_SIZE = 10_000;
 
     @SuppressWarnings("unchecked")
     public static Map<String, String> config() {
@@ -52,26 +70,40 @@ public class StoreComparer {
         final File source = new File(sourceDir);
         if (!target.exists()) throw new IllegalArgumentException("Target Directory does not exists " + target);
         if (!source.exists()) throw new IllegalArgumentException("Source Database does not exist " + source);
+        int threads = Integer.getInteger("compare_threads", Runtime.getRuntime().availableProcessors());
 
         GraphDatabaseService targetDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(target).setConfig(config()).newGraphDatabase();
         GraphDatabaseService sourceDb = new GraphDatabaseFactory().newEmbeddedDatabaseBuilder(source).setConfig(config()).newGraphDatabase();
 
-        try (Transaction srcDbTx = sourceDb.beginTx();
-             Transaction targetDbTx = targetDb.beginTx()) {
-            compareCounts(sourceDb, targetDb, ignoreRelTypes, ignoreProperties);
-            compareNodes(sourceDb, targetDb, ignoreProperties);
-            compareRelationships(sourceDb, targetDb, ignoreRelTypes, ignoreProperties);
+        try {
+            String fingerprints = System.getProperty("compare_fingerprints");
+            if (fingerprints != null) {
+                String[] files = fingerprints.split(",");
+                BitSet blocks = StoreFingerprint.differingBlocks(StoreFingerprint.read(new File(files[0])), StoreFingerprint.read(new File(files[1])));
+                if (!blocks.isEmpty()) {
+                    compareNodes(sourceDb, targetDb, ignoreProperties, threads, blocks);
+                    compareRelationships(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads, blocks);
+                }
+            } else if ("fingerprint".equalsIgnoreCase(System.getProperty("compare_by", "id"))) {
+                compareCounts(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads);
+                File scratch = new File(System.getProperty("compare_scratch_dir", System.getProperty("java.io.tmpdir")), "store-compare-" + System.currentTimeMillis());
+                FingerprintComparer.compare(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads, scratch, Integer.getInteger("compare_sort_buffer", FingerprintComparer.defaultSortBuffer()));
+            } else {
+                compareCounts(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads);
+                compareNodes(sourceDb, targetDb, ignoreProperties, threads);
+                compareRelationships(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads);
+            }
+        } finally {
+            targetDb.shutdown();
+            sourceDb.shutdown();
         }
-
-        targetDb.shutdown();
-        sourceDb.shutdown();
         copyIndex(source, target);
     }
 
-    private static void compareCounts(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties) {
+    private static void compareCounts(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties, int threads) {
         long time = System.currentTimeMillis();
-        final Statistics sourceStatistics = count(sourceDb, ignoreRelTypes, ignoreProperties);
-        final Statistics targetStatistics = count(targetDb, ignoreRelTypes, ignoreProperties);
+        final Statistics sourceStatistics = count(sourceDb, ignoreRelTypes, ignoreProperties, threads);
+        final Statistics targetStatistics = count(targetDb, ignoreRelTypes, ignoreProperties, threads);
         if (!sourceStatistics.equals(targetStatistics)) {
             System.err.println("Count difference");
             System.err.println("Source " + sourceStatistics);
@@ -80,27 +112,35 @@ public class StoreComparer {
         System.out.println("\n comparing of " + "counts" + " took " + (System.currentTimeMillis() - time) + " ms.");
     }
 
-    private static Statistics count(GraphDatabaseService db, Set<String> ignoreRelTypes, Set<String> ignoreProperties) {
+    /**
+     * Counts the nodes and their outgoing relationships and properties, by ranges of node ids on a pool of threads.
+     */
+    static Statistics count(GraphDatabaseService db, Set<String> ignoreRelTypes, Set<String> ignoreProperties, int threads) {
         Statistics statistics = new Statistics();
-        int count = 0;
-        for (Node node : db.getAllNodes()) {
-            statistics.nodeCount++;
-            statistics.nodeProperties += countProperties(ignoreProperties, node);
-            for (Relationship rel : node.getRelationships(Direction.OUTGOING)) {
-                if (ignoreRelTypes.contains(rel.getType().name().toLowerCase())) continue;
-                statistics.relationshipCount++;
-                statistics.relationshipPropertyCount += countProperties(ignoreProperties, rel);
-                count++;
-                if (count % 1000 == 0) System.out.print(".");
-                if (count % 100000 == 0) System.out.println(" " + count);
+        for (Statistics range : forEachRange(db, threads, Statistics::new, (from, to, result) -> {
+            try (Transaction tx = db.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    Node node = nodeOrNull(db, id);
+                    if (node == null) continue;
+                    result.nodeCount++;
+                    result.nodeProperties += countProperties(ignoreProperties, node);
+                    for (Relationship rel : node.getRelationships(Direction.OUTGOING)) {
+                        if (ignoreRelTypes.contains(rel.getType().name().toLowerCase())) continue;
+                        result.relationshipCount++;
+                        result.relationshipPropertyCount += countProperties(ignoreProperties, rel);
+                    }
+                }
+                tx.success();
             }
+        })) {
+            statistics.add(range);
         }
         return statistics;
     }
 
     private static int countProperties(Set<String> ignoreProperties, PropertyContainer node) {
         final Collection<String> keys = Iterables.addToCollection(node.getPropertyKeys(), new HashSet<String>());
-        keys.removeAll(ignoreProperties);
+        keys.removeIf(key -> ignoreProperties.contains(key.toLowerCase()));
         return keys.size();
     }
 
@@ -115,53 +155,155 @@ public class StoreComparer {
         }
     }
 
+    /**
+     * Compares the outgoing relationships of the source nodes with the ones of the target nodes with the same ids as
+     * multisets of (type, end node, property fingerprint), so that a node with d relationships costs O(d log d) and
+     * parallel relationships are matched by their properties. Relationships that only differ in their properties are
+     * compared property by property, the node properties are compared by {@link #compareNodes}.
+     */
+    static Comparison compareRelationships(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties, int threads) {
+        return compareRelationships(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, threads, null);
+    }
 
-    private static void compareRelationships(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties) {
+    /**
+     * @param blocks the {@link CopyDigest} blocks of node ids to compare, null for all
+     */
+    static Comparison compareRelationships(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties, int threads, BitSet blocks) {
         long time = System.currentTimeMillis();
-        int count = 0;
-        for (Node node : sourceDb.getAllNodes()) {
-            compareProperties(node, targetDb.getNodeById(node.getId()), ignoreProperties);
-            for (Relationship rel : node.getRelationships(Direction.OUTGOING)) {
-                if (ignoreRelTypes.contains(rel.getType().name().toLowerCase())) continue;
-                final Relationship targetRel = getTargetRel(targetDb, node.getId(), rel.getOtherNode(node).getId(), rel.getType());
-                compareProperties(rel, targetRel,ignoreProperties);
-                count++;
-                if (count % 1000 == 0) System.out.print(".");
-                if (count % 100000 == 0) System.out.println(" " + count);
+        AtomicLong reported = new AtomicLong();
+        Comparison comparison = Comparison.merge(forEachRange(sourceDb, threads, blocks, () -> new Comparison(reported), (from, to, result) -> {
+            try (Transaction sourceTx = sourceDb.beginTx();
+                 Transaction targetTx = targetDb.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    Node node = nodeOrNull(sourceDb, id);
+                    if (node == null) continue;
+                    Edge[] sourceEdges = outgoing(node, ignoreRelTypes, ignoreProperties);
+                    result.compared += sourceEdges.length;
+                    Node targetNode = nodeOrNull(targetDb, id);
+                    Edge[] targetEdges = targetNode == null ? new Edge[0] : outgoing(targetNode, ignoreRelTypes, ignoreProperties);
+                    compareEdges(sourceDb, targetDb, sourceEdges, targetEdges, ignoreProperties, result);
+                }
+                sourceTx.success();
+                targetTx.success();
+            }
+        }));
+        comparison.print();
+        System.out.println("\n comparing of " + comparison.compared + " relationships took " + (System.currentTimeMillis() - time) + " ms.");
+        return comparison;
+    }
+
+    /**
+     * An outgoing relationship as compared, the relationship itself is only loaded again to report a difference.
+     */
+    private static class Edge implements Comparable<Edge> {
+        final String type;
+        final long endNode;
+        final long fingerprint;
+        final long id;
+
+        Edge(String type, long endNode, long fingerprint, long id) {
+            this.type = type;
+            this.endNode = endNode;
+            this.fingerprint = fingerprint;
+            this.id = id;
+        }
+
+        boolean sameEnds(Edge other) {
+            return type.equals(other.type) && endNode == other.endNode;
+        }
+
+        @Override
+        public int compareTo(Edge other) {
+            int result = type.compareTo(other.type);
+            if (result == 0) result = Long.compare(endNode, other.endNode);
+            return result != 0 ? result : Long.compare(fingerprint, other.fingerprint);
+        }
+    }
+
+    /**
+     * @return the outgoing relationships of the node sorted by type, end node and property fingerprint
+     */
+    private static Edge[] outgoing(Node node, Set<String> ignoreRelTypes, Set<String> ignoreProperties) {
+        List<Edge> edges = new ArrayList<>();
+        for (Relationship rel : node.getRelationships(Direction.OUTGOING)) {
+            String type = rel.getType().name();
+            if (ignoreRelTypes.contains(type.toLowerCase())) continue;
+            long fingerprint = 0;
+            for (Map.Entry<String, Object> property : rel.getAllProperties().entrySet()) {
+                if (!ignoreProperties.contains(property.getKey().toLowerCase())) fingerprint += CopyDigest.property(property.getKey(), Values.of(property.getValue()));
             }
+            edges.add(new Edge(type, rel.getEndNodeId(), fingerprint, rel.getId()));
         }
-        System.out.println("\n copying of " + count + " relationships took " + (System.currentTimeMillis() - time) + " ms.");
+        Edge[] result = edges.toArray(new Edge[0]);
+        Arrays.sort(result);
+        return result;
     }
 
-    private static Relationship getTargetRel(GraphDatabaseService gdb,long startNodeId, long endNodeId, RelationshipType relType) {
-        final Node start = gdb.getNodeById(startNodeId);
-        final Node endNode = gdb.getNodeById(endNodeId);
-        for (Relationship relationship : start.getRelationships(relType, Direction.OUTGOING)) {
-            if (relationship.getOtherNode(start).equals(endNode)) return relationship;
+    /**
+     * Diffs the sorted multisets of relationships of a node, the relationships left over on both sides with the same
+     * type and end node are paired and compared property by property, the others are missing or additional.
+     */
+    private static void compareEdges(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Edge[] sourceEdges, Edge[] targetEdges, Set<String> ignoreProperties, Comparison result) {
+        List<Edge> sourceOnly = new ArrayList<>(), targetOnly = new ArrayList<>();
+        int s = 0, t = 0;
+        while (s < sourceEdges.length || t < targetEdges.length) {
+            int order = s == sourceEdges.length ? 1 : t == targetEdges.length ? -1 : sourceEdges[s].compareTo(targetEdges[t]);
+            if (order == 0) {
+                s++;
+                t++;
+            } else if (order < 0) {
+                sourceOnly.add(sourceEdges[s++]);
+            } else {
+                targetOnly.add(targetEdges[t++]);
+            }
+        }
+        s = 0;
+        t = 0;
+        while (s < sourceOnly.size() || t < targetOnly.size()) {
+            Edge sourceEdge = s < sourceOnly.size() ? sourceOnly.get(s) : null, targetEdge = t < targetOnly.size() ? targetOnly.get(t) : null;
+            if (sourceEdge != null && targetEdge != null && sourceEdge.sameEnds(targetEdge)) {
+                compareProperties(sourceDb.getRelationshipById(sourceEdge.id), targetDb.getRelationshipById(targetEdge.id), ignoreProperties, result);
+                s++;
+                t++;
+            } else if (targetEdge == null || sourceEdge != null && sourceEdge.compareTo(targetEdge) < 0) {
+                result.difference(() -> "Missing " + sourceDb.getRelationshipById(sourceEdge.id) + " " + sourceEdge.type + " in the target");
+                s++;
+            } else {
+                result.difference(() -> "Additional " + targetDb.getRelationshipById(targetEdge.id) + " " + targetEdge.type + " in the target");
+                t++;
+            }
         }
-        return null;
     }
 
-    private static void compareProperties(PropertyContainer pc1, PropertyContainer pc2, Set<String> ignoreProperties) {
+    static Node nodeOrNull(GraphDatabaseService db, long id) {
+        try {
+            return db.getNodeById(id);
+        } catch (NotFoundException e) {
+            return null;
+        }
+    }
+
+    static void compareProperties(PropertyContainer pc1, PropertyContainer pc2, Set<String> ignoreProperties, Comparison comparison) {
         final Collection<String> keys1 = Iterables.addToCollection(pc1.getPropertyKeys(), new HashSet<String>());
         final Collection<String> keys2 = Iterables.addToCollection(pc2.getPropertyKeys(), new HashSet<String>());
-        keys2.removeAll(ignoreProperties);
-        keys1.removeAll(ignoreProperties);
+        keys2.removeIf(key -> ignoreProperties.contains(key.toLowerCase()));
+        keys1.removeIf(key -> ignoreProperties.contains(key.toLowerCase()));
         if (!keys1.equals(keys2)) {
-            System.err.println("On " + pc1 + " != " + pc2 + " properties mismatch " + keys1 + " != " + keys2);
+            comparison.difference(() -> "On " + pc1 + " != " + pc2 + " properties mismatch " + keys1 + " != " + keys2);
         }
         for (String prop : keys1) {
             final Object value1 = pc1.getProperty(prop);
-            final Object value2 = pc2.getProperty(prop);
+            final Object value2 = pc2.getProperty(prop, null);
             if (!equals(value1, value2)) {
-                System.err.println("On " + pc1 + " != " + pc2 + " property " + prop + " mismatch " + toString(value1) + " != " + toString(value2));
+                comparison.difference(() -> "On " + pc1 + " != " + pc2 + " property " + prop + " mismatch " + toString(value1) + " != " + toString(value2));
             }
         }
     }
 
-    private static String toString(Object value) {
+    static String toString(Object value) {
         if (value==null) return "null";
-        return value.getClass().isArray() ? Arrays.deepToString((Object[]) value) : value.toString();
+        if (!value.getClass().isArray()) return value.toString();
+        return value instanceof Object[] ? Arrays.deepToString((Object[]) value) : Values.of(value).prettyPrint();
     }
 
     private static boolean equals(Object value1, Object value2) {
@@ -182,17 +324,143 @@ public class StoreComparer {
         return value1.equals(value2);
     }
 
-    private static void compareNodes(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreProperties) {
+    /**
+     * Compares the properties of the source nodes with the ones of the target nodes with the same ids.
+     */
+    static Comparison compareNodes(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreProperties, int threads) {
+        return compareNodes(sourceDb, targetDb, ignoreProperties, threads, null);
+    }
+
+    /**
+     * @param blocks the {@link CopyDigest} blocks of node ids to compare, null for all
+     */
+    static Comparison compareNodes(GraphDatabaseService sourceDb, GraphDatabaseService targetDb, Set<String> ignoreProperties, int threads, BitSet blocks) {
         long time = System.currentTimeMillis();
-        int count = 0;
-        for (Node node : sourceDb.getAllNodes()) {
-            compareProperties(node, targetDb.getNodeById(node.getId()), ignoreProperties);
-            count++;
-            if (count % 1000 == 0) System.out.print(".");
-            if (count % 100000 == 0) System.out.println(" " + count);
+        AtomicLong reported = new AtomicLong();
+        Comparison comparison = Comparison.merge(forEachRange(sourceDb, threads, blocks, () -> new Comparison(reported), (from, to, result) -> {
+            try (Transaction sourceTx = sourceDb.beginTx();
+                 Transaction targetTx = targetDb.beginTx()) {
+                for (long id = from; id < to; id++) {
+                    Node node = nodeOrNull(sourceDb, id);
+                    if (node == null) continue;
+                    result.compared++;
+                    Node targetNode = nodeOrNull(targetDb, id);
+                    if (targetNode == null) {
+                        result.difference(() -> "Missing " + node + " in the target");
+                    } else {
+                        compareProperties(node, targetNode, ignoreProperties, result);
+                    }
+                }
+                sourceTx.success();
+                targetTx.success();
+            }
+        }));
+        comparison.print();
+        System.out.println("\n comparing of " + comparison.compared + " nodes took " + (System.currentTimeMillis() - time) + " ms.");
+        return comparison;
+    }
+
+    interface RangeTask<T> {
+        void run(long from, long to, T result);
+    }
+
+    /**
+     * Runs the task for consecutive ranges of {@link #RANGE_SIZE} node ids up to the highest node id of the database
+     * on a pool of threads, each range in its own transactions.
+     * @return the results of the ranges in id order
+     */
+    static <T> List<T> forEachRange(GraphDatabaseService db, int threads, Supplier<T> results, RangeTask<T> task) {
+        return forEachRange(db, threads, null, results, task);
+    }
+
+    /**
+     * @param blocks only the ranges with node ids in these {@link CopyDigest} blocks are run, all if null
+     */
+    static <T> List<T> forEachRange(GraphDatabaseService db, int threads, BitSet blocks, Supplier<T> results, RangeTask<T> task) {
+        long highestNodeId = ((GraphDatabaseAPI) db).getDependencyResolver().resolveDependency(IdGeneratorFactory.class).get(IdType.NODE).getHighestPossibleIdInUse();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        AtomicLong done = new AtomicLong();
+        List<Future<T>> futures = new ArrayList<>();
+        try {
+            for (long from = 0; from <= highestNodeId; from += RANGE_SIZE) {
+                long start = from, end = Math.min(from + RANGE_SIZE, highestNodeId + 1);
+                if (blocks != null) {
+                    int block = blocks.nextSetBit((int) (start / CopyDigest.BLOCK_SIZE));
+                    if (block == -1 || block > (end - 1) / CopyDigest.BLOCK_SIZE) continue;
+                }
+                futures.add(executor.submit(() -> {
+                    T result = results.get();
+                    task.run(start, end, result);
+                    long ranges = done.incrementAndGet();
+                    if (ranges % 10 == 0) System.out.print(".");
+                    if (ranges % 1000 == 0) System.out.println(" " + ranges * RANGE_SIZE);
+                    return result;
+                }));
+            }
+            List<T> list = new ArrayList<>(futures.size());
+            for (Future<T> future : futures) list.add(future.get());
+            return list;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while comparing", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Comparing a range of node ids failed", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The compared entities and the differences found, of one range or merged over all ranges.
+     */
+    static class Comparison {
+        private static final int MAX_REPORTED = 1000;
+
+        long compared;
+        long differences;
+        final List<String> reported = new ArrayList<>();
+        // messages reported by all comparisons sharing the cap
+        private final AtomicLong reportedTotal;
+
+        Comparison() {
+            this(new AtomicLong());
+        }
+
+        /**
+         * @param reportedTotal shared by the comparisons of all ranges, so that they keep {@link #MAX_REPORTED}
+         *                      messages together, however many ranges differ
+         */
+        Comparison(AtomicLong reportedTotal) {
+            this.reportedTotal = reportedTotal;
         }
 
-        System.out.println("\n comparing of " + count + " nodes took " + (System.currentTimeMillis() - time) + " ms.");
+        void difference(String message) {
+            differences++;
+            if (reportedTotal.getAndIncrement() < MAX_REPORTED) reported.add(message);
+        }
+
+        /**
+         * Builds the message only while differences are still reported.
+         */
+        void difference(Supplier<String> message) {
+            differences++;
+            if (reportedTotal.getAndIncrement() < MAX_REPORTED) reported.add(message.get());
+        }
+
+        static Comparison merge(List<Comparison> ranges) {
+            Comparison result = new Comparison();
+            for (Comparison range : ranges) {
+                result.compared += range.compared;
+                result.differences += range.differences;
+                result.reported.addAll(range.reported);
+            }
+            return result;
+        }
+
+        void print() {
+            for (String message : reported) System.err.println(message);
+            if (differences > reported.size()) System.err.println("... and " + (differences - reported.size()) + " more differences");
+        }
     }
 
     private static Map<String, Object> getProperties(PropertyContainer pc, Set<String> ignoreProperties) {
@@ -204,11 +472,18 @@ public class StoreComparer {
         return result;
     }
 
-    private static class Statistics {
-        public int nodeCount;
-        public int nodeProperties;
-        public int relationshipCount;
-        public int relationshipPropertyCount;
+    static class Statistics {
+        public long nodeCount;
+        public long nodeProperties;
+        public long relationshipCount;
+        public long relationshipPropertyCount;
+
+        void add(Statistics other) {
+            nodeCount += other.nodeCount;
+            nodeProperties += other.nodeProperties;
+            relationshipCount += other.relationshipCount;
+            relationshipPropertyCount += other.relationshipPropertyCount;
+        }
 
         @Override
         public boolean equals(Object o) {
@@ -238,11 +513,7 @@ public class StoreComparer {
 
         @Override
         public int hashCode() {
-            int result = nodeCount;
-            result = 31 * result + nodeProperties;
-            result = 31 * result + relationshipCount;
-            result = 31 * result + relationshipPropertyCount;
-            return result;
+            return Objects.hash(nodeCount, nodeProperties, relationshipCount, relationshipPropertyCount);
         }
 
         @Override
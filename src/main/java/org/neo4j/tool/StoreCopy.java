@@ -1,25 +1,16 @@
 package org.neo4j.tool;
 
-import org.eclipse.collections.api.map.primitive.LongLongMap;
-import org.eclipse.collections.api.map.primitive.MutableLongLongMap;
-import org.eclipse.collections.impl.map.mutable.primitive.LongLongHashMap;
 import org.neo4j.graphdb.*;
 import org.neo4j.graphdb.factory.*;
 import org.neo4j.helpers.Exceptions;
 import org.neo4j.helpers.collection.Iterables;
 import org.neo4j.helpers.collection.MapUtil;
-import org.neo4j.helpers.collection.Pair;
 import org.neo4j.io.fs.FileUtils;
-import org.neo4j.kernel.impl.store.id.IdGeneratorFactory;
-import org.neo4j.kernel.impl.store.id.IdType;
-import org.neo4j.kernel.internal.GraphDatabaseAPI;
 import org.neo4j.unsafe.batchinsert.*;
-import org.neo4j.unsafe.batchinsert.internal.*;
 import org.neo4j.values.storable.Value;
 import org.neo4j.graphdb.factory.*;
 
 import java.io.*;
-import java.lang.reflect.Field;
 import java.util.*;
 
 import static java.util.Arrays.asList;
@@ -27,14 +18,21 @@ import static java.util.Collections.emptySet;
 
 public class StoreCopy {
 
-    private static final Label[] NO_LABELS = new Label[0];
-    private static PrintWriter logs;
+    private static final int SORT_BUFFER_ENTRIES = 1 << 22;
+    private static BadEntryLog badEntries;
+    private static CopyMetrics metrics;
+    private static AdaptiveFlusher flusher;
+    private static RelationshipIdFile relationshipIds;
+    private static CopyDigest digest;
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.err.println("Usage: StoryCopy source target [rel,types,to,ignore] [properties,to,ignore] [labels,to,ignore] [labels,to,delete]");
+            System.err.println("Usage: StoryCopy [--resume|--catch-up] source target [rel,types,to,ignore] [properties,to,ignore] [labels,to,ignore] [labels,to,delete]");
             return;
         }
+        boolean resume = args[0].equals("--resume");
+        boolean catchUp = args[0].equals("--catch-up");
+        if (resume || catchUp) args = Arrays.copyOfRange(args, 1, args.length);
         Properties properties = new Properties();
         properties.load(new FileReader("neo4j.properties"));
         String sourceDir = getArgument(args,0,properties,"source_db_dir");
@@ -44,10 +42,83 @@ public class StoreCopy {
         Set<String> ignoreProperties = splitToSet(getArgument(args,3,properties,"properties_to_ignore"));
         Set<String> ignoreLabels = splitToSet(getArgument(args,4,properties,"labels_to_ignore"));
         Set<String> deleteNodesWithLabels = splitToSet(getArgument(args,5,properties,"labels_to_delete"));
+        CopyFilter.Rules rules = new CopyFilter.Rules(ignoreRelTypes, ignoreProperties, ignoreLabels, deleteNodesWithLabels,
+                splitToMap(getOption(properties, "labels_to_rename", null), ":"), splitToMap(getOption(properties, "rel_types_to_rename", null), ":"),
+                splitToMap(getOption(properties, "properties_to_rename", null), ":"), splitToMap(getOption(properties, "property_defaults_to_drop", null), "="),
+                new PropertySlimming.Rules(splitToSet(getOption(properties, "slim_empty_values", null)), splitToSet(getOption(properties, "slim_numeric_strings", null)),
+                        splitToSet(getOption(properties, "slim_arrays", null)), splitToSet(getOption(properties, "slim_duplicates", null)),
+                        Integer.parseInt(getOption(properties, "slim_duplicate_min_bytes", "128"))));
         String keepNodeIdsParam = getArgument(args, 6, properties, "keep_node_ids");
         boolean keepNodeIds = !("false".equalsIgnoreCase(keepNodeIdsParam));
+        String engine = getOption(properties, "copy_engine", "batch");
+        boolean parallel = "parallel".equalsIgnoreCase(engine);
+        int threads = Integer.parseInt(getOption(properties, "copy_threads", String.valueOf(Runtime.getRuntime().availableProcessors())));
+        long checkpointInterval = Long.parseLong(getOption(properties, "checkpoint_interval", "0"));
+        double checkpointGrowth = Double.parseDouble(getOption(properties, "checkpoint_growth", "0.1"));
+        boolean sortRelationships = "start_node".equalsIgnoreCase(getOption(properties, "relationship_order", "id"));
+        String nodeOrder = getOption(properties, "node_order", "id");
+        NodeRenumbering.Strategy renumbering = "id".equalsIgnoreCase(nodeOrder) ? null : NodeRenumbering.Strategy.valueOf(nodeOrder.toUpperCase());
+        File logDir = new File(getOption(properties, "store_copy_log_dir", targetDir));
+        File badEntriesDir = new File(getOption(properties, "bad_entries_log_dir", logDir.getPath()));
+        int progressInterval = Integer.parseInt(getOption(properties, "progress_interval", "10"));
+        int schemaThreads = Boolean.parseBoolean(getOption(properties, "copy_schema", "true"))
+                ? Integer.parseInt(getOption(properties, "schema_threads", String.valueOf(threads))) : 0;
+        boolean recordCatchUp = Boolean.parseBoolean(getOption(properties, "catch_up", "false"));
+        boolean writeDigest = Boolean.parseBoolean(getOption(properties, "copy_digest", "false"));
+        flusher = new AdaptiveFlusher(Long.parseLong(getOption(properties, "flush_min_pending", "10000")),
+                Long.parseLong(getOption(properties, "flush_max_pending", "500000")),
+                Double.parseDouble(getOption(properties, "flush_heap_threshold", "0.7")));
+        if (catchUp) {
+            String pageCacheSize = System.getProperty("dbms.pagecache.memory", "2G");
+            badEntries = new BadEntryLog(logDir, badEntriesDir, true);
+            CatchUp.run(new File(sourceDir), new File(targetDir), rules, pageCacheSize, System.getProperty("dbms.pagecache.memory.source", pageCacheSize), badEntries);
+            badEntries.close();
+            return;
+        }
+        String sampleMethod = getOption(properties, "sample_method", null);
+        if (sampleMethod != null) {
+            if (resume || parallel || recordCatchUp || sortRelationships || renumbering != null || checkpointInterval > 0) {
+                throw new IllegalArgumentException("Sampled copies only support the batch engine in id order, without checkpoints or catch-up");
+            }
+            SampledCopy.Options sampling = new SampledCopy.Options(SampledCopy.Method.valueOf(sampleMethod.toUpperCase()),
+                    Double.parseDouble(getOption(properties, "sample_fraction", "0.01")), Double.parseDouble(getOption(properties, "sample_burn_probability", "0.7")),
+                    Double.parseDouble(getOption(properties, "sample_restart_probability", "0.15")), Long.parseLong(getOption(properties, "sample_seed", "42")));
+            System.out.printf("Sampling %s of the nodes by %s from %s to %s in compacting mode ingoring rel-types %s ignoring properties %s ignoring labels %s removing nodes with labels %s%n", sampling.fraction, sampleMethod, sourceDir, targetDir, ignoreRelTypes, ignoreProperties,ignoreLabels, deleteNodesWithLabels);
+            sampleStore(sourceDir, targetDir, logDir, badEntriesDir, rules, sampling, progressInterval, schemaThreads);
+            return;
+        }
+        String partitionBy = getOption(properties, "partition_by", null);
+        if (partitionBy != null) {
+            if (resume || parallel || recordCatchUp || sortRelationships || renumbering != null || checkpointInterval > 0) {
+                throw new IllegalArgumentException("Partitioned copies only support the batch engine in id order, without checkpoints or catch-up");
+            }
+            String ranges = getOption(properties, "partition_ranges", null);
+            PartitionedCopy.Rules partitionRules = new PartitionedCopy.Rules(PartitionedCopy.Rules.By.valueOf(partitionBy.toUpperCase()),
+                    Integer.parseInt(getOption(properties, "partitions", "2")), splitToMap(getOption(properties, "partition_labels", null), ":"),
+                    getOption(properties, "partition_property", null), ranges == null ? Collections.emptyList() : asList(ranges.split(", *")),
+                    Integer.parseInt(getOption(properties, "partition_default", "0")));
+            System.out.printf("Partitioning from %s to %s by %s ingoring rel-types %s ignoring properties %s ignoring labels %s removing nodes with labels %s keep node ids %s %n", sourceDir, targetDir, partitionBy, ignoreRelTypes, ignoreProperties,ignoreLabels, deleteNodesWithLabels,keepNodeIds);
+            partitionStore(sourceDir, targetDir, logDir, badEntriesDir, rules, partitionRules, keepNodeIds, progressInterval, schemaThreads);
+            return;
+        }
+        if ("csv".equalsIgnoreCase(engine)) {
+            System.out.printf("Exporting from %s to %s ingoring rel-types %s ignoring properties %s ignoring labels %s removing nodes with labels %s keep node ids %s %n", sourceDir, targetDir, ignoreRelTypes, ignoreProperties,ignoreLabels, deleteNodesWithLabels,keepNodeIds);
+            exportStore(sourceDir, targetDir, logDir, badEntriesDir, rules, keepNodeIds, threads, Long.parseLong(getOption(properties, "export_chunk_size", "1000000")),
+                    !"none".equalsIgnoreCase(getOption(properties, "export_compression", "gzip")), progressInterval);
+            return;
+        }
         System.out.printf("Copying from %s to %s ingoring rel-types %s ignoring properties %s ignoring labels %s removing nodes with labels %s keep node ids %s %n", sourceDir, targetDir, ignoreRelTypes, ignoreProperties,ignoreLabels, deleteNodesWithLabels,keepNodeIds);
-        copyStore(sourceDir, targetDir, ignoreRelTypes, ignoreProperties,ignoreLabels,deleteNodesWithLabels, keepNodeIds);
+        copyStore(sourceDir, targetDir, logDir, badEntriesDir, rules, keepNodeIds, parallel ? threads : 0, checkpointInterval, checkpointGrowth, resume, sortRelationships, renumbering, progressInterval, schemaThreads, recordCatchUp, writeDigest);
+    }
+
+    /**
+     * Sets the logs, metrics and flushing used by the copy methods, for callers that copy without {@link #copyStore},
+     * like the benchmarks.
+     */
+    static void useLogs(BadEntryLog badEntries, CopyMetrics metrics, AdaptiveFlusher flusher) {
+        StoreCopy.badEntries = badEntries;
+        StoreCopy.metrics = metrics;
+        StoreCopy.flusher = flusher;
     }
 
     private static String getArgument(String[] args, int index, Properties properties, String key) {
@@ -55,90 +126,211 @@ public class StoreCopy {
         return properties.getProperty(key);
     }
 
+    private static String getOption(Properties properties, String key, String defaultValue) {
+        String value = System.getProperty(key, properties.getProperty(key));
+        if (value == null || value.trim().isEmpty()) return defaultValue;
+        return value.trim();
+    }
+
     private static Set<String> splitToSet(String value) {
         if (value == null || value.trim().isEmpty()) return emptySet();
         return new HashSet<>(asList(value.trim().split(", *")));
     }
 
-    interface Flusher {
-        void flush();
+    private static Map<String, String> splitToMap(String value, String separator) {
+        Map<String, String> result = new HashMap<>();
+        for (String entry : splitToSet(value)) {
+            int index = entry.indexOf(separator);
+            if (index < 0) throw new IllegalArgumentException("Expected name" + separator + "value instead of " + entry);
+            result.put(entry.substring(0, index).trim(), entry.substring(index + separator.length()).trim());
+        }
+        return result;
+    }
+
+    /**
+     * Copies a sample of the nodes of the source and the relationships between them into the target in compacting mode.
+     */
+    private static void sampleStore(String sourceDir, String targetDir, File logDir, File badEntriesDir, CopyFilter.Rules rules, SampledCopy.Options sampling, int progressInterval, int schemaThreads) throws Exception {
+        final File target = new File(targetDir);
+        final File source = new File(sourceDir);
+        if (target.exists()) throw new IllegalArgumentException("Target Directory already exists "+target);
+        if (!source.exists()) throw new IllegalArgumentException("Source Database does not exist " + source);
+
+        StoreMetadata metadata = StoreMetadata.probeRecovered(source);
+        System.out.println(metadata);
+        String pageCacheSize = System.getProperty("dbms.pagecache.memory","2G");
+        badEntries = new BadEntryLog(logDir, badEntriesDir, false);
+        SchemaCopy schema;
+        try (StoreReader sourceDb = StoreReader.open(source, System.getProperty("dbms.pagecache.memory.source", pageCacheSize))) {
+            schema = SchemaCopy.read(sourceDb, rules);
+            metrics = new CopyMetrics(sourceDb, badEntries, logDir, progressInterval);
+            SampledCopy.copyStore(sourceDb, target, metadata.highestNodeId(), rules, sampling, MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize), flusher, badEntries, metrics);
+            metrics.close();
+        }
+        if (schemaThreads > 0) schema.create(target, MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize), schemaThreads, badEntries);
+        badEntries.close();
+    }
+
+    /**
+     * Copies the source into one target store per partition in the target directory in a single pass over the source.
+     */
+    private static void partitionStore(String sourceDir, String targetDir, File logDir, File badEntriesDir, CopyFilter.Rules rules, PartitionedCopy.Rules partitionRules, boolean stableNodeIds, int progressInterval, int schemaThreads) throws Exception {
+        final File target = new File(targetDir);
+        final File source = new File(sourceDir);
+        if (target.exists()) throw new IllegalArgumentException("Target Directory already exists "+target);
+        if (!source.exists()) throw new IllegalArgumentException("Source Database does not exist " + source);
+
+        StoreMetadata metadata = StoreMetadata.probeRecovered(source);
+        System.out.println(metadata);
+        String pageCacheSize = System.getProperty("dbms.pagecache.memory","2G");
+        target.mkdirs();
+        badEntries = new BadEntryLog(logDir, badEntriesDir, false);
+        SchemaCopy schema;
+        List<File> partitions;
+        try (StoreReader sourceDb = StoreReader.open(source, System.getProperty("dbms.pagecache.memory.source", pageCacheSize))) {
+            schema = SchemaCopy.read(sourceDb, rules);
+            metrics = new CopyMetrics(sourceDb, badEntries, logDir, progressInterval);
+            partitions = PartitionedCopy.copyStore(sourceDb, target, logDir, metadata.highestNodeId(), metadata.highestRelationshipId(), rules, partitionRules, stableNodeIds,
+                    pageCacheSize, flusher, badEntries, metrics);
+            metrics.close();
+        }
+        if (schemaThreads > 0) {
+            for (File partition : partitions) schema.create(partition, MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize), schemaThreads, badEntries);
+        }
+        badEntries.close();
+    }
+
+    /**
+     * Exports the source as CSV files for neo4j-admin import into the target directory instead of copying it.
+     * @param chunkSize number of node or relationship ids per exported file
+     * @param compress gzip the exported files
+     */
+    private static void exportStore(String sourceDir, String targetDir, File logDir, File badEntriesDir, CopyFilter.Rules rules, boolean stableNodeIds, int threads, long chunkSize, boolean compress, int progressInterval) throws Exception {
+        final File target = new File(targetDir);
+        final File source = new File(sourceDir);
+        if (target.exists()) throw new IllegalArgumentException("Target Directory already exists "+target);
+        if (!source.exists()) throw new IllegalArgumentException("Source Database does not exist " + source);
+        if (chunkSize < 1) throw new IllegalArgumentException("The export chunk size must be positive");
+
+        StoreMetadata metadata = StoreMetadata.probeRecovered(source);
+        System.out.println(metadata);
+        target.mkdirs();
+        badEntries = new BadEntryLog(logDir, badEntriesDir, false);
+        try (StoreReader sourceDb = StoreReader.open(source, System.getProperty("dbms.pagecache.memory.source", System.getProperty("dbms.pagecache.memory", "2G")))) {
+            metrics = new CopyMetrics(sourceDb, badEntries, logDir, progressInterval);
+            CsvExport.export(sourceDb, target, metadata.highestNodeId(), metadata.highestRelationshipId(), rules, stableNodeIds, threads, chunkSize, compress,
+                    SchemaCopy.read(sourceDb, rules), badEntries, metrics);
+            metrics.close();
+        }
+        badEntries.close();
     }
-    private static void copyStore(String sourceDir, String targetDir, Set<String> ignoreRelTypes, Set<String> ignoreProperties, Set<String> ignoreLabels, Set<String> deleteNodesWithLabels, boolean stableNodeIds) throws Exception {
+
+    /**
+     * @param logDir directory of the store-copy.log, the target directory by default
+     * @param badEntriesDir directory of the file of nodes and relationships that could not be copied, the log directory by default
+     * @param parallelThreads number of threads for the parallel batch importer engine, 0 to copy with the single threaded BatchInserter
+     * @param checkpointInterval number of records between checkpoints of the BatchInserter copy, 0 for none
+     * @param checkpointGrowth minimal distance between checkpoints as a fraction of the records of the phase copied so far
+     * @param resume continue the BatchInserter copy into an existing target from its last checkpoint
+     * @param sortRelationships write the relationships of the BatchInserter copy ordered by start node, type and end node instead of by id
+     * @param renumbering order of the node ids of the BatchInserter copy in compacting mode, null for source id order
+     * @param progressInterval seconds between rewrites of the progress file in the log directory, 0 for none
+     * @param schemaThreads threads creating the constraints of the source in the target after the copy, 0 to not copy indexes and constraints
+     * @param recordCatchUp record the source transaction and the id mappings of the BatchInserter copy, so that it can be caught up later
+     * @param writeDigest write the digests of the copied records to the manifest in the target, to verify it later with {@link CopyDigest}
+     */
+    private static void copyStore(String sourceDir, String targetDir, File logDir, File badEntriesDir, CopyFilter.Rules rules, boolean stableNodeIds, int parallelThreads, long checkpointInterval, double checkpointGrowth, boolean resume, boolean sortRelationships, NodeRenumbering.Strategy renumbering, int progressInterval, int schemaThreads, boolean recordCatchUp, boolean writeDigest) throws Exception {
         final File target = new File(targetDir);
         final File source = new File(sourceDir);
-        if (target.exists()) {
+        if (resume && parallelThreads > 0) throw new IllegalArgumentException("Only the batch copy engine can be resumed");
+        if (recordCatchUp && (parallelThreads > 0 || sortRelationships)) throw new IllegalArgumentException("Only the batch copy engine in relationship id order can be caught up");
+        if (renumbering != null && stableNodeIds) throw new IllegalArgumentException("Nodes can only be renumbered without keeping node ids");
+        if (writeDigest && (resume || checkpointInterval > 0)) throw new IllegalArgumentException("Digests can only be written by a copy without checkpoints");
+        if (writeDigest && parallelThreads > 0 && !stableNodeIds) throw new IllegalArgumentException("Digests of the parallel copy engine need kept node ids");
+        if (target.exists() && !resume) {
             // FileUtils.deleteRecursively(target);
             throw new IllegalArgumentException("Target Directory already exists "+target);
         }
         if (!source.exists()) throw new IllegalArgumentException("Source Database does not exist " + source);
 
-        Pair<Long, Long> highestIds = getHighestNodeId(source);
+        StoreMetadata metadata = StoreMetadata.probeRecovered(source);
+        System.out.println(metadata);
         String pageCacheSize = System.getProperty("dbms.pagecache.memory","2G");
-        Map<String,String> targetConfig = MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize);
-        BatchInserter targetDb = BatchInserters.inserter(target, targetConfig);
-        Map<String,String> sourceConfig = MapUtil.stringMap("dbms.pagecache.memory", System.getProperty("dbms.pagecache.memory.source",pageCacheSize), "dbms.read_only", "true");
-        BatchInserter sourceDb = BatchInserters.inserter(source, sourceConfig);
-        Flusher flusher = getFlusher(sourceDb);
+        SchemaCopy schema;
+        digest = writeDigest ? new CopyDigest(metadata.highestNodeId()) : null;
+        if (parallelThreads > 0) {
+            target.mkdirs();
+            badEntries = new BadEntryLog(logDir, badEntriesDir, false);
+            try (StoreReader sourceDb = StoreReader.open(source, System.getProperty("dbms.pagecache.memory.source", pageCacheSize))) {
+                schema = SchemaCopy.read(sourceDb, rules);
+                metrics = new CopyMetrics(sourceDb, badEntries, logDir, progressInterval);
+                ParallelStoreCopy.copyStore(sourceDb, target, metadata.highestNodeId(), metadata.highestRelationshipId(), rules, stableNodeIds, parallelThreads, digest, badEntries, metrics);
+                metrics.close();
+            }
+            if (digest != null) writeDigest(target);
+            if (stableNodeIds) copyIndex(source, target);
+            if (schemaThreads > 0) schema.create(target, MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize), schemaThreads, badEntries);
+            badEntries.close();
+            return;
+        }
+        Map<String,String> targetConfig = flusher.configure(MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize));
+        CopyCheckpoint checkpoint = resume ? CopyCheckpoint.resume(target, targetConfig, checkpointInterval, checkpointGrowth, stableNodeIds)
+                : CopyCheckpoint.start(target, targetConfig, checkpointInterval, checkpointGrowth, stableNodeIds);
+        CatchUp catchUp = !recordCatchUp ? null : resume ? CatchUp.resume(target) : CatchUp.start(target, stableNodeIds, metadata.lastTransactionId());
+        relationshipIds = catchUp == null ? null : catchUp.relationshipIds();
+        StoreReader sourceDb = StoreReader.open(source, System.getProperty("dbms.pagecache.memory.source",pageCacheSize));
+        CopyFilter filter = catchUp == null ? rules.compile(sourceDb) : catchUp.compile(rules, sourceDb);
+        schema = SchemaCopy.read(sourceDb, rules);
 
-        logs = new PrintWriter(new FileWriter(new File(target, "store-copy.log")));
+        badEntries = new BadEntryLog(logDir, badEntriesDir, resume);
+        metrics = new CopyMetrics(sourceDb, badEntries, logDir, progressInterval);
 
-        LongLongMap copiedNodeIds = copyNodes(sourceDb, targetDb, ignoreProperties, ignoreLabels, deleteNodesWithLabels, highestIds.first(),flusher, stableNodeIds);
-        copyRelationships(sourceDb, targetDb, ignoreRelTypes, ignoreProperties, copiedNodeIds, highestIds.other(), flusher);
+        NodeIdMap copiedNodeIds;
+        if (checkpoint.isCompleted(CopyCheckpoint.Phase.NODES)) {
+            System.out.println("Nodes were copied before the checkpoint");
+            copiedNodeIds = checkpoint.nodeIdMap();
+        } else if (renumbering != null) {
+            metrics.phase("renumbering nodes", metadata.highestNodeId());
+            PermutedNodeIdMap renumberedNodeIds = checkpoint.nodeIdMap() != null ? (PermutedNodeIdMap) checkpoint.nodeIdMap()
+                    : NodeRenumbering.renumber(sourceDb, renumbering, metadata.highestNodeId(), metadata.highestRelationshipId(), filter, badEntries);
+            copyNodesRenumbered(sourceDb, checkpoint, filter, renumberedNodeIds);
+            copiedNodeIds = renumberedNodeIds;
+            if (checkpoint.isEnabled()) checkpoint.checkpoint(CopyCheckpoint.Phase.RELATIONSHIPS, 0, 0, 0, copiedNodeIds);
+        } else {
+            copiedNodeIds = copyNodes(sourceDb, checkpoint, filter, metadata.highestNodeId(), stableNodeIds);
+            if (checkpoint.isEnabled()) checkpoint.checkpoint(CopyCheckpoint.Phase.RELATIONSHIPS, 0, 0, 0, copiedNodeIds);
+        }
+        if (sortRelationships) {
+            copyRelationshipsSorted(sourceDb, checkpoint, filter, copiedNodeIds, metadata.highestRelationshipId(), new File(target, "relationship-sort"));
+        } else {
+            copyRelationships(sourceDb, checkpoint, filter, copiedNodeIds, metadata.highestRelationshipId());
+        }
+        if (catchUp != null) catchUp.completed(copiedNodeIds);
+        copiedNodeIds.close();
+        filter.reportSlimming();
         System.out.println("Stopping target database");
-        targetDb.shutdown();
+        checkpoint.target().shutdown();
+        checkpoint.completed();
+        metrics.close();
+        System.out.println(" " + flusher);
         System.out.println("Stopped target database");
         try {
             System.out.println("Stopping source database");
-            sourceDb.shutdown();
+            sourceDb.close();
         } catch (Exception e) {
-            logs.append(String.format("Noncritical error closing the source database:%n%s", Exceptions.stringify(e)));
+            badEntries.message("Noncritical error closing the source database:" + System.lineSeparator() + Exceptions.stringify(e));
         }
         System.out.println("Stopped source database");
-        logs.close();
+        if (digest != null) writeDigest(target);
         if (stableNodeIds) copyIndex(source, target);
+        if (schemaThreads > 0) schema.create(target, MapUtil.stringMap("dbms.pagecache.memory", pageCacheSize), schemaThreads, badEntries);
+        badEntries.close();
     }
 
-    private static Flusher getFlusher(BatchInserter db) {
-        try {
-            Field delegate = FileSystemClosingBatchInserter.class.getDeclaredField("delegate");
-            delegate.setAccessible(true);
-            db = (BatchInserter)delegate.get(db);
-            Field field = BatchInserterImpl.class.getDeclaredField("recordAccess");
-            field.setAccessible(true);
-            final DirectRecordAccessSet recordAccessSet = (DirectRecordAccessSet) field.get(db);
-            final Field cacheField = DirectRecordAccess.class.getDeclaredField("batch");
-            cacheField.setAccessible(true);
-            return new Flusher() {
-                @Override public void flush() {
-                    try {
-                        ((Map) cacheField.get(recordAccessSet.getNodeRecords())).clear();
-                        ((Map) cacheField.get(recordAccessSet.getRelRecords())).clear();
-                        ((Map) cacheField.get(recordAccessSet.getPropertyRecords())).clear();
-                    } catch (IllegalAccessException e) {
-                        throw new RuntimeException("Error clearing cache "+cacheField,e);
-                    }
-                }
-            };
-        } catch (IllegalAccessException | NoSuchFieldException e) {
-            throw new RuntimeException("Error accessing cache field ", e);
-        }
-    }
-
-    private static GraphDatabaseFactory factory() {
-        try {
-           return (GraphDatabaseFactory)Class.forName("org.neo4j.graphdb.factory.EnterpriseGraphDatabaseFactory").newInstance();
-       } catch(ClassNotFoundException | InstantiationException | IllegalAccessException e) {
-           return new GraphDatabaseFactory();
-       }
-    }
-
-    private static Pair<Long, Long> getHighestNodeId(File source) {
-        GraphDatabaseAPI api = (GraphDatabaseAPI)factory().newEmbeddedDatabase(source);
-        IdGeneratorFactory idGenerators = api.getDependencyResolver().resolveDependency(IdGeneratorFactory.class);
-        long highestNodeId = idGenerators.get(IdType.NODE).getHighestPossibleIdInUse();
-        long highestRelId = idGenerators.get(IdType.RELATIONSHIP).getHighestPossibleIdInUse();
-        api.shutdown();
-        return Pair.of(highestNodeId, highestRelId);
+    private static void writeDigest(File target) throws IOException {
+        File manifest = CopyDigest.manifest(target);
+        digest.write(manifest);
+        System.out.printf("Wrote the digests of the copied records to %s, verify the target with CopyDigest %s%n", manifest, target);
     }
 
     private static void copyIndex(File source, File target) throws IOException {
@@ -152,164 +344,280 @@ public class StoreCopy {
         }
     }
 
-    private static void copyRelationships(BatchInserter sourceDb, BatchInserter targetDb, Set<String> ignoreRelTypes, Set<String> ignoreProperties, LongLongMap copiedNodeIds, long highestRelId, Flusher flusher) {
+    static void copyRelationships(StoreReader sourceDb, CopyCheckpoint checkpoint, CopyFilter filter, NodeIdMap copiedNodeIds, long highestRelId) throws IOException {
+        long time = System.currentTimeMillis();
+        BatchInserter targetDb = checkpoint.target();
+        long relId = checkpoint.nextId(CopyCheckpoint.Phase.RELATIONSHIPS);
+        long notFound = checkpoint.notFound(CopyCheckpoint.Phase.RELATIONSHIPS);
+        long removed = checkpoint.removed(CopyCheckpoint.Phase.RELATIONSHIPS);
+        Map<String, Object> properties = new HashMap<>();
+        metrics.phase("relationships", highestRelId);
+        try (StoreReader.RecordCursor cursor = sourceDb.newCursor()) {
+            while (relId <= highestRelId) {
+                try {
+                    if (cursor.relationship(relId++)) {
+                        if (!filter.ignoresType(cursor.typeId())) {
+                            long targetId = createRelationship(targetDb, filter, cursor, relId - 1, filter.type(cursor.typeId()), copiedNodeIds, properties);
+                            if (targetId == -1L) {
+                                removed++;
+                            } else if (relationshipIds != null) {
+                                relationshipIds.set(relId - 1, targetId);
+                            }
+                        } else {
+                            removed++;
+                        }
+                    } else {
+                        notFound++;
+                    }
+                } catch (Exception e) {
+                    if (e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use")) {
+                        notFound++;
+                    } else {
+                        badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, relId - 1, e);
+                    }
+                }
+                if (relId % 10000 == 0) {
+                    System.out.print(".");
+                    metrics.update(relId, notFound, removed);
+                }
+                if (relId % 500000 == 0) {
+                    System.out.printf(" %d / %d (%d%%) unused %d removed %d%n", relId, highestRelId, percent(relId,highestRelId), notFound,removed);
+                }
+                if (checkpoint.isDue(relId)) {
+                    if (relationshipIds != null) relationshipIds.flush();
+                    targetDb = checkpoint.checkpoint(CopyCheckpoint.Phase.RELATIONSHIPS, relId, notFound, removed, copiedNodeIds);
+                }
+            }
+        }
+        time = Math.max(1,(System.currentTimeMillis() - time)/1000);
+        System.out.printf("%n copying of %d relationship records took %d seconds (%d rec/s). Unused Records %d (%d%%) Removed Records %d (%d%%)%n",
+                relId, time, relId/time, notFound, percent(notFound,relId),removed, percent(removed,relId));
+    }
+
+    /**
+     * Copies the relationships ordered by target start node, type and end node, so that the relationships of a node are
+     * stored next to each other in the target. The first pass reads only the relationship records and sorts them externally,
+     * the second pass reads each relationship again with its properties in sorted order and creates it.
+     * A checkpoint records the position in the sorted order, which is the same when the first pass is repeated on resume.
+     */
+    private static void copyRelationshipsSorted(StoreReader sourceDb, CopyCheckpoint checkpoint, CopyFilter filter, NodeIdMap copiedNodeIds, long highestRelId, File sortDirectory) throws IOException {
         long time = System.currentTimeMillis();
-        long relId = 0;
         long notFound = 0;
         long removed = 0;
-        while (relId <= highestRelId) {
-            BatchRelationship rel = null;
-            String type = null;
-            try {
-                rel = sourceDb.getRelationshipById(relId++);
-                type = rel.getType().name();
-                if (!ignoreRelTypes.contains(type)) {
-                    if (!createRelationship(targetDb, sourceDb, rel, ignoreProperties, copiedNodeIds)) {
-                        removed++;
+        long failed = checkpoint.removed(CopyCheckpoint.Phase.RELATIONSHIPS);
+        Map<String, Object> properties = new HashMap<>();
+        try (StoreReader.RecordCursor cursor = sourceDb.newCursor();
+             RelationshipSorter sorter = new RelationshipSorter(sortDirectory, SORT_BUFFER_ENTRIES)) {
+            metrics.phase("sorting relationships", highestRelId);
+            for (long relId = 0; relId <= highestRelId; relId++) {
+                try {
+                    if (!cursor.relationship(relId)) {
+                        notFound++;
+                        continue;
                     }
-                } else {
-                    removed++;
-                }
-            } catch (Exception e) {
-                if (e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use")) {
+                } catch (org.neo4j.kernel.impl.store.InvalidRecordException e) {
                     notFound++;
+                    continue;
+                }
+                long startNodeId = cursor.startNode(), endNodeId = cursor.endNode();
+                startNodeId = copiedNodeIds.get(startNodeId);
+                endNodeId = copiedNodeIds.get(endNodeId);
+                if (filter.ignoresType(cursor.typeId()) || startNodeId == -1L || endNodeId == -1L) {
+                    removed++;
                 } else {
-                    addLog(rel, "copy Relationship: " + (relId - 1) + "-[:" + type + "]" + "->?", e.getMessage());
+                    sorter.add(startNodeId, cursor.typeId(), endNodeId, relId);
                 }
+                if (relId % 10000 == 0) metrics.update(relId, notFound, removed);
+                if (relId % 500000 == 0) System.out.print(".");
             }
-            if (relId % 10000 == 0) {
-                System.out.print(".");
-                logs.flush();
-            }
-            if (relId % 500000 == 0) {
-                flusher.flush();
-                System.out.printf(" %d / %d (%d%%) unused %d removed %d%n", relId, highestRelId, percent(relId,highestRelId), notFound,removed);
+            System.out.printf("%n sorting %d relationships took %d seconds%n", highestRelId + 1 - notFound - removed, (System.currentTimeMillis() - time) / 1000);
+
+            BatchInserter targetDb = checkpoint.target();
+            long resumeAt = checkpoint.nextId(CopyCheckpoint.Phase.RELATIONSHIPS);
+            long written = 0;
+            long total = highestRelId + 1 - notFound - removed;
+            metrics.phase("relationships", total - 1);
+            while (sorter.next()) {
+                if (written++ < resumeAt) continue;
+                long relId = sorter.relationshipId();
+                RelationshipType type = filter.type(sorter.type());
+                try {
+                    cursor.relationship(relId);
+                    Map<String, Object> props = relationshipProperties(filter, cursor, properties);
+                    targetDb.createRelationship(sorter.startNode(), sorter.endNode(), type, props);
+                    flusher.written(targetDb);
+                    if (digest != null) digest.relationship(sorter.startNode(), sorter.endNode(), type.name(), props);
+                } catch (Exception e) {
+                    badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, relId, e);
+                    failed++;
+                }
+                if (written % 10000 == 0) {
+                    System.out.print(".");
+                    metrics.update(written, 0, failed);
+                }
+                if (written % 500000 == 0) {
+                    System.out.printf(" %d / %d (%d%%) failed %d%n", written, total, percent(written, total), failed);
+                }
+                if (checkpoint.isDue(written)) {
+                    targetDb = checkpoint.checkpoint(CopyCheckpoint.Phase.RELATIONSHIPS, written, 0, failed, copiedNodeIds);
+                }
             }
         }
+        long relIds = highestRelId + 1;
+        removed += failed;
         time = Math.max(1,(System.currentTimeMillis() - time)/1000);
         System.out.printf("%n copying of %d relationship records took %d seconds (%d rec/s). Unused Records %d (%d%%) Removed Records %d (%d%%)%n",
-                relId, time, relId/time, notFound, percent(notFound,relId),removed, percent(removed,relId));
+                relIds, time, relIds/time, notFound, percent(notFound,relIds),removed, percent(removed,relIds));
     }
 
     private static int percent(Number part, Number total) {
         return (int) (100 * part.floatValue() / total.floatValue());
     }
 
-    private static long firstNode(BatchInserter sourceDb, long highestNodeId) {
-        long node = -1;
-        while (++node <= highestNodeId) {
-            if (sourceDb.nodeExists(node) && !sourceDb.getNodeProperties(node).isEmpty()) return node;
-        }
-        return -1;
-    }
-
-    private static void flushCache(BatchInserter sourceDb, long node) {
-        Map<String, Object> nodeProperties = sourceDb.getNodeProperties(node);
-        Iterator<Map.Entry<String, Object>> iterator = nodeProperties.entrySet().iterator();
-        if (iterator.hasNext()) {
-            Map.Entry<String, Object> firstProp = iterator.next();
-            sourceDb.nodeHasProperty(node,firstProp.getKey());
-            sourceDb.setNodeProperty(node, firstProp.getKey(), firstProp.getValue()); // force flush
-            System.out.print(" flush");
-        }
-    }
-
-    private static boolean createRelationship(BatchInserter targetDb, BatchInserter sourceDb, BatchRelationship rel, Set<String> ignoreProperties, LongLongMap copiedNodeIds) {
-        long startNodeId = rel.getStartNode(), endNodeId = rel.getEndNode();
-        if (copiedNodeIds != null) {
-           startNodeId = copiedNodeIds.get(startNodeId);
-           endNodeId = copiedNodeIds.get(endNodeId);
-        }
-        if (startNodeId == -1L || endNodeId == -1L) return false;
-        final RelationshipType type = rel.getType();
+    /**
+     * @return the id of the created relationship, -1 if it was skipped or failed
+     */
+    private static long createRelationship(BatchInserter targetDb, CopyFilter filter, StoreReader.RecordCursor rel, long relId, RelationshipType type, NodeIdMap copiedNodeIds, Map<String, Object> properties) {
+        // relationships of deleted or missing nodes are skipped before reading their properties
+        long startNodeId = copiedNodeIds.get(rel.startNode()), endNodeId = copiedNodeIds.get(rel.endNode());
+        if (startNodeId == -1L || endNodeId == -1L) return -1L;
         try {
-            Map<String, Object> props = getProperties(sourceDb.getRelationshipProperties(rel.getId()), ignoreProperties);
+            Map<String, Object> props = relationshipProperties(filter, rel, properties);
 //            if (props.isEmpty()) props = Collections.<String,Object>singletonMap("old_id",rel.getId()); else props.put("old_id",rel.getId());
-            targetDb.createRelationship(startNodeId, endNodeId, type, props);
-            return true;
+            long targetId = targetDb.createRelationship(startNodeId, endNodeId, type, props);
+            flusher.written(targetDb);
+            if (digest != null) digest.relationship(startNodeId, endNodeId, type.name(), props);
+            return targetId;
         } catch (Exception e) {
-            addLog(rel, "create Relationship: " + startNodeId + "-[:" + type + "]" + "->" + endNodeId, e.getMessage());
-            return false;
+            badEntries.add(BadEntryLog.RecordType.RELATIONSHIP, relId, e);
+            return -1L;
         }
     }
 
-    private static LongLongMap copyNodes(BatchInserter sourceDb, BatchInserter targetDb, Set<String> ignoreProperties, Set<String> ignoreLabels, Set<String> deleteNodesWithLabels, long highestNodeId, Flusher flusher, boolean stableNodeIds) {
-        MutableLongLongMap copiedNodes = stableNodeIds ? null : new LongLongHashMap(10_000_000);
+    static NodeIdMap copyNodes(StoreReader sourceDb, CopyCheckpoint checkpoint, CopyFilter filter, long highestNodeId, boolean stableNodeIds) throws IOException {
+        KeptNodeIdMap keptNodes = !stableNodeIds ? null : checkpoint.nodeIdMap() != null ? (KeptNodeIdMap) checkpoint.nodeIdMap() : new KeptNodeIdMap(highestNodeId);
+        CompactNodeIdMap compactedNodes = stableNodeIds ? null : checkpoint.nodeIdMap() != null ? (CompactNodeIdMap) checkpoint.nodeIdMap() : new CompactNodeIdMap(highestNodeId);
+        NodeIdMap copiedNodes = stableNodeIds ? keptNodes : compactedNodes;
         long time = System.currentTimeMillis();
-        long node = 0;
-        long notFound = 0;
-        long removed = 0;
-        while (node <= highestNodeId) {
-            try {
-                if (sourceDb.nodeExists(node)) {
-                    if (labelInSet(sourceDb.getNodeLabels(node),deleteNodesWithLabels)) {
-                        removed ++;
-                    } else {
-                        if (stableNodeIds) {
-                            targetDb.createNode(node, getProperties(sourceDb.getNodeProperties(node), ignoreProperties), labelsArray(sourceDb, node, ignoreLabels));
+        BatchInserter targetDb = checkpoint.target();
+        long node = checkpoint.nextId(CopyCheckpoint.Phase.NODES);
+        long notFound = checkpoint.notFound(CopyCheckpoint.Phase.NODES);
+        long removed = checkpoint.removed(CopyCheckpoint.Phase.NODES);
+        Map<String, Object> properties = new HashMap<>();
+        metrics.phase("nodes", highestNodeId);
+        try (StoreReader.RecordCursor cursor = sourceDb.newCursor()) {
+            while (node <= highestNodeId) {
+                try {
+                    if (cursor.node(node)) {
+                        long[] labelIds = cursor.labelIds();
+                        if (filter.deletesNode(labelIds)) {
+                            removed ++;
                         } else {
-                            long newNodeId = targetDb.createNode(getProperties(sourceDb.getNodeProperties(node), ignoreProperties), labelsArray(sourceDb, node, ignoreLabels));
-                            copiedNodes.put(node,newNodeId);
+                            Map<String, Object> props = nodeProperties(filter, cursor, labelIds, properties);
+                            Label[] labels = filter.labels(labelIds);
+                            long targetId = stableNodeIds ? node : compactedNodes.nextTargetId();
+                            targetDb.createNode(targetId, props, labels);
+                            flusher.written(targetDb);
+                            if (digest != null) digest.node(targetId, labels, props);
+                            if (stableNodeIds) keptNodes.add(node); else compactedNodes.add(node);
                         }
+                    } else {
+                        notFound++;
                     }
-                } else {
-                    notFound++;
+                } catch (Exception e) {
+                    if (e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use")) {
+                        notFound++;
+                    } else badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                }
+                node++;
+                if (node % 10000 == 0) {
+                    System.out.print(".");
+                    metrics.update(node, notFound, removed);
+                }
+                if (node % 500000 == 0) {
+                    System.out.printf(" %d / %d (%d%%) unused %d removed %d%n", node, highestNodeId, percent(node,highestNodeId), notFound, removed);
+                }
+                if (checkpoint.isDue(node)) {
+                    targetDb = checkpoint.checkpoint(CopyCheckpoint.Phase.NODES, node, notFound, removed, copiedNodes);
                 }
-            } catch (Exception e) {
-                if (e instanceof org.neo4j.kernel.impl.store.InvalidRecordException && e.getMessage().endsWith("not in use")) {
-                    notFound++;
-                } else addLog(node, e.getMessage());
-            }
-            node++;
-            if (node % 10000 == 0) {
-                System.out.print(".");
-            }
-            if (node % 500000 == 0) {
-                flusher.flush();
-                logs.flush();
-                System.out.printf(" %d / %d (%d%%) unused %d removed %d%n", node, highestNodeId, percent(node,highestNodeId), notFound, removed);
             }
         }
         time = Math.max(1,(System.currentTimeMillis() - time)/1000);
         System.out.printf("%n copying of %d node records took %d seconds (%d rec/s). Unused Records %d (%d%%). Removed Records %d (%d%%).%n",
                 node, time, node/time, notFound, percent(notFound,node),removed, percent(removed,node));
+        System.out.printf(" node id mapping of %d nodes uses %d MB%n", copiedNodes.size(), copiedNodes.memoryUsage() / (1024 * 1024));
         return copiedNodes;
     }
 
-    private static boolean labelInSet(Iterable<Label> nodeLabels, Set<String> labelSet) {
-        if (labelSet == null || labelSet.isEmpty()) return false;
-        for (Label nodeLabel : nodeLabels) {
-            if (labelSet.contains(nodeLabel.name())) return true;
+    /**
+     * Copies the nodes in the order of the renumbering, the node at position p of the order is created with target id p.
+     */
+    private static void copyNodesRenumbered(StoreReader sourceDb, CopyCheckpoint checkpoint, CopyFilter filter, PermutedNodeIdMap copiedNodes) throws IOException {
+        long time = System.currentTimeMillis();
+        BatchInserter targetDb = checkpoint.target();
+        long position = checkpoint.nextId(CopyCheckpoint.Phase.NODES);
+        long total = copiedNodes.size();
+        Map<String, Object> properties = new HashMap<>();
+        metrics.phase("nodes", total - 1);
+        try (StoreReader.RecordCursor cursor = sourceDb.newCursor()) {
+            while (position < total) {
+                long node = copiedNodes.sourceId(position);
+                try {
+                    cursor.node(node);
+                    long[] labelIds = cursor.labelIds();
+                    Map<String, Object> props = nodeProperties(filter, cursor, labelIds, properties);
+                    Label[] labels = filter.labels(labelIds);
+                    targetDb.createNode(copiedNodes.get(node), props, labels);
+                    flusher.written(targetDb);
+                    if (digest != null) digest.node(copiedNodes.get(node), labels, props);
+                } catch (Exception e) {
+                    badEntries.add(BadEntryLog.RecordType.NODE, node, e);
+                }
+                position++;
+                if (position % 10000 == 0) {
+                    System.out.print(".");
+                    metrics.update(position, 0, 0);
+                }
+                if (position % 500000 == 0) {
+                    System.out.printf(" %d / %d (%d%%)%n", position, total, percent(position,total));
+                }
+                if (checkpoint.isDue(position)) {
+                    targetDb = checkpoint.checkpoint(CopyCheckpoint.Phase.NODES, position, 0, 0, copiedNodes);
+                }
+            }
         }
-        return false;
+        time = Math.max(1,(System.currentTimeMillis() - time)/1000);
+        System.out.printf("%n copying of %d renumbered nodes took %d seconds (%d rec/s).%n", total, time, total/time);
+        System.out.printf(" node id mapping of %d nodes uses %d MB%n", copiedNodes.size(), copiedNodes.memoryUsage() / (1024 * 1024));
     }
 
-    private static Label[] labelsArray(BatchInserter db, long node, Set<String> ignoreLabels) {
-        Collection<Label> labels = Iterables.asCollection(db.getNodeLabels(node));
-        if (labels.isEmpty()) return NO_LABELS;
-        if (!ignoreLabels.isEmpty()) {
-            labels.removeIf(label -> ignoreLabels.contains(label.name()));
+    /**
+     * Fills the reused properties map with the properties of the current node that pass the filter, the map is only valid until the next call.
+     */
+    static Map<String, Object> nodeProperties(CopyFilter filter, StoreReader.RecordCursor cursor, long[] labelIds, Map<String, Object> properties) {
+        int count = cursor.nodeProperties();
+        if (count == 0) return Collections.emptyMap();
+        properties.clear();
+        for (int i = 0; i < count; i++) {
+            int keyId = cursor.propertyKeyId(i);
+            Value value = cursor.propertyValue(i);
+            if (filter.keepsNodeProperty(keyId, labelIds, value)) properties.put(filter.propertyKey(keyId), filter.value(keyId, value).asObject());
         }
-        return labels.toArray(new Label[labels.size()]);
+        return properties;
     }
 
-    private static Map<String, Object> getProperties(Map<String, Object> pc, Set<String> ignoreProperties) {
-        if (pc.isEmpty()) return Collections.emptyMap();
-        if (!ignoreProperties.isEmpty()) {
-            pc.keySet().removeAll(ignoreProperties);
+    /**
+     * Fills the reused properties map with the properties of the current relationship that pass the filter, the map is only valid until the next call.
+     */
+    static Map<String, Object> relationshipProperties(CopyFilter filter, StoreReader.RecordCursor cursor, Map<String, Object> properties) {
+        int count = cursor.relationshipProperties();
+        if (count == 0) return Collections.emptyMap();
+        properties.clear();
+        for (int i = 0; i < count; i++) {
+            int keyId = cursor.propertyKeyId(i);
+            Value value = cursor.propertyValue(i);
+            if (filter.keepsRelationshipProperty(keyId, cursor.typeId(), value)) properties.put(filter.propertyKey(keyId), filter.value(keyId, value).asObject());
         }
-        return pc;
-    }
-
-    private static void addLog(BatchRelationship rel, String property, String message) {
-        logs.append(String.format("%s.%s %s%n", rel, property, message));
-    }
-
-    private static void addLog(long node, String message) {
-        logs.append(String.format("Node: %s %s%n", node, message));
-    }
-
-    private static void addLog(PropertyContainer pc, String property, String message) {
-        logs.append(String.format("%s.%s %s%n", pc, property, message));
+        return properties;
     }
 }
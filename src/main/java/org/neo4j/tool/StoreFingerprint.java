@@ -0,0 +1,207 @@
+package org.neo4j.tool;
+
+import java.io.*;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptySet;
+
+/**
+ * A Merkle tree over the {@link CopyDigest} blocks of a store, persisted as a small file, so that two stores with the
+ * same node ids, like backups, replicas and copies that kept the node ids, are compared by their fingerprints alone.
+ * <p>
+ * The leaves are the hashes of the blocks of {@link CopyDigest#BLOCK_SIZE} node ids with their nodes and the
+ * relationships that start in them, every inner tree node hashes its {@link #FAN_OUT} children. Equal roots mean equal
+ * stores, otherwise only the subtrees with different hashes are descended into, down to the blocks that differ, which
+ * {@code StoreComparer -Dcompare_fingerprints=source.tsv,target.tsv} then compares in detail.
+ * <p>
+ * Usage: {@code StoreFingerprint store [fingerprint] [rel,types,to,ignore] [properties,to,ignore]} writes the
+ * fingerprint, by default {@value #FILE} in the store, {@code StoreFingerprint compare source.tsv target.tsv} prints the
+ * blocks that differ.
+ */
+class StoreFingerprint {
+    static final String FILE = "store-fingerprint.tsv";
+    static final int FAN_OUT = 16;
+    private static final String HEADER = "level\tindex\tnodes\trelationships\thash";
+
+    // level 0 holds the leaves, the last level the root
+    private final long[][] hashes;
+    private final long[][] nodes;
+    private final long[][] relationships;
+
+    private StoreFingerprint(long[][] hashes, long[][] nodes, long[][] relationships) {
+        this.hashes = hashes;
+        this.nodes = nodes;
+        this.relationships = relationships;
+    }
+
+    /**
+     * Builds the tree over the leaves, the missing leaves up to the given number are empty blocks.
+     */
+    private static StoreFingerprint build(long[] leafHashes, long[] leafNodes, long[] leafRelationships, int leaves) {
+        List<long[]> hashes = new ArrayList<>(), nodes = new ArrayList<>(), relationships = new ArrayList<>();
+        hashes.add(Arrays.copyOf(leafHashes, leaves));
+        nodes.add(Arrays.copyOf(leafNodes, leaves));
+        relationships.add(Arrays.copyOf(leafRelationships, leaves));
+        while (hashes.get(hashes.size() - 1).length > 1) {
+            long[] childHashes = hashes.get(hashes.size() - 1), childNodes = nodes.get(nodes.size() - 1), childRelationships = relationships.get(relationships.size() - 1);
+            int size = (childHashes.length + FAN_OUT - 1) / FAN_OUT;
+            long[] levelHashes = new long[size], levelNodes = new long[size], levelRelationships = new long[size];
+            for (int index = 0; index < size; index++) {
+                long hash = index;
+                for (int child = index * FAN_OUT; child < (index + 1) * FAN_OUT; child++) {
+                    // missing children hash as empty blocks, so that trees over more leaves agree on the common ones
+                    hash = CopyDigest.mix(hash * 31 + (child < childHashes.length ? childHashes[child] : 0));
+                    if (child >= childHashes.length) continue;
+                    levelNodes[index] += childNodes[child];
+                    levelRelationships[index] += childRelationships[child];
+                }
+                levelHashes[index] = hash;
+            }
+            hashes.add(levelHashes);
+            nodes.add(levelNodes);
+            relationships.add(levelRelationships);
+        }
+        return new StoreFingerprint(hashes.toArray(new long[0][]), nodes.toArray(new long[0][]), relationships.toArray(new long[0][]));
+    }
+
+    static StoreFingerprint of(CopyDigest digest) {
+        int blocks = digest.blocks();
+        long[] hashes = new long[blocks], nodes = new long[blocks], relationships = new long[blocks];
+        for (int block = 0; block < blocks; block++) {
+            hashes[block] = digest.blockHash(block);
+            nodes[block] = digest.nodes(block);
+            relationships[block] = digest.relationships(block);
+        }
+        return build(hashes, nodes, relationships, blocks);
+    }
+
+    int blocks() {
+        return hashes[0].length;
+    }
+
+    private int root() {
+        return hashes.length - 1;
+    }
+
+    /**
+     * @return this tree, or one over as many leaves as given if it has fewer
+     */
+    private StoreFingerprint padded(int leaves) {
+        return leaves <= blocks() ? this : build(hashes[0], nodes[0], relationships[0], leaves);
+    }
+
+    /**
+     * Writes the tree from the root down to the leaves.
+     */
+    void write(File file, String description) throws IOException {
+        try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+            out.println("# " + description);
+            out.println(HEADER);
+            for (int level = root(); level >= 0; level--) {
+                for (int index = 0; index < hashes[level].length; index++) {
+                    out.printf("%d\t%d\t%d\t%d\t%016x%n", level, index, nodes[level][index], relationships[level][index], hashes[level][index]);
+                }
+            }
+        }
+    }
+
+    static StoreFingerprint read(File file) throws IOException {
+        if (!file.exists()) throw new IllegalArgumentException("Store fingerprint does not exist " + file);
+        List<long[]> hashes = new ArrayList<>(), nodes = new ArrayList<>(), relationships = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(file))) {
+            String line = in.readLine();
+            while (line != null && line.startsWith("#")) line = in.readLine();
+            if (!HEADER.equals(line)) throw new IllegalArgumentException("Not a store fingerprint " + file);
+            List<String[]> level = new ArrayList<>();
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (!level.isEmpty() && !level.get(0)[0].equals(fields[0])) {
+                    addLevel(level, hashes, nodes, relationships);
+                    level.clear();
+                }
+                level.add(fields);
+            }
+            addLevel(level, hashes, nodes, relationships);
+        }
+        Collections.reverse(hashes);
+        Collections.reverse(nodes);
+        Collections.reverse(relationships);
+        return new StoreFingerprint(hashes.toArray(new long[0][]), nodes.toArray(new long[0][]), relationships.toArray(new long[0][]));
+    }
+
+    private static void addLevel(List<String[]> level, List<long[]> hashes, List<long[]> nodes, List<long[]> relationships) {
+        long[] levelHashes = new long[level.size()], levelNodes = new long[level.size()], levelRelationships = new long[level.size()];
+        for (int index = 0; index < level.size(); index++) {
+            String[] fields = level.get(index);
+            levelNodes[index] = Long.parseLong(fields[2]);
+            levelRelationships[index] = Long.parseLong(fields[3]);
+            levelHashes[index] = Long.parseUnsignedLong(fields[4], 16);
+        }
+        hashes.add(levelHashes);
+        nodes.add(levelNodes);
+        relationships.add(levelRelationships);
+    }
+
+    /**
+     * Descends from the roots into the subtrees whose hashes differ and prints the blocks that differ.
+     * @return the blocks that differ, empty if the stores are equal
+     */
+    static BitSet differingBlocks(StoreFingerprint source, StoreFingerprint target) {
+        int leaves = Math.max(source.blocks(), target.blocks());
+        source = source.padded(leaves);
+        target = target.padded(leaves);
+        BitSet blocks = new BitSet();
+        int visited = 0;
+        Deque<long[]> pending = new ArrayDeque<>();
+        pending.push(new long[]{source.root(), 0});
+        while (!pending.isEmpty()) {
+            long[] treeNode = pending.pop();
+            int level = (int) treeNode[0], index = (int) treeNode[1];
+            visited++;
+            if (source.hashes[level][index] == target.hashes[level][index]) continue;
+            if (level == 0) {
+                blocks.set(index);
+                continue;
+            }
+            for (int child = Math.min((index + 1) * FAN_OUT, source.hashes[level - 1].length) - 1; child >= index * FAN_OUT; child--) {
+                pending.push(new long[]{level - 1, child});
+            }
+        }
+        for (int block = blocks.nextSetBit(0); block >= 0; block = blocks.nextSetBit(block + 1)) {
+            System.out.printf(" block %d of node ids %d to %d differs, nodes %d != %d, relationships %d != %d%n", block, (long) block * CopyDigest.BLOCK_SIZE,
+                    (long) (block + 1) * CopyDigest.BLOCK_SIZE - 1, source.nodes[0][block], target.nodes[0][block], source.relationships[0][block], target.relationships[0][block]);
+        }
+        System.out.printf("%s: %d of %d blocks differ, %d tree nodes visited%n", blocks.isEmpty() ? "EQUAL" : "DIFFERENT", blocks.cardinality(), leaves, visited);
+        return blocks;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: StoreFingerprint store [fingerprint] [rel,types,to,ignore] [properties,to,ignore]");
+            System.err.println("       StoreFingerprint compare source-fingerprint target-fingerprint");
+            return;
+        }
+        if (args[0].equals("compare") && args.length == 3) {
+            long time = System.currentTimeMillis();
+            differingBlocks(read(new File(args[1])), read(new File(args[2])));
+            System.out.println(" comparing the fingerprints took " + (System.currentTimeMillis() - time) + " ms.");
+            return;
+        }
+        File store = new File(args[0]);
+        if (!store.exists()) throw new IllegalArgumentException("Store Directory does not exist " + store);
+        File file = args.length > 1 && !args[1].isEmpty() ? new File(args[1]) : new File(store, FILE);
+        Set<String> ignoreRelTypes = splitOptionIfExists(args, 2);
+        Set<String> ignoreProperties = splitOptionIfExists(args, 3);
+        CopyDigest digest = CopyDigest.ofStore(store, System.getProperty("dbms.pagecache.memory", "2G"), ignoreRelTypes, ignoreProperties);
+        StoreFingerprint fingerprint = of(digest);
+        fingerprint.write(file, String.format("fingerprint of %s in blocks of %d node ids, ignoring rel-types %s properties %s", store, CopyDigest.BLOCK_SIZE, ignoreRelTypes, ignoreProperties));
+        System.out.printf("Wrote the fingerprint %016x of %d nodes and %d relationships to %s%n", fingerprint.hashes[fingerprint.root()][0],
+                fingerprint.nodes[fingerprint.root()][0], fingerprint.relationships[fingerprint.root()][0], file);
+    }
+
+    private static Set<String> splitOptionIfExists(String[] args, final int index) {
+        if (args.length <= index || args[index].isEmpty()) return emptySet();
+        return new HashSet<>(asList(args[index].toLowerCase().split(",")));
+    }
+}
@@ -0,0 +1,137 @@
+package org.neo4j.tool;
+
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.io.fs.DefaultFileSystemAbstraction;
+import org.neo4j.io.fs.FileSystemAbstraction;
+import org.neo4j.io.layout.DatabaseLayout;
+import org.neo4j.kernel.impl.store.InvalidIdGeneratorException;
+import org.neo4j.kernel.impl.store.MetaDataStore;
+import org.neo4j.kernel.impl.store.NoStoreHeader;
+import org.neo4j.kernel.impl.store.format.RecordFormats;
+import org.neo4j.kernel.impl.store.format.RecordFormatSelector;
+import org.neo4j.kernel.impl.store.id.IdGeneratorImpl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Lightweight probe of a store directory, reads the store version and the high ids of the node, relationship and
+ * property stores from the id files without starting a database. If an id file was not closed cleanly the
+ * high id is derived from the store file size and the record size of the store format instead. The id of the last
+ * committed transaction is read from the metadata store.
+ */
+class StoreMetadata {
+    private static final int META_DATA_RECORD_SIZE = 9;
+
+    private final String storeVersion;
+    private final long highestNodeId;
+    private final long highestRelationshipId;
+    private final long highestPropertyId;
+    private final boolean cleanShutdown;
+    private final long lastTransactionId;
+
+    private StoreMetadata(String storeVersion, long highestNodeId, long highestRelationshipId, long highestPropertyId, boolean cleanShutdown, long lastTransactionId) {
+        this.storeVersion = storeVersion;
+        this.highestNodeId = highestNodeId;
+        this.highestRelationshipId = highestRelationshipId;
+        this.highestPropertyId = highestPropertyId;
+        this.cleanShutdown = cleanShutdown;
+        this.lastTransactionId = lastTransactionId;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: StoreMetadata store.db");
+            return;
+        }
+        System.out.println(probe(new File(args[0])));
+    }
+
+    static StoreMetadata probe(File storeDir) throws IOException {
+        DatabaseLayout layout = DatabaseLayout.of(storeDir);
+        FileSystemAbstraction fs = new DefaultFileSystemAbstraction();
+        String storeVersion = MetaDataStore.versionLongToString(readMetaData(layout.metadataStore(), MetaDataStore.Position.STORE_VERSION));
+        RecordFormats formats = RecordFormatSelector.selectForVersion(storeVersion);
+        long nodes = highId(fs, layout.idNodeStore(), layout.nodeStore(), formats.node().getRecordSize(NoStoreHeader.NO_STORE_HEADER));
+        long rels = highId(fs, layout.idRelationshipStore(), layout.relationshipStore(), formats.relationship().getRecordSize(NoStoreHeader.NO_STORE_HEADER));
+        long props = highId(fs, layout.idPropertyStore(), layout.propertyStore(), formats.property().getRecordSize(NoStoreHeader.NO_STORE_HEADER));
+        boolean clean = nodes >= 0 && rels >= 0 && props >= 0;
+        long lastTransactionId = readMetaData(layout.metadataStore(), MetaDataStore.Position.LAST_TRANSACTION_ID);
+        return new StoreMetadata(storeVersion, Math.abs(nodes) - 1, Math.abs(rels) - 1, Math.abs(props) - 1, clean, lastTransactionId);
+    }
+
+    /**
+     * Probes the store, a store that was not shut down cleanly is started and stopped once as an embedded database
+     * to run recovery before it is probed again.
+     */
+    static StoreMetadata probeRecovered(File storeDir) throws IOException {
+        StoreMetadata metadata = probe(storeDir);
+        if (metadata.cleanShutdown) return metadata;
+        System.out.println("Store " + storeDir + " was not shut down cleanly, starting it once to recover");
+        GraphDatabaseService db = factory().newEmbeddedDatabase(storeDir);
+        db.shutdown();
+        return probe(storeDir);
+    }
+
+    static GraphDatabaseFactory factory() {
+        try {
+           return (GraphDatabaseFactory)Class.forName("org.neo4j.graphdb.factory.EnterpriseGraphDatabaseFactory").newInstance();
+       } catch(ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+           return new GraphDatabaseFactory();
+       }
+    }
+
+    private static long readMetaData(File metaDataStore, MetaDataStore.Position position) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(metaDataStore, "r")) {
+            // each record is an in-use byte followed by the value
+            file.seek(position.id() * META_DATA_RECORD_SIZE + 1);
+            return file.readLong();
+        }
+    }
+
+    /**
+     * @return the high id from the id file, or the negated high id derived from the store file size if the id file is missing or was not closed cleanly
+     */
+    private static long highId(FileSystemAbstraction fs, File idFile, File storeFile, int recordSize) throws IOException {
+        if (fs.fileExists(idFile)) {
+            try {
+                return IdGeneratorImpl.readHighId(fs, idFile);
+            } catch (InvalidIdGeneratorException e) {
+                // fall through to the file size
+            }
+        }
+        return -Math.max(1, (fs.getFileSize(storeFile) + recordSize - 1) / recordSize);
+    }
+
+    String storeVersion() {
+        return storeVersion;
+    }
+
+    long highestNodeId() {
+        return highestNodeId;
+    }
+
+    long highestRelationshipId() {
+        return highestRelationshipId;
+    }
+
+    long highestPropertyId() {
+        return highestPropertyId;
+    }
+
+    boolean isCleanShutdown() {
+        return cleanShutdown;
+    }
+
+    long lastTransactionId() {
+        return lastTransactionId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("StoreMetadata{version=%s, highestNodeId=%d, highestRelationshipId=%d, highestPropertyId=%d, cleanShutdown=%s, lastTransactionId=%d}",
+                storeVersion, highestNodeId, highestRelationshipId, highestPropertyId, cleanShutdown, lastTransactionId);
+    }
+}
@@ -0,0 +1,358 @@
+package org.neo4j.tool;
+
+import org.neo4j.helpers.collection.MapUtil;
+import org.neo4j.internal.kernel.api.NamedToken;
+import org.neo4j.io.fs.DefaultFileSystemAbstraction;
+import org.neo4j.io.fs.FileSystemAbstraction;
+import org.neo4j.io.layout.DatabaseLayout;
+import org.neo4j.io.pagecache.PageCache;
+import org.neo4j.io.pagecache.PageCursor;
+import org.neo4j.io.pagecache.monitoring.PageCacheCounters;
+import org.neo4j.io.pagecache.tracing.DefaultPageCacheTracer;
+import org.neo4j.io.pagecache.tracing.cursor.DefaultPageCursorTracer;
+import org.neo4j.io.pagecache.tracing.cursor.context.EmptyVersionContextSupplier;
+import org.neo4j.kernel.configuration.Config;
+import org.neo4j.kernel.impl.pagecache.ConfigurableStandalonePageCacheFactory;
+import org.neo4j.kernel.impl.scheduler.JobSchedulerFactory;
+import org.neo4j.kernel.impl.store.*;
+import org.neo4j.kernel.impl.store.id.ReadOnlyIdGeneratorFactory;
+import org.neo4j.kernel.impl.store.record.*;
+import org.neo4j.kernel.impl.store.record.Record;
+import org.neo4j.kernel.impl.transaction.CommittedTransactionRepresentation;
+import org.neo4j.kernel.impl.transaction.command.Command;
+import org.neo4j.kernel.impl.transaction.log.ReadOnlyTransactionStore;
+import org.neo4j.kernel.impl.transaction.log.TransactionCursor;
+import org.neo4j.kernel.monitoring.Monitors;
+import org.neo4j.logging.NullLogProvider;
+import org.neo4j.scheduler.JobScheduler;
+import org.neo4j.values.storable.Value;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.LongConsumer;
+
+/**
+ * Read-only access to the record stores of a database directory, without going through the BatchInserter.
+ * Token names are loaded once, records are read through {@link RecordCursor}s which reuse their records,
+ * page cursors and property buffers, so that scanning a store allocates next to nothing per record.
+ * Token ids are kept and only resolved to names where the records are written.
+ * The page cache is traced, see {@link #pageCacheCounters()}.
+ */
+class StoreReader implements AutoCloseable {
+
+    private final DatabaseLayout layout;
+    private final FileSystemAbstraction fs;
+    private final Config config;
+    private final JobScheduler jobScheduler;
+    private final PageCache pageCache;
+    private final DefaultPageCacheTracer pageCacheTracer;
+    private final ThreadLocal<DefaultPageCursorTracer> cursorTracers;
+    private final NeoStores neoStores;
+    private final String[] propertyKeys;
+    private final String[] labels;
+    private final String[] relTypes;
+
+    private StoreReader(DatabaseLayout layout, FileSystemAbstraction fs, Config config, JobScheduler jobScheduler, PageCache pageCache, DefaultPageCacheTracer pageCacheTracer, ThreadLocal<DefaultPageCursorTracer> cursorTracers, NeoStores neoStores) {
+        this.layout = layout;
+        this.fs = fs;
+        this.config = config;
+        this.jobScheduler = jobScheduler;
+        this.pageCache = pageCache;
+        this.pageCacheTracer = pageCacheTracer;
+        this.cursorTracers = cursorTracers;
+        this.neoStores = neoStores;
+        this.propertyKeys = tokenNames(neoStores.getPropertyKeyTokenStore());
+        this.labels = tokenNames(neoStores.getLabelTokenStore());
+        this.relTypes = tokenNames(neoStores.getRelationshipTypeTokenStore());
+    }
+
+    static StoreReader open(File storeDir, String pageCacheMemory) {
+        Config config = Config.defaults(MapUtil.stringMap("dbms.pagecache.memory", pageCacheMemory, "dbms.read_only", "true"));
+        FileSystemAbstraction fs = new DefaultFileSystemAbstraction();
+        JobScheduler jobScheduler = JobSchedulerFactory.createInitialisedScheduler();
+        // cursor tracers of our own, the shared default ones are rebound by the page cache of the target in the same thread
+        DefaultPageCacheTracer pageCacheTracer = new DefaultPageCacheTracer();
+        ThreadLocal<DefaultPageCursorTracer> cursorTracers = ThreadLocal.withInitial(DefaultPageCursorTracer::new);
+        PageCache pageCache = ConfigurableStandalonePageCacheFactory.createPageCache(fs, pageCacheTracer,
+                cursorTracers::get, config, EmptyVersionContextSupplier.EMPTY, jobScheduler);
+        NeoStores neoStores = new StoreFactory(DatabaseLayout.of(storeDir), config, new ReadOnlyIdGeneratorFactory(fs), pageCache, fs,
+                NullLogProvider.getInstance(), EmptyVersionContextSupplier.EMPTY).openAllNeoStores();
+        return new StoreReader(DatabaseLayout.of(storeDir), fs, config, jobScheduler, pageCache, pageCacheTracer, cursorTracers, neoStores);
+    }
+
+    /**
+     * @return hits, faults and evictions of the page cache, counting the events reported so far
+     */
+    PageCacheCounters pageCacheCounters() {
+        return pageCacheTracer;
+    }
+
+    /**
+     * Adds the page cache events of the calling thread to the {@link #pageCacheCounters()}, page cursors
+     * count them per thread, so every reading thread has to call this now and then.
+     */
+    void reportPageCacheEvents() {
+        cursorTracers.get().reportEvents();
+    }
+
+    /**
+     * Reads the transaction logs of the source from the transaction after the given one and reports the ids of
+     * the nodes and relationships whose records or properties were changed, repeatedly if changed more than once.
+     *
+     * @return the id of the last transaction read, the given one if there was none
+     */
+    long changedSince(long lastTxId, LongConsumer nodes, LongConsumer relationships) throws IOException {
+        ReadOnlyTransactionStore transactions = new ReadOnlyTransactionStore(pageCache, fs, layout, config, new Monitors());
+        long txId = lastTxId;
+        try (TransactionCursor cursor = transactions.getTransactions(lastTxId + 1)) {
+            while (cursor.next()) {
+                CommittedTransactionRepresentation tx = cursor.get();
+                tx.getTransactionRepresentation().accept(command -> {
+                    if (command instanceof Command.NodeCommand) {
+                        nodes.accept(((Command.NodeCommand) command).getKey());
+                    } else if (command instanceof Command.RelationshipCommand) {
+                        relationships.accept(((Command.RelationshipCommand) command).getKey());
+                    } else if (command instanceof Command.PropertyCommand) {
+                        // the owner is only set on records in use
+                        PropertyRecord record = ((Command.PropertyCommand) command).getAfter().inUse()
+                                ? ((Command.PropertyCommand) command).getAfter() : ((Command.PropertyCommand) command).getBefore();
+                        if (record.isNodeSet()) nodes.accept(record.getNodeId());
+                        else if (record.isRelSet()) relationships.accept(record.getRelId());
+                    }
+                    return false;
+                });
+                txId = tx.getCommitEntry().getTxId();
+            }
+        }
+        return txId;
+    }
+
+    NeoStores neoStores() {
+        return neoStores;
+    }
+
+    String propertyKey(int keyId) {
+        return propertyKeys[keyId];
+    }
+
+    String label(long labelId) {
+        return labels[(int) labelId];
+    }
+
+    String relType(int typeId) {
+        return relTypes[typeId];
+    }
+
+    String[] propertyKeys() {
+        return propertyKeys;
+    }
+
+    String[] labels() {
+        return labels;
+    }
+
+    String[] relTypes() {
+        return relTypes;
+    }
+
+    long highestPropertyId() {
+        return neoStores.getPropertyStore().getHighestPossibleIdInUse();
+    }
+
+    /**
+     * @return a new cursor, cursors are not thread safe, every reading thread needs its own
+     */
+    RecordCursor newCursor() {
+        return new RecordCursor();
+    }
+
+    @Override
+    public void close() {
+        neoStores.close();
+        pageCache.close();
+        try {
+            jobScheduler.close();
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not stop the page cache scheduler", e);
+        }
+    }
+
+    private static String[] tokenNames(TokenStore<?> tokenStore) {
+        List<NamedToken> tokens = tokenStore.getTokens();
+        int size = 0;
+        for (NamedToken token : tokens) size = Math.max(size, token.id() + 1);
+        String[] names = new String[size];
+        for (NamedToken token : tokens) names[token.id()] = token.name();
+        return names;
+    }
+
+    interface RelationshipVisitor {
+        /**
+         * @return false to stop the visit
+         */
+        boolean visit(long relId, long otherNode);
+    }
+
+    /**
+     * Positions on one node or relationship record at a time. Everything returned from a cursor is only
+     * valid until it is moved to the next record.
+     */
+    class RecordCursor implements AutoCloseable {
+        private final NodeStore nodeStore = neoStores.getNodeStore();
+        private final RelationshipStore relationshipStore = neoStores.getRelationshipStore();
+        private final PropertyStore propertyStore = neoStores.getPropertyStore();
+        private final NodeRecord nodeRecord = nodeStore.newRecord();
+        private final RelationshipRecord relationshipRecord = relationshipStore.newRecord();
+        private final PropertyRecord propertyRecord = propertyStore.newRecord();
+        private final PageCursor nodeCursor = nodeStore.openPageCursorForReading(0);
+        private final PageCursor relationshipCursor = relationshipStore.openPageCursorForReading(0);
+        private final PageCursor propertyCursor = propertyStore.openPageCursorForReading(0);
+        private final RelationshipGroupStore groupStore = neoStores.getRelationshipGroupStore();
+        private final RelationshipGroupRecord groupRecord = groupStore.newRecord();
+        private final PageCursor groupCursor = groupStore.openPageCursorForReading(0);
+
+        private int[] propertyKeyIds = new int[16];
+        private Value[] propertyValues = new Value[16];
+        private int propertyCount;
+
+        /**
+         * @return true if the node record is in use
+         */
+        boolean node(long nodeId) {
+            nodeStore.getRecordByCursor(nodeId, nodeRecord, RecordLoad.CHECK, nodeCursor);
+            return nodeRecord.inUse();
+        }
+
+        long[] labelIds() {
+            return NodeLabelsField.get(nodeRecord, nodeStore);
+        }
+
+        /**
+         * @return true if the relationship record is in use
+         */
+        boolean relationship(long relId) {
+            relationshipStore.getRecordByCursor(relId, relationshipRecord, RecordLoad.CHECK, relationshipCursor);
+            return relationshipRecord.inUse();
+        }
+
+        int typeId() {
+            return relationshipRecord.getType();
+        }
+
+        long startNode() {
+            return relationshipRecord.getFirstNode();
+        }
+
+        long endNode() {
+            return relationshipRecord.getSecondNode();
+        }
+
+        /**
+         * Visits the relationships of the current node by following its relationship chain, for a dense node the chains
+         * of all its relationship groups. During a visit the cursor is positioned on the relationship, so its type, nodes
+         * and properties can be read, the node record stays in place.
+         */
+        void relationshipsOfNode(RelationshipVisitor visitor) {
+            long nodeId = nodeRecord.getId();
+            if (!nodeRecord.isDense()) {
+                followChain(nodeId, nodeRecord.getNextRel(), visitor);
+                return;
+            }
+            long group = nodeRecord.getNextRel();
+            while (!Record.NO_NEXT_RELATIONSHIP.is(group)) {
+                groupStore.getRecordByCursor(group, groupRecord, RecordLoad.NORMAL, groupCursor);
+                long firstIn = groupRecord.getFirstIn(), firstLoop = groupRecord.getFirstLoop();
+                group = groupRecord.getNext();
+                if (!followChain(nodeId, groupRecord.getFirstOut(), visitor) || !followChain(nodeId, firstIn, visitor) || !followChain(nodeId, firstLoop, visitor)) return;
+            }
+        }
+
+        /**
+         * @return false if the visitor stopped the visit
+         */
+        private boolean followChain(long nodeId, long relId, RelationshipVisitor visitor) {
+            while (!Record.NO_NEXT_RELATIONSHIP.is(relId)) {
+                // a broken chain ends the visit of the chain
+                if (!relationship(relId)) return true;
+                boolean first = relationshipRecord.getFirstNode() == nodeId;
+                if (!first && relationshipRecord.getSecondNode() != nodeId) return true;
+                if (!visitor.visit(relId, first ? relationshipRecord.getSecondNode() : relationshipRecord.getFirstNode())) return false;
+                relId = first ? relationshipRecord.getFirstNextRel() : relationshipRecord.getSecondNextRel();
+            }
+            return true;
+        }
+
+        /**
+         * Reads the property chain of the current node into the cursor's property buffer.
+         */
+        int nodeProperties() {
+            return readProperties(nodeRecord.getNextProp());
+        }
+
+        /**
+         * Reads the property chain of the current relationship into the cursor's property buffer.
+         */
+        int relationshipProperties() {
+            return readProperties(relationshipRecord.getNextProp());
+        }
+
+        int propertyCount() {
+            return propertyCount;
+        }
+
+        int propertyKeyId(int index) {
+            return propertyKeyIds[index];
+        }
+
+        Value propertyValue(int index) {
+            return propertyValues[index];
+        }
+
+        /**
+         * Reads the properties of one property record into the cursor's property buffer, whoever owns it, for scans of
+         * the property store. Only the values of the wanted keys are read, the others are left out.
+         * @return the number of properties read, 0 if the record is not in use
+         */
+        int propertyRecord(long propertyId, boolean[] wantedKeys) {
+            propertyCount = 0;
+            propertyStore.getRecordByCursor(propertyId, propertyRecord, RecordLoad.CHECK, propertyCursor);
+            if (!propertyRecord.inUse()) return 0;
+            for (PropertyBlock block : propertyRecord) {
+                int keyId = block.getKeyIndexId();
+                if (keyId >= wantedKeys.length || !wantedKeys[keyId]) continue;
+                propertyKeyIds[propertyCount] = keyId;
+                propertyValues[propertyCount] = block.newPropertyValue(propertyStore);
+                propertyCount++;
+            }
+            return propertyCount;
+        }
+
+        private int readProperties(long nextProp) {
+            propertyCount = 0;
+            while (!Record.NO_NEXT_PROPERTY.is(nextProp)) {
+                propertyStore.getRecordByCursor(nextProp, propertyRecord, RecordLoad.NORMAL, propertyCursor);
+                for (PropertyBlock block : propertyRecord) {
+                    if (propertyCount == propertyKeyIds.length) {
+                        propertyKeyIds = Arrays.copyOf(propertyKeyIds, propertyCount * 2);
+                        propertyValues = Arrays.copyOf(propertyValues, propertyCount * 2);
+                    }
+                    propertyKeyIds[propertyCount] = block.getKeyIndexId();
+                    propertyValues[propertyCount] = block.newPropertyValue(propertyStore);
+                    propertyCount++;
+                }
+                nextProp = propertyRecord.getNextProp();
+            }
+            return propertyCount;
+        }
+
+        @Override
+        public void close() {
+            nodeCursor.close();
+            relationshipCursor.close();
+            propertyCursor.close();
+            groupCursor.close();
+        }
+    }
+}
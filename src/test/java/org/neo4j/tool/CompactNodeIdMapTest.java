@@ -0,0 +1,91 @@
+package org.neo4j.tool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.neo4j.kernel.impl.store.id.IdGeneratorImpl;
+
+import java.io.File;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class CompactNodeIdMapTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void mapsCopiedIdsToTheirRank() throws Exception {
+        long highestSourceId = 10_000;
+        boolean[] copied = copiedIds(highestSourceId);
+        try (CompactNodeIdMap map = new CompactNodeIdMap(highestSourceId)) {
+            add(map, copied);
+            assertRanks(map, copied);
+        }
+    }
+
+    @Test
+    public void mapsIdsAtWordAndBlockBoundaries() throws Exception {
+        long highestSourceId = 4 * 512;
+        boolean[] copied = new boolean[(int) highestSourceId + 1];
+        for (long id : new long[]{0, 63, 64, 511, 512, 513, 1023, 1536, 2047, 2048}) copied[(int) id] = true;
+        try (CompactNodeIdMap map = new CompactNodeIdMap(highestSourceId)) {
+            add(map, copied);
+            assertRanks(map, copied);
+            assertEquals(-1L, map.get(-1));
+            assertEquals(-1L, map.get(highestSourceId + 1));
+        }
+    }
+
+    @Test
+    public void readsWhatItWrote() throws Exception {
+        long highestSourceId = 10_000;
+        boolean[] copied = copiedIds(highestSourceId);
+        File file = folder.newFile();
+        try (CompactNodeIdMap map = new CompactNodeIdMap(highestSourceId)) {
+            add(map, copied);
+            map.writeTo(file);
+        }
+        try (CompactNodeIdMap map = CompactNodeIdMap.readFrom(file)) {
+            assertRanks(map, copied);
+        }
+    }
+
+    @Test
+    public void skipsTheReservedTargetId() {
+        long reserved = IdGeneratorImpl.INTEGER_MINUS_ONE;
+        assertEquals(0L, CompactNodeIdMap.targetId(0));
+        assertEquals(reserved - 1, CompactNodeIdMap.targetId(reserved - 1));
+        assertEquals(reserved + 1, CompactNodeIdMap.targetId(reserved));
+        assertEquals(reserved + 2, CompactNodeIdMap.targetId(reserved + 1));
+    }
+
+    private static boolean[] copiedIds(long highestSourceId) {
+        Random random = new Random(42);
+        boolean[] copied = new boolean[(int) highestSourceId + 1];
+        // runs of copied and skipped ids that span words and blocks
+        for (int id = 0; id < copied.length; ) {
+            int length = 1 + random.nextInt(700);
+            boolean copy = random.nextBoolean();
+            for (int end = Math.min(copied.length, id + length); id < end; id++) copied[id] = copy && random.nextInt(8) != 0;
+        }
+        return copied;
+    }
+
+    private static void add(CompactNodeIdMap map, boolean[] copied) {
+        long rank = 0;
+        for (int id = 0; id < copied.length; id++) {
+            if (!copied[id]) continue;
+            assertEquals(rank++, map.nextTargetId());
+            map.add(id);
+        }
+        assertEquals(rank, map.size());
+    }
+
+    private static void assertRanks(CompactNodeIdMap map, boolean[] copied) {
+        long rank = 0;
+        for (int id = 0; id < copied.length; id++) {
+            assertEquals("source id " + id, copied[id] ? rank++ : -1L, map.get(id));
+        }
+    }
+}
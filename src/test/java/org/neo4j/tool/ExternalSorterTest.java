@@ -0,0 +1,95 @@
+package org.neo4j.tool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExternalSorterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sortsNothing() throws Exception {
+        try (ExternalSorter sorter = new ExternalSorter(folder.newFolder(), 2, 10)) {
+            assertFalse(sorter.next());
+        }
+    }
+
+    @Test
+    public void sortsInMemory() throws Exception {
+        assertSorts(entries(1_000, 2, 100), 2, 1_000);
+    }
+
+    @Test
+    public void mergesRuns() throws Exception {
+        assertSorts(entries(1_000, 2, 100), 2, 64);
+    }
+
+    @Test
+    public void mergesRunsInPasses() throws Exception {
+        // 320 runs, merged in passes of MAX_MERGED_RUNS
+        assertSorts(entries(ExternalSorter.MAX_MERGED_RUNS * 5 * 10, 3, 50), 3, 10);
+    }
+
+    @Test
+    public void keepsEqualKeysAcrossRuns() throws Exception {
+        // every run holds the same first longs, only the last long tells the entries apart
+        List<long[]> entries = new ArrayList<>();
+        for (long i = 0; i < 2_000; i++) entries.add(new long[]{7, i % 3, 2_000 - i});
+        assertSorts(entries, 3, 7);
+    }
+
+    @Test
+    public void keepsDuplicateEntries() throws Exception {
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) entries.add(new long[]{i % 2, -1});
+        assertSorts(entries, 2, 9);
+    }
+
+    private void assertSorts(List<long[]> entries, int entryLongs, int bufferEntries) throws Exception {
+        File directory = folder.newFolder();
+        List<long[]> sorted = new ArrayList<>();
+        try (ExternalSorter sorter = new ExternalSorter(directory, entryLongs, bufferEntries)) {
+            for (long[] entry : entries) sorter.add(entry);
+            while (sorter.next()) {
+                long[] entry = new long[entryLongs];
+                for (int k = 0; k < entryLongs; k++) entry[k] = sorter.get(k);
+                sorted.add(entry);
+            }
+        }
+        assertFalse(directory.exists());
+        List<long[]> expected = new ArrayList<>(entries);
+        expected.sort(ExternalSorterTest::compare);
+        assertEquals(expected.size(), sorted.size());
+        for (int i = 0; i < expected.size(); i++) assertArrayEquals("entry " + i, expected.get(i), sorted.get(i));
+    }
+
+    private static List<long[]> entries(int count, int entryLongs, int distinct) {
+        Random random = new Random(42);
+        List<long[]> entries = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long[] entry = new long[entryLongs];
+            // few distinct values, so that equal leading longs are common, negative ones included
+            for (int k = 0; k < entryLongs; k++) entry[k] = random.nextInt(distinct) - distinct / 2;
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private static int compare(long[] a, long[] b) {
+        for (int k = 0; k < a.length; k++) {
+            int c = Long.compare(a[k], b[k]);
+            if (c != 0) return c;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,85 @@
+package org.neo4j.tool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+
+public class StoreFingerprintTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void equalStoresHaveNoDifferingBlocks() {
+        StoreFingerprint source = StoreFingerprint.of(digest(40, -1));
+        StoreFingerprint target = StoreFingerprint.of(digest(40, -1));
+        assertEquals(new BitSet(), StoreFingerprint.differingBlocks(source, target));
+    }
+
+    @Test
+    public void findsTheDifferingBlock() {
+        StoreFingerprint source = StoreFingerprint.of(digest(300, -1));
+        StoreFingerprint target = StoreFingerprint.of(digest(300, 257));
+        assertEquals(blocks(257), StoreFingerprint.differingBlocks(source, target));
+    }
+
+    @Test
+    public void treesOverMoreEmptyBlocksAgree() {
+        // the target tree is two levels deeper, its extra blocks are empty
+        StoreFingerprint source = StoreFingerprint.of(digest(3, -1));
+        StoreFingerprint target = StoreFingerprint.of(digest(3, -1, 300));
+        assertEquals(3, source.blocks());
+        assertEquals(300, target.blocks());
+        assertEquals(new BitSet(), StoreFingerprint.differingBlocks(source, target));
+        assertEquals(new BitSet(), StoreFingerprint.differingBlocks(target, source));
+    }
+
+    @Test
+    public void findsBlocksBeyondTheSmallerTree() {
+        StoreFingerprint source = StoreFingerprint.of(digest(3, -1));
+        StoreFingerprint target = StoreFingerprint.of(digest(20, -1));
+        BitSet expected = new BitSet();
+        expected.set(3, 20);
+        assertEquals(expected, StoreFingerprint.differingBlocks(source, target));
+        assertEquals(expected, StoreFingerprint.differingBlocks(target, source));
+    }
+
+    @Test
+    public void readsWhatItWrote() throws Exception {
+        File file = folder.newFile();
+        StoreFingerprint.of(digest(40, 17)).write(file, "test");
+        StoreFingerprint read = StoreFingerprint.read(file);
+        assertEquals(40, read.blocks());
+        assertEquals(new BitSet(), StoreFingerprint.differingBlocks(StoreFingerprint.of(digest(40, 17)), read));
+        assertEquals(blocks(17), StoreFingerprint.differingBlocks(StoreFingerprint.of(digest(40, -1)), read));
+    }
+
+    /**
+     * @return a digest with a few records in each of the blocks, and a changed node in the given block
+     */
+    private static CopyDigest digest(int blocks, int changedBlock) {
+        return digest(blocks, changedBlock, blocks);
+    }
+
+    private static CopyDigest digest(int blocks, int changedBlock, int allocatedBlocks) {
+        CopyDigest digest = new CopyDigest((long) allocatedBlocks * CopyDigest.BLOCK_SIZE - 1);
+        for (int block = 0; block < blocks; block++) {
+            long first = (long) block * CopyDigest.BLOCK_SIZE;
+            for (long id = first; id < first + 3; id++) {
+                digest.node(id, CopyDigest.name("Label"), block == changedBlock && id == first ? 1 : 0);
+                digest.relationship(id, id + 1, CopyDigest.name("TYPE"), 0);
+            }
+        }
+        return digest;
+    }
+
+    private static BitSet blocks(int... blocks) {
+        BitSet set = new BitSet();
+        for (int block : blocks) set.set(block);
+        return set;
+    }
+}